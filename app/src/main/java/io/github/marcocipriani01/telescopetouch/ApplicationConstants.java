@@ -84,4 +84,10 @@ public class ApplicationConstants {
     public static final String PHD2_GRAPH_ZOOM_PREF = "phd2_graph_zoom";
     public static final String KEEP_SCREEN_ON_PREF = "keep_screen_on";
     public static final String RECEIVE_ALL_PHOTOS_PREF = "ccd_receive_all_photos";
+    public static final String CCD_PREVIEW_RESOLUTION_PREF = "ccd_preview_resolution";
+    public static final String CCD_DETECT_STARS_PREF = "ccd_detect_stars";
+    public static final String CCD_HISTORY_FRAMES_PREF = "ccd_history_frames";
+    public static final String CCD_LIVE_STACKING_PREF = "ccd_live_stacking";
+    public static final String CCD_CALIBRATION_PREF = "ccd_calibration";
+    public static final String CCD_CALIBRATION_FRAMES_PREF = "ccd_calibration_frames";
 }
\ No newline at end of file
@@ -0,0 +1,257 @@
+/*
+ * Copyright 2021 Marco Cipriani (@marcocipriani01)
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package io.github.marcocipriani01.telescopetouch;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.view.Choreographer;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Delivers events to the UI in batches, once per display frame, instead of posting a message to the main looper
+ * for every event. Events can be posted from any thread to a {@link Channel}; an event posted with a key replaces
+ * the pending event with the same key of its channel, so a property that changes several times between two
+ * frames is delivered once with its latest state, in the position of the first one. When no frame arrives, for
+ * example because the screen is off, the events are delivered by the main looper after {@link #FALLBACK_DELAY_MS}.
+ * Listeners are kept in copy-on-write arrays, so delivering an event takes no lock.
+ *
+ * @author marcocipriani01
+ */
+public class UIEventBus implements Choreographer.FrameCallback {
+
+    private static final Object[] NO_LISTENERS = new Object[0];
+    /**
+     * How long to wait for a display frame before delivering the events anyway.
+     */
+    private static final long FALLBACK_DELAY_MS = 100;
+    private static UIEventBus instance;
+    private final Handler uiHandler = new Handler(Looper.getMainLooper());
+    private final Runnable fallback = this::onFrameMissed;
+    private final Runnable scheduleFrame = () -> {
+        Choreographer.getInstance().postFrameCallback(this);
+        uiHandler.postDelayed(fallback, FALLBACK_DELAY_MS);
+    };
+    private ArrayList<Entry<?>> queue = new ArrayList<>();
+    private ArrayList<Entry<?>> dispatching = new ArrayList<>();
+    private boolean frameScheduled = false;
+    private long posted = 0;
+    private long delivered = 0;
+    private long frames = 0;
+
+    private UIEventBus() {
+    }
+
+    public static synchronized UIEventBus getInstance() {
+        if (instance == null) instance = new UIEventBus();
+        return instance;
+    }
+
+    /**
+     * @return a new channel for listeners of the given type.
+     */
+    public <L> Channel<L> newChannel() {
+        return new Channel<>(this);
+    }
+
+    private synchronized <L> void enqueue(Channel<L> channel, Object key, Event<L> event, Runnable action) {
+        posted++;
+        if (key != null) {
+            Entry<L> pending = channel.pending.get(key);
+            if (pending != null) {
+                pending.event = event;
+                pending.action = action;
+                return;
+            }
+        }
+        Entry<L> entry = new Entry<>(channel, key, event, action);
+        if (key != null) channel.pending.put(key, entry);
+        queue.add(entry);
+        if (!frameScheduled) {
+            frameScheduled = true;
+            if (Looper.myLooper() == Looper.getMainLooper()) {
+                scheduleFrame.run();
+            } else {
+                uiHandler.post(scheduleFrame);
+            }
+        }
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        uiHandler.removeCallbacks(fallback);
+        dispatch();
+    }
+
+    /**
+     * Called on the UI thread when no display frame arrived in time.
+     */
+    private void onFrameMissed() {
+        Choreographer.getInstance().removeFrameCallback(this);
+        dispatch();
+    }
+
+    private void dispatch() {
+        ArrayList<Entry<?>> entries;
+        synchronized (this) {
+            frameScheduled = false;
+            entries = queue;
+            queue = dispatching;
+            dispatching = entries;
+            for (Entry<?> entry : entries) {
+                if (entry.key != null) entry.channel.pending.remove(entry.key);
+            }
+            frames++;
+        }
+        int count = 0;
+        try {
+            for (Entry<?> entry : entries) {
+                entry.deliver();
+                count++;
+            }
+        } finally {
+            entries.clear();
+            synchronized (this) {
+                delivered += count;
+            }
+        }
+    }
+
+    /**
+     * @return the number of events posted, of events delivered after merging the replaced ones,
+     * and of batches in which events were delivered.
+     */
+    public synchronized long[] getCounters() {
+        return new long[]{posted, delivered, frames};
+    }
+
+    /**
+     * An event to deliver to every listener of a channel.
+     */
+    public interface Event<L> {
+        void deliver(@NonNull L listener);
+    }
+
+    /**
+     * Listeners of a given type and the events waiting to be delivered to them.
+     */
+    public static class Channel<L> {
+
+        private final UIEventBus bus;
+        private final Map<Object, Entry<L>> pending = new HashMap<>();
+        private volatile Object[] listeners = NO_LISTENERS;
+
+        private Channel(UIEventBus bus) {
+            this.bus = bus;
+        }
+
+        public synchronized void addListener(@NonNull L listener) {
+            Object[] listeners = this.listeners;
+            for (Object l : listeners) {
+                if (l == listener) return;
+            }
+            Object[] newListeners = new Object[listeners.length + 1];
+            System.arraycopy(listeners, 0, newListeners, 0, listeners.length);
+            newListeners[listeners.length] = listener;
+            this.listeners = newListeners;
+        }
+
+        public synchronized void removeListener(@NonNull L listener) {
+            Object[] listeners = this.listeners;
+            for (int i = 0; i < listeners.length; i++) {
+                if (listeners[i] == listener) {
+                    Object[] newListeners = new Object[listeners.length - 1];
+                    System.arraycopy(listeners, 0, newListeners, 0, i);
+                    System.arraycopy(listeners, i + 1, newListeners, i, listeners.length - i - 1);
+                    this.listeners = newListeners;
+                    return;
+                }
+            }
+        }
+
+        public synchronized void clearListeners() {
+            listeners = NO_LISTENERS;
+        }
+
+        public boolean hasListeners() {
+            return listeners.length != 0;
+        }
+
+        /**
+         * Delivers an event in the next frame. Events without a key are never replaced.
+         */
+        public void post(@NonNull Event<L> event) {
+            bus.enqueue(this, null, event, null);
+        }
+
+        /**
+         * Delivers an event in the next frame, replacing the pending event with the same key.
+         */
+        public void post(@NonNull Object key, @NonNull Event<L> event) {
+            bus.enqueue(this, key, event, null);
+        }
+
+        /**
+         * Runs an action on the UI thread in the next frame, in order with the events of the bus.
+         * The action can update the state read by the listeners and then {@link #deliver(Event)} an event.
+         *
+         * @param key the key of the action, or {@code null} if the action must never be replaced.
+         */
+        public void run(@Nullable Object key, @NonNull Runnable action) {
+            bus.enqueue(this, key, null, action);
+        }
+
+        /**
+         * Delivers an event to the listeners immediately, on the calling thread.
+         */
+        @SuppressWarnings("unchecked")
+        public void deliver(@NonNull Event<L> event) {
+            for (Object listener : listeners) {
+                event.deliver((L) listener);
+            }
+        }
+    }
+
+    private static class Entry<L> {
+
+        private final Channel<L> channel;
+        private final Object key;
+        private Event<L> event;
+        private Runnable action;
+
+        private Entry(Channel<L> channel, Object key, Event<L> event, Runnable action) {
+            this.channel = channel;
+            this.key = key;
+            this.event = event;
+            this.action = action;
+        }
+
+        private void deliver() {
+            if (action != null) {
+                action.run();
+            } else if (event != null) {
+                channel.deliver(event);
+            }
+        }
+    }
+}
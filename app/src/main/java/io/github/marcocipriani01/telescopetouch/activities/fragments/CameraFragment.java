@@ -17,7 +17,13 @@
 
 package io.github.marcocipriani01.telescopetouch.activities.fragments;
 
+import static io.github.marcocipriani01.telescopetouch.ApplicationConstants.CCD_CALIBRATION_FRAMES_PREF;
+import static io.github.marcocipriani01.telescopetouch.ApplicationConstants.CCD_CALIBRATION_PREF;
+import static io.github.marcocipriani01.telescopetouch.ApplicationConstants.CCD_DETECT_STARS_PREF;
+import static io.github.marcocipriani01.telescopetouch.ApplicationConstants.CCD_HISTORY_FRAMES_PREF;
+import static io.github.marcocipriani01.telescopetouch.ApplicationConstants.CCD_LIVE_STACKING_PREF;
 import static io.github.marcocipriani01.telescopetouch.ApplicationConstants.CCD_LOOP_DELAY_PREF;
+import static io.github.marcocipriani01.telescopetouch.ApplicationConstants.CCD_PREVIEW_RESOLUTION_PREF;
 import static io.github.marcocipriani01.telescopetouch.ApplicationConstants.RECEIVE_ALL_PHOTOS_PREF;
 import static io.github.marcocipriani01.telescopetouch.TelescopeTouchApp.connectionManager;
 
@@ -34,10 +40,14 @@ import android.graphics.Bitmap;
 import android.graphics.BlendMode;
 import android.graphics.BlendModeColorFilter;
 import android.graphics.Color;
+import android.graphics.Matrix;
 import android.graphics.PorterDuff;
+import android.graphics.Rect;
+import android.graphics.RectF;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
+import android.util.DisplayMetrics;
 import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.Menu;
@@ -53,6 +63,8 @@ import android.widget.CompoundButton;
 import android.widget.EditText;
 import android.widget.Filter;
 import android.widget.Filterable;
+import android.widget.ImageButton;
+import android.widget.ImageView;
 import android.widget.ProgressBar;
 import android.widget.Spinner;
 import android.widget.TextView;
@@ -88,20 +100,33 @@ import io.github.marcocipriani01.telescopetouch.TelescopeTouchApp;
 import io.github.marcocipriani01.telescopetouch.activities.PIPCameraViewerActivity;
 import io.github.marcocipriani01.telescopetouch.activities.util.ImprovedSpinnerListener;
 import io.github.marcocipriani01.telescopetouch.activities.util.SimpleAdapter;
+import io.github.marcocipriani01.telescopetouch.indi.CalibrationLibrary;
 import io.github.marcocipriani01.telescopetouch.indi.ConnectionManager;
+import io.github.marcocipriani01.telescopetouch.indi.FrameHistory;
 import io.github.marcocipriani01.telescopetouch.indi.INDICamera;
+import io.github.marcocipriani01.telescopetouch.indi.LiveStacker;
 import io.github.marcocipriani01.telescopetouch.indi.NumberPropPref;
+import io.github.marcocipriani01.telescopetouch.indi.StarDetector;
 
 public class CameraFragment extends ActionFragment implements INDICamera.CameraListener,
         CompoundButton.OnCheckedChangeListener, Toolbar.OnMenuItemClickListener, ConnectionManager.ManagerListener {
 
     private static final String TAG = TelescopeTouchApp.getTag(CameraFragment.class);
+    /**
+     * Full resolution tiles are requested once the zoom has been stable for this time.
+     */
+    private static final long TILE_DELAY_MS = 250;
     private static INDIDevice selectedCameraDev = null;
     private final List<INDICamera> cameras = new ArrayList<>();
     private SharedPreferences preferences;
     private SwitchCompat fitsStretchSwitch;
-    private TextView fileSizeText, dimensionsText, formatText, bppText, errorText, logText;
+    private TextView fileSizeText, dimensionsText, formatText, bppText, starsText, stackText, historyText, errorText, logText;
+    private View starsRow, stackRow, historyRow;
+    private ImageButton historyPreviousBtn, historyNextBtn;
     private PhotoView photoViewer;
+    private ImageView tileViewer;
+    private final Matrix tileMatrix = new Matrix();
+    private final Runnable tileRequest = this::requestFullResolutionTile;
     private ProgressBar progressBar;
     private Button exposeBtn, abortBtn, loopBtn;
     private Spinner isoSpinner, binningSpinner, frameTypeSpinner, saveModeSpinner;
@@ -121,6 +146,11 @@ public class CameraFragment extends ActionFragment implements INDICamera.CameraL
             camera = cameras.get(pos);
             selectedCameraDev = camera.device;
             camera.addListener(CameraFragment.this);
+            camera.setPreviewSize(getPreviewSize());
+            camera.setStarDetection(preferences.getBoolean(CCD_DETECT_STARS_PREF, false));
+            camera.setHistorySize(getHistorySize());
+            camera.setLiveStacking(getLiveStackingMode());
+            setCalibration(camera);
             onImageLoaded(camera.getLastBitmap(), camera.getLastMetadata());
             String lastMessage = camera.device.getLastMessage();
             logText.setText(((lastMessage == null) || (lastMessage.equals(""))) ? "-" : lastMessage);
@@ -147,9 +177,25 @@ public class CameraFragment extends ActionFragment implements INDICamera.CameraL
         dimensionsText = rootView.findViewById(R.id.blob_dimensions);
         formatText = rootView.findViewById(R.id.blob_format);
         bppText = rootView.findViewById(R.id.blob_bpp);
+        starsText = rootView.findViewById(R.id.blob_stars);
+        starsRow = rootView.findViewById(R.id.blob_stars_row);
+        stackText = rootView.findViewById(R.id.blob_stack);
+        stackRow = rootView.findViewById(R.id.blob_stack_row);
+        historyText = rootView.findViewById(R.id.blob_history);
+        historyRow = rootView.findViewById(R.id.blob_history_row);
+        historyPreviousBtn = rootView.findViewById(R.id.blob_history_previous);
+        historyPreviousBtn.setOnClickListener(v -> showHistoryFrame(-1));
+        historyNextBtn = rootView.findViewById(R.id.blob_history_next);
+        historyNextBtn.setOnClickListener(v -> showHistoryFrame(1));
         errorText = rootView.findViewById(R.id.blob_error_label);
         photoViewer = rootView.findViewById(R.id.blob_viewer);
         photoViewer.setMaximumScale(20f);
+        tileViewer = rootView.findViewById(R.id.blob_tile_viewer);
+        photoViewer.setOnMatrixChangeListener(rect -> {
+            hideTile();
+            photoViewer.removeCallbacks(tileRequest);
+            photoViewer.postDelayed(tileRequest, TILE_DELAY_MS);
+        });
         progressBar = rootView.findViewById(R.id.blob_loading);
         exposeBtn = rootView.findViewById(R.id.ccd_expose_button);
         exposeBtn.setOnClickListener(this::capture);
@@ -235,6 +281,8 @@ public class CameraFragment extends ActionFragment implements INDICamera.CameraL
         fitsStretchSwitch.setSelected(stretch);
         fitsStretchSwitch.setOnCheckedChangeListener(this);
         delaySlider.setValue(preferences.getInt(CCD_LOOP_DELAY_PREF, 1));
+        starsRow.setVisibility(preferences.getBoolean(CCD_DETECT_STARS_PREF, false) ? View.VISIBLE : View.GONE);
+        stackRow.setVisibility((getLiveStackingMode() == null) ? View.GONE : View.VISIBLE);
 
         connectionManager.addManagerListener(this);
         cameras.clear();
@@ -280,6 +328,11 @@ public class CameraFragment extends ActionFragment implements INDICamera.CameraL
                 }
                 selectedCamera.addListener(this);
                 selectedCamera.setStretch(stretch);
+                selectedCamera.setPreviewSize(getPreviewSize());
+                selectedCamera.setStarDetection(preferences.getBoolean(CCD_DETECT_STARS_PREF, false));
+                selectedCamera.setHistorySize(getHistorySize());
+                selectedCamera.setLiveStacking(getLiveStackingMode());
+                setCalibration(selectedCamera);
                 cameraSelectSpinner.setSelection(cameras.indexOf(selectedCamera));
                 cameraSelectSpinner.setEnabled(true);
                 Bitmap lastBitmap = selectedCamera.getLastBitmap();
@@ -302,6 +355,7 @@ public class CameraFragment extends ActionFragment implements INDICamera.CameraL
             errorText.setVisibility(View.VISIBLE);
         }
         onCameraFunctionsChange();
+        onFrameHistoryChanged();
         progressBar.setVisibility(View.INVISIBLE);
         notifyActionChange();
     }
@@ -310,6 +364,8 @@ public class CameraFragment extends ActionFragment implements INDICamera.CameraL
     public void onStop() {
         super.onStop();
         connectionManager.removeManagerListener(this);
+        photoViewer.removeCallbacks(tileRequest);
+        hideTile();
         photoViewer.setImageBitmap(null);
         for (INDICamera camera : cameras) {
             camera.removeListener(this);
@@ -528,6 +584,22 @@ public class CameraFragment extends ActionFragment implements INDICamera.CameraL
                 }
             }
             return true;
+        } else if (itemId == R.id.menu_focus_mode) {
+            toggleFocusMode();
+            return true;
+        } else if (itemId == R.id.menu_delete_master_frames) {
+            INDICamera camera = getCamera();
+            if (camera == null) {
+                requestActionSnack(R.string.no_camera_available);
+            } else {
+                camera.deleteMasterFrames();
+            }
+            return true;
+        } else if (itemId == R.id.menu_reset_live_stack) {
+            INDICamera camera = getCamera();
+            if (camera != null) camera.resetLiveStack();
+            stackText.setText(R.string.unknown);
+            return true;
         } else if (itemId == R.id.menu_stop_receiving_camera) {
             synchronized (connectionManager.indiCameras) {
                 Collection<INDICamera> cameras = connectionManager.indiCameras.values();
@@ -540,6 +612,43 @@ public class CameraFragment extends ActionFragment implements INDICamera.CameraL
         return false;
     }
 
+    /**
+     * Starts or stops the capture loop on a subframe around the brightest star of the last image.
+     */
+    private void toggleFocusMode() {
+        INDICamera camera = getCamera();
+        if (camera == null) {
+            requestActionSnack(R.string.no_camera_available);
+            return;
+        }
+        try {
+            if (camera.isFocusing()) {
+                camera.abort();
+                return;
+            }
+            String str = exposureTimeField.getText().toString().trim();
+            if (str.isEmpty()) {
+                exposureTimeField.requestFocus();
+                inputMethodManager.toggleSoftInput(InputMethodManager.SHOW_FORCED, 0);
+                return;
+            }
+            camera.startFocusLoop(Double.parseDouble(str),
+                    camera.hasBinning() ? ((Integer) binningSpinner.getSelectedItem()) : 1);
+            setButtonColor(exposeBtn, Color.WHITE);
+            exposeBtn.setEnabled(false);
+            loopBtn.setEnabled(false);
+        } catch (NumberFormatException e) {
+            exposureTimeField.requestFocus();
+        } catch (UnsupportedOperationException e) {
+            requestActionSnack(R.string.focus_mode_unsupported);
+        } catch (IllegalStateException e) {
+            requestActionSnack(R.string.focus_mode_no_star);
+        } catch (Exception e) {
+            Log.e(TAG, e.getMessage(), e);
+            onCameraError(e);
+        }
+    }
+
     @Override
     public void onCheckedChanged(CompoundButton buttonView, boolean isChecked) {
         if (buttonView == fitsStretchSwitch) {
@@ -605,6 +714,7 @@ public class CameraFragment extends ActionFragment implements INDICamera.CameraL
             dimensionsText.setText(R.string.unknown);
             formatText.setText(R.string.unknown);
             bppText.setText(R.string.unknown);
+            starsText.setText(R.string.unknown);
         } else if (info.length != 4) {
             throw new IllegalArgumentException();
         } else {
@@ -886,8 +996,125 @@ public class CameraFragment extends ActionFragment implements INDICamera.CameraL
         progressBar.setVisibility(View.VISIBLE);
     }
 
+    /**
+     * @return the largest side of the screen, or 0 if images must be loaded at full resolution.
+     */
+    private int getPreviewSize() {
+        if (!preferences.getBoolean(CCD_PREVIEW_RESOLUTION_PREF, true)) return 0;
+        DisplayMetrics metrics = getResources().getDisplayMetrics();
+        return Math.max(metrics.widthPixels, metrics.heightPixels);
+    }
+
+    private int getHistorySize() {
+        try {
+            return Math.max(0, Integer.parseInt(preferences.getString(CCD_HISTORY_FRAMES_PREF, "5")));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private void setCalibration(INDICamera camera) {
+        int frames;
+        try {
+            frames = Integer.parseInt(preferences.getString(CCD_CALIBRATION_FRAMES_PREF, "10"));
+        } catch (NumberFormatException e) {
+            frames = 10;
+        }
+        camera.setCalibration(preferences.getBoolean(CCD_CALIBRATION_PREF, false), frames);
+    }
+
+    @Nullable
+    private LiveStacker.Mode getLiveStackingMode() {
+        switch (preferences.getString(CCD_LIVE_STACKING_PREF, "off")) {
+            case "mean":
+                return LiveStacker.Mode.MEAN;
+            case "kappa_sigma":
+                return LiveStacker.Mode.KAPPA_SIGMA;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Blinks to the previous or next frame of the history. If the frame currently shown isn't
+     * in the history, going back shows the newest one.
+     *
+     * @param direction -1 for the previous frame, +1 for the next one.
+     */
+    private void showHistoryFrame(int direction) {
+        INDICamera camera = getCamera();
+        if (camera == null) return;
+        FrameHistory history = camera.getFrameHistory();
+        FrameHistory.Entry displayed = camera.getDisplayedHistoryFrame();
+        int size = history.size(), index = (displayed == null) ? -1 : history.indexOf(displayed);
+        index = (index == -1) ? ((direction < 0) ? (size - 1) : -1) : (index + direction);
+        if ((index < 0) || (index >= size)) return;
+        hideTile();
+        camera.showHistoryFrame(history.get(index));
+    }
+
+    @Override
+    public void onFrameHistoryChanged() {
+        INDICamera camera = getCamera();
+        int size = (camera == null) ? 0 : camera.getFrameHistory().size();
+        if (size == 0) {
+            historyRow.setVisibility(View.GONE);
+            return;
+        }
+        FrameHistory.Entry displayed = camera.getDisplayedHistoryFrame();
+        int index = (displayed == null) ? -1 : camera.getFrameHistory().indexOf(displayed);
+        historyText.setText(context.getString(R.string.frame_history_position,
+                (index == -1) ? "-" : String.valueOf(index + 1), size));
+        historyPreviousBtn.setEnabled(index != 0);
+        historyNextBtn.setEnabled((index != -1) && (index < size - 1));
+        historyRow.setVisibility(View.VISIBLE);
+    }
+
+    private void hideTile() {
+        tileViewer.setVisibility(View.GONE);
+        tileViewer.setImageBitmap(null);
+    }
+
+    /**
+     * Asks the camera to render the visible part of the image at full resolution,
+     * if the preview is zoomed in more than its own resolution.
+     */
+    private void requestFullResolutionTile() {
+        INDICamera camera = getCamera();
+        if (camera == null) return;
+        Bitmap bitmap = camera.getLastBitmap();
+        int scale = camera.getPreviewScale();
+        RectF displayRect = photoViewer.getDisplayRect();
+        if ((bitmap == null) || (scale <= 1) || (displayRect == null)) return;
+        float zoom = displayRect.width() / bitmap.getWidth();
+        if (zoom <= 1f) return;
+        float left = Math.max(0f, -displayRect.left), top = Math.max(0f, -displayRect.top),
+                right = Math.min(displayRect.width(), photoViewer.getWidth() - displayRect.left),
+                bottom = Math.min(displayRect.height(), photoViewer.getHeight() - displayRect.top);
+        if ((right <= left) || (bottom <= top)) return;
+        float toFullResolution = scale / zoom;
+        camera.loadFullResolutionTile(new Rect((int) (left * toFullResolution), (int) (top * toFullResolution),
+                (int) Math.ceil(right * toFullResolution), (int) Math.ceil(bottom * toFullResolution)));
+    }
+
+    @Override
+    public void onFullResolutionTileLoaded(@NonNull Bitmap tile, @NonNull Rect region) {
+        INDICamera camera = getCamera();
+        if (camera == null) return;
+        Bitmap bitmap = camera.getLastBitmap();
+        RectF displayRect = photoViewer.getDisplayRect();
+        if ((bitmap == null) || (displayRect == null)) return;
+        float tileZoom = displayRect.width() / (bitmap.getWidth() * camera.getPreviewScale());
+        tileMatrix.setScale(tileZoom, tileZoom);
+        tileMatrix.postTranslate(displayRect.left + region.left * tileZoom, displayRect.top + region.top * tileZoom);
+        tileViewer.setImageMatrix(tileMatrix);
+        tileViewer.setImageBitmap(tile);
+        tileViewer.setVisibility(View.VISIBLE);
+    }
+
     @Override
     public void onImageLoaded(Bitmap bitmap, String[] metadata) {
+        hideTile();
         setBlobInfo(metadata);
         if (bitmap == null) {
             errorText.setText(R.string.unsupported_format);
@@ -899,11 +1126,43 @@ public class CameraFragment extends ActionFragment implements INDICamera.CameraL
             errorText.setVisibility(View.GONE);
         }
         progressBar.setVisibility(View.INVISIBLE);
+        onFrameHistoryChanged();
         notifyActionChange();
     }
 
+    @Override
+    public void onStarsDetected(@NonNull StarDetector.Result result) {
+        if (Double.isNaN(result.medianHfr)) {
+            starsText.setText(String.valueOf(result.stars.size()));
+        } else {
+            starsText.setText(context.getString(R.string.stars_hfr_value, result.stars.size(), result.medianHfr));
+        }
+    }
+
+    @Override
+    public void onLiveStackUpdated(@NonNull LiveStacker.Result result) {
+        stackText.setText(context.getString(R.string.live_stack_value, result.stackedFrames, result.rejectedFrames));
+    }
+
+    @Override
+    public void onMasterFrameCreated(@NonNull CalibrationLibrary.Master master) {
+        requestActionSnack((master.type == CalibrationLibrary.FrameType.DARK) ?
+                R.string.master_dark_saved : R.string.master_flat_saved);
+    }
+
+    @Override
+    public void onMasterFramesDeleted() {
+        requestActionSnack(R.string.master_frames_deleted);
+    }
+
+    @Override
+    public void onImageSaveError(Throwable e) {
+        requestActionSnack(R.string.saving_error);
+    }
+
     @Override
     public void onBitmapDestroy() {
+        hideTile();
         photoViewer.setImageBitmap(null);
         notifyActionChange();
         onError(R.string.no_incoming_data);
@@ -911,6 +1170,7 @@ public class CameraFragment extends ActionFragment implements INDICamera.CameraL
 
     @Override
     public void onImageLoadingError(Throwable e) {
+        hideTile();
         photoViewer.setImageBitmap(null);
         notifyActionChange();
         if (e instanceof Error) {
@@ -54,8 +54,6 @@ import androidx.recyclerview.widget.SimpleItemAnimator;
 
 import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.Iterator;
-import java.util.List;
 
 import io.github.marcocipriani01.telescopetouch.ApplicationConstants;
 import io.github.marcocipriani01.telescopetouch.NSDHelper;
@@ -67,6 +65,7 @@ import io.github.marcocipriani01.telescopetouch.activities.dialogs.NewServerDial
 import io.github.marcocipriani01.telescopetouch.activities.util.ImprovedSpinnerListener;
 import io.github.marcocipriani01.telescopetouch.activities.views.SameSelectionSpinner;
 import io.github.marcocipriani01.telescopetouch.indi.ConnectionManager;
+import io.github.marcocipriani01.telescopetouch.indi.LogStore;
 
 /**
  * The main screen of the application, which manages the connection.
@@ -85,6 +84,10 @@ public class ConnectionFragment extends ActionFragment implements ConnectionMana
     private LogAdapter logAdapter;
     private CheckBox connectDevicesBox;
     private RecyclerView logsList;
+    /**
+     * Logs evicted from the store when the adapter was last notified.
+     */
+    private long evictedLogs = 0;
 
     @SuppressLint("SetTextI18n")
     @Override
@@ -184,12 +187,15 @@ public class ConnectionFragment extends ActionFragment implements ConnectionMana
         return rootView;
     }
 
+    @SuppressLint("NotifyDataSetChanged")
     @Override
     public void onStart() {
         super.onStart();
         refreshUi(connectionManager.getState());
         connectionManager.addManagerListener(this);
         nsdHelper.setListener(this);
+        evictedLogs = connectionManager.getLogs().getEvictedCount();
+        logAdapter.notifyDataSetChanged();
         logsList.scrollToPosition(logAdapter.getItemCount() - 1);
     }
 
@@ -260,8 +266,16 @@ public class ConnectionFragment extends ActionFragment implements ConnectionMana
 
     @Override
     public void addLog(final ConnectionManager.LogItem log) {
-        if (logAdapter != null)
-            logAdapter.notifyItemInserted(connectionManager.getLogs().indexOf(log));
+        if (logAdapter != null) {
+            LogStore logs = connectionManager.getLogs();
+            long evicted = logs.getEvictedCount();
+            if (evicted != evictedLogs) {
+                // The oldest logs have been dropped from the top of the list
+                logAdapter.notifyItemRangeRemoved(0, (int) (evicted - evictedLogs));
+                evictedLogs = evicted;
+            }
+            logAdapter.notifyItemInserted(logs.indexOf(log));
+        }
         notifyActionChange();
         if ((logsList != null) && (logAdapter != null))
             logsList.scrollToPosition(logAdapter.getItemCount() - 1);
@@ -270,6 +284,7 @@ public class ConnectionFragment extends ActionFragment implements ConnectionMana
     @SuppressLint("NotifyDataSetChanged")
     @Override
     public void deviceLog(final ConnectionManager.LogItem log) {
+        evictedLogs = connectionManager.getLogs().getEvictedCount();
         if (logAdapter != null) logAdapter.notifyDataSetChanged();
         notifyActionChange();
         if ((logsList != null) && (logAdapter != null))
@@ -342,18 +357,10 @@ public class ConnectionFragment extends ActionFragment implements ConnectionMana
 
     @Override
     public void run() {
-        if (logAdapter == null) {
-            connectionManager.getLogs().clear();
-        } else {
-            List<ConnectionManager.LogItem> logs = connectionManager.getLogs();
-            Iterator<ConnectionManager.LogItem> iterator = logs.iterator();
-            while (iterator.hasNext()) {
-                ConnectionManager.LogItem next = iterator.next();
-                int i = logs.indexOf(next);
-                iterator.remove();
-                logAdapter.notifyItemRemoved(i);
-            }
-        }
+        LogStore logs = connectionManager.getLogs();
+        int count = logs.size();
+        logs.clear();
+        if (logAdapter != null) logAdapter.notifyItemRangeRemoved(0, count);
         notifyActionChange();
     }
 
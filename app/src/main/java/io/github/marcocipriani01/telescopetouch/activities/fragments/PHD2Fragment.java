@@ -59,6 +59,7 @@ import androidx.preference.PreferenceManager;
 import com.google.android.material.slider.Slider;
 import com.google.android.material.tabs.TabLayout;
 
+import java.io.File;
 import java.net.SocketException;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -68,17 +69,29 @@ import io.github.marcocipriani01.graphview.DefaultLabelFormatter;
 import io.github.marcocipriani01.graphview.GraphView;
 import io.github.marcocipriani01.graphview.GridLabelRenderer;
 import io.github.marcocipriani01.graphview.Viewport;
+import io.github.marcocipriani01.graphview.series.DataPoint;
+import io.github.marcocipriani01.graphview.series.LineGraphSeries;
 import io.github.marcocipriani01.livephotoview.PhotoView;
 import io.github.marcocipriani01.telescopetouch.ApplicationConstants;
 import io.github.marcocipriani01.telescopetouch.ProUtils;
 import io.github.marcocipriani01.telescopetouch.R;
 import io.github.marcocipriani01.telescopetouch.activities.util.ImprovedSpinnerListener;
 import io.github.marcocipriani01.telescopetouch.activities.views.SameSelectionSpinner;
+import io.github.marcocipriani01.telescopetouch.phd2.GuideData;
 import io.github.marcocipriani01.telescopetouch.phd2.PHD2Client;
 
 public class PHD2Fragment extends ActionFragment implements PHD2Client.PHD2Listener,
         Slider.OnChangeListener, View.OnClickListener, CompoundButton.OnCheckedChangeListener {
 
+    /**
+     * How many guide steps the graph shows.
+     */
+    private static final int GRAPH_STEPS = 200;
+    /**
+     * Width of the visible part of the graph, in steps.
+     */
+    private static final int GRAPH_VISIBLE_STEPS = 50;
+    private static final long GRAPH_REFRESH_MS = 250;
     private static int selectedSpinnerItem = 0;
     private final ImprovedSpinnerListener exposureSpinnerListener = new ImprovedSpinnerListener() {
         @Override
@@ -100,6 +113,19 @@ public class PHD2Fragment extends ActionFragment implements PHD2Client.PHD2Liste
             }
         }
     };
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final GuideData.Snapshot guideSnapshot = new GuideData.Snapshot(GRAPH_STEPS);
+    private final GuideData.Statistics guideStatistics = new GuideData.Statistics();
+    private final LineGraphSeries<DataPoint> raSeries = new LineGraphSeries<>();
+    private final LineGraphSeries<DataPoint> decSeries = new LineGraphSeries<>();
+    private final Runnable graphUpdater = new Runnable() {
+        @Override
+        public void run() {
+            updateGraph();
+            handler.postDelayed(this, GRAPH_REFRESH_MS);
+        }
+    };
+    private long lastGuideStep = -1;
     private SharedPreferences preferences;
     private GraphView graph;
     private Button connectionButton;
@@ -107,7 +133,7 @@ public class PHD2Fragment extends ActionFragment implements PHD2Client.PHD2Liste
     private EditText portEditText;
     private TextView statusLabel;
     private TextView raCorrectionLabel, decCorrectionLabel;
-    private TextView hdfLabel, snrLabel;
+    private TextView hdfLabel, snrLabel, rmsLabel;
     private ImageButton connectDevBtn, loopBtn, findStarBtn, guideBtn, stopBtn;
     private SameSelectionSpinner exposureSpinner;
     private PhotoView liveView;
@@ -137,6 +163,7 @@ public class PHD2Fragment extends ActionFragment implements PHD2Client.PHD2Liste
         decCorrectionLabel = rootView.findViewById(R.id.phd2_correction_dec);
         hdfLabel = rootView.findViewById(R.id.phd2_star_mass);
         snrLabel = rootView.findViewById(R.id.phd2_snr);
+        rmsLabel = rootView.findViewById(R.id.phd2_rms);
         connectDevBtn = rootView.findViewById(R.id.phd_connect_dev_btn);
         connectDevBtn.setOnClickListener(this);
         loopBtn = rootView.findViewById(R.id.phd_loop_btn);
@@ -201,6 +228,7 @@ public class PHD2Fragment extends ActionFragment implements PHD2Client.PHD2Liste
                     connectionButton.setEnabled(false);
                     serversSpinner.setEnabled(false);
                     portEditText.setEnabled(false);
+                    phd2.startRecording(new File(context.getFilesDir(), "guide_logs"));
                     phd2.connect(host, port);
                 }
             } catch (Exception e) {
@@ -257,8 +285,10 @@ public class PHD2Fragment extends ActionFragment implements PHD2Client.PHD2Liste
                 });
 
         graph = rootView.findViewById(R.id.phd_graph);
-        graph.addSeries(phd2.guidingDataRA);
-        graph.addSeries(phd2.guidingDataDec);
+        raSeries.setColor(ContextCompat.getColor(context, R.color.phd2_ra));
+        decSeries.setColor(ContextCompat.getColor(context, R.color.phd2_dec));
+        graph.addSeries(raSeries);
+        graph.addSeries(decSeries);
         GridLabelRenderer gridLabel = graph.getGridLabelRenderer();
         gridLabel.setLabelFormatter(new DefaultLabelFormatter());
         gridLabel.setNumHorizontalLabels(4);
@@ -283,6 +313,8 @@ public class PHD2Fragment extends ActionFragment implements PHD2Client.PHD2Liste
     public void onStart() {
         super.onStart();
         phd2.addListener(this);
+        lastGuideStep = -1;
+        handler.post(graphUpdater);
         if (phd2.isConnected()) {
             onPHD2Connected();
             PHD2Client.AppState state = phd2.appState;
@@ -306,12 +338,49 @@ public class PHD2Fragment extends ActionFragment implements PHD2Client.PHD2Liste
     public void onStop() {
         super.onStop();
         phd2.removeListener(this);
+        handler.removeCallbacks(graphUpdater);
     }
 
     @Override
     public void onDestroyView() {
         super.onDestroyView();
-        if (graph != null) phd2.clearGraphReference(graph);
+        if (graph != null) {
+            raSeries.clearReference(graph);
+            decSeries.clearReference(graph);
+        }
+    }
+
+    /**
+     * Redraws the graph and the statistics from the guiding history, if new steps have been received.
+     */
+    private void updateGraph() {
+        GuideData guideData = phd2.getGuideData();
+        long count = guideData.getCount();
+        if (count == lastGuideStep) return;
+        lastGuideStep = count;
+        guideData.read(GRAPH_STEPS, guideSnapshot);
+        int size = guideSnapshot.size;
+        DataPoint[] raPoints = new DataPoint[size], decPoints = new DataPoint[size];
+        for (int i = 0; i < size; i++) {
+            long step = guideSnapshot.firstStep + i + 1;
+            raPoints[i] = new DataPoint(step, guideSnapshot.ra[i]);
+            decPoints[i] = new DataPoint(step, guideSnapshot.dec[i]);
+        }
+        raSeries.resetData(raPoints);
+        decSeries.resetData(decPoints);
+        if (graph != null) {
+            Viewport viewport = graph.getViewport();
+            viewport.setXAxisBoundsManual(true);
+            viewport.setMinX(Math.max(0, count - GRAPH_VISIBLE_STEPS));
+            viewport.setMaxX(Math.max(count, 1));
+            graph.onDataChanged(false, false);
+        }
+        if (rmsLabel != null) {
+            guideData.getStatistics(PHD2Client.STATS_RECENT, guideStatistics);
+            rmsLabel.setText(String.format(context.getString(R.string.phd2_rms),
+                    guideStatistics.rmsRA, guideStatistics.rmsDec, guideStatistics.rmsTotal,
+                    guideStatistics.peakRA, guideStatistics.peakDec));
+        }
     }
 
     private void loadServers(ArrayList<String> servers) {
@@ -443,13 +512,6 @@ public class PHD2Fragment extends ActionFragment implements PHD2Client.PHD2Liste
                 }
                 break;
             case GUIDE_VALUES:
-                int graphIndex = phd2.getGraphIndex();
-                if ((graphIndex < 50) && (graph != null)) {
-                    Viewport viewport = graph.getViewport();
-                    viewport.setMinX(Math.max(0, graphIndex - 50));
-                    viewport.setMaxX(graphIndex);
-                    graph.onDataChanged(false, false);
-                }
                 if (raCorrectionLabel != null) {
                     if (phd2.raCorrection == 0) {
                         raCorrectionLabel.setVisibility(View.INVISIBLE);
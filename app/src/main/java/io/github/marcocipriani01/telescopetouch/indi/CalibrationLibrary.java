@@ -0,0 +1,699 @@
+/*
+ * Copyright 2021 Marco Cipriani (@marcocipriani01)
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package io.github.marcocipriani01.telescopetouch.indi;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RecursiveAction;
+
+import io.github.marcocipriani01.telescopetouch.TelescopeTouchApp;
+
+/**
+ * Builds master dark and flat frames from the frames captured by a camera and applies them to the light frames.
+ * <p>
+ * Dark and flat frames are written to disk as 16-bit levels while they arrive, then median-combined in parallel
+ * chunks, so the memory used doesn't depend on how many frames are combined. Masters are saved as 32-bit float FITS
+ * files, that can be opened by other software too, named after their key (frame size, exposure, gain, binning and
+ * temperature). They are memory-mapped when used, and the calibration of a light frame is a single parallel pass
+ * that subtracts the dark and divides by the flat.
+ * <p>
+ * Only 8 and 16-bit frames are supported: the levels of other formats are normalized on every frame,
+ * so they can't be compared.
+ *
+ * @author marcocipriani01
+ */
+public class CalibrationLibrary {
+
+    private static final String TAG = TelescopeTouchApp.getTag(CalibrationLibrary.class);
+    private static final int BLOCK_SIZE = 2880;
+    private static final int CARD_SIZE = 80;
+    private static final int CHUNK = 1 << 16;
+    /**
+     * Frames needed to build a master when the capture loop stops before {@link #getFramesPerMaster()}.
+     */
+    private static final int MIN_FRAMES = 3;
+    /**
+     * Maximum difference between the temperature of a light frame and its dark, in degrees Celsius.
+     */
+    private static final double TEMPERATURE_TOLERANCE = 2.0;
+    /**
+     * Added to the calibrated levels, so that the noise of the background isn't clipped at zero.
+     */
+    private static final float PEDESTAL = 100f;
+    private static final int MAX_LEVEL = ImageStretcher.LEVELS - 1;
+    private final File directory;
+    private final File pendingDirectory;
+    private final List<Master> masters = new ArrayList<>();
+    private final Map<String, Batch> batches = new HashMap<>();
+    private final CountDownLatch loaded = new CountDownLatch(1);
+    private int framesPerMaster = 10;
+
+    /**
+     * @param directory where the masters are stored, not shared with other cameras.
+     *                  The masters already in it are loaded on a background thread.
+     */
+    public CalibrationLibrary(@NonNull File directory) {
+        this.directory = directory;
+        this.pendingDirectory = new File(directory, "pending");
+        new Thread(this::load, "Calibration library loader").start();
+    }
+
+    private void load() {
+        try {
+            // Frames of batches that weren't completed
+            File[] files = pendingDirectory.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    if (!file.delete()) Log.w(TAG, "Unable to delete " + file);
+                }
+            }
+            files = directory.listFiles();
+            if (files != null) {
+                List<Master> found = new ArrayList<>();
+                for (File file : files) {
+                    Master master = Master.fromFile(file);
+                    if (master != null) found.add(master);
+                }
+                synchronized (this) {
+                    masters.addAll(found);
+                }
+            }
+        } finally {
+            loaded.countDown();
+        }
+    }
+
+    /**
+     * Waits for the masters already on disk to be loaded.
+     */
+    private void awaitLoaded() {
+        try {
+            loaded.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Reads the type of a frame from its FITS header (keyword IMAGETYP) or, if missing, from the frame type
+     * selected on the camera. Bias frames are treated as darks.
+     *
+     * @param selectedType the name of the element of CCD_FRAME_TYPE selected when the frame was captured.
+     */
+    @NonNull
+    public static FrameType getFrameType(@NonNull FitsDecoder decoder, @Nullable String selectedType) {
+        String type = decoder.getString("IMAGETYP");
+        if (type == null) type = selectedType;
+        if (type == null) return FrameType.LIGHT;
+        type = type.toLowerCase(Locale.ROOT);
+        if (type.contains("dark") || type.contains("bias")) return FrameType.DARK;
+        if (type.contains("flat")) return FrameType.FLAT;
+        return FrameType.LIGHT;
+    }
+
+    /**
+     * @return {@code true} if the levels of this frame can be calibrated or used to build a master.
+     */
+    public static boolean isSupported(@NonNull FitsDecoder decoder) {
+        int bitPerPix = decoder.getBitPerPix();
+        // Scaled levels are normalized on every frame
+        if (bitPerPix == 8) return (decoder.getBZero() == 0.0) && (decoder.getBScale() == 1.0);
+        if (bitPerPix == 16) return (decoder.getBZero() == 32768.0) && (decoder.getBScale() == 1.0);
+        return false;
+    }
+
+    public synchronized int getFramesPerMaster() {
+        return framesPerMaster;
+    }
+
+    /**
+     * @param frames how many dark or flat frames are combined in a master.
+     */
+    public synchronized void setFramesPerMaster(int frames) {
+        this.framesPerMaster = Math.max(MIN_FRAMES, frames);
+    }
+
+    @NonNull
+    public synchronized List<Master> getMasters() {
+        return new ArrayList<>(masters);
+    }
+
+    /**
+     * Deletes all the masters and the frames waiting to be combined. Blocks until the library is loaded: callers should
+     * run it in the thread that combines the masters, so that a pending combination cannot bring a master back.
+     */
+    public void clear() {
+        awaitLoaded();
+        synchronized (this) {
+            for (Master master : masters) {
+                if (!master.file.delete()) Log.w(TAG, "Unable to delete " + master.file);
+            }
+            masters.clear();
+            for (Batch batch : batches.values()) {
+                batch.discard();
+            }
+            batches.clear();
+        }
+    }
+
+    /**
+     * @return the dark with the same size, exposure, gain and binning, and the closest temperature, or {@code null}.
+     */
+    @Nullable
+    public synchronized Master findDark(@NonNull Key key) {
+        Master best = null;
+        double bestDistance = Double.MAX_VALUE;
+        for (Master master : masters) {
+            Key other = master.key;
+            if ((master.type != FrameType.DARK) || (!key.sameGeometry(other)) ||
+                    (Math.abs(key.exposure - other.exposure) > 0.001 * Math.max(1.0, key.exposure)) ||
+                    (Double.compare(key.gain, other.gain) != 0)) continue;
+            double distance;
+            if (Double.isNaN(key.temperature) || Double.isNaN(other.temperature)) {
+                // Without a temperature, only a dark without temperature matches
+                if (Double.isNaN(key.temperature) != Double.isNaN(other.temperature)) continue;
+                distance = 0.0;
+            } else {
+                distance = Math.abs(key.temperature - other.temperature);
+                if (distance > TEMPERATURE_TOLERANCE) continue;
+            }
+            if ((distance < bestDistance) ||
+                    ((distance == bestDistance) && (master.file.lastModified() > best.file.lastModified()))) {
+                best = master;
+                bestDistance = distance;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * @return the newest flat with the same size and binning, or {@code null}.
+     * Exposure, gain and temperature of flats don't need to match the light frames.
+     */
+    @Nullable
+    public synchronized Master findFlat(@NonNull Key key) {
+        Master best = null;
+        for (Master master : masters) {
+            if ((master.type == FrameType.FLAT) && key.sameGeometry(master.key) &&
+                    ((best == null) || (master.file.lastModified() > best.file.lastModified())))
+                best = master;
+        }
+        return best;
+    }
+
+    /**
+     * Writes a dark or flat frame to disk, to be combined with the next ones of the same key.
+     *
+     * @return a batch ready to be combined, if this frame completed it, or {@code null}.
+     */
+    @Nullable
+    public Batch addFrame(@NonNull FrameType type, @NonNull FitsDecoder decoder) throws IOException {
+        if (type == FrameType.LIGHT) throw new IllegalArgumentException("Light frames can't be combined!");
+        // The loader must not delete the pending frames written from now on
+        awaitLoaded();
+        Key key = Key.fromHeader(decoder);
+        String name = Master.getFileName(type, key);
+        if ((!pendingDirectory.isDirectory()) && (!pendingDirectory.mkdirs()))
+            throw new IOException("Unable to create " + pendingDirectory);
+        File file = File.createTempFile("frame", ".raw", pendingDirectory);
+        double mean = writeLevels(decoder, file);
+        synchronized (this) {
+            Batch batch = batches.get(name);
+            if (batch == null) {
+                batch = new Batch(type, key);
+                batches.put(name, batch);
+            }
+            batch.files.add(file);
+            batch.means.add(mean);
+            if (batch.files.size() < framesPerMaster) return null;
+            batches.remove(name);
+            return batch;
+        }
+    }
+
+    /**
+     * @return the incomplete batches with enough frames to build a master. The others are discarded.
+     */
+    @NonNull
+    public synchronized List<Batch> takePendingBatches() {
+        List<Batch> list = new ArrayList<>();
+        Iterator<Batch> iterator = batches.values().iterator();
+        while (iterator.hasNext()) {
+            Batch batch = iterator.next();
+            iterator.remove();
+            if (batch.files.size() >= MIN_FRAMES) {
+                list.add(batch);
+            } else {
+                batch.discard();
+            }
+        }
+        return list;
+    }
+
+    /**
+     * Writes the 16-bit levels of a frame, in native byte order.
+     *
+     * @return the mean level.
+     */
+    private static double writeLevels(FitsDecoder decoder, File file) throws IOException {
+        int pixels = decoder.getWidth() * decoder.getHeight() * decoder.getChannels();
+        int[] chunk = new int[Math.min(pixels, CHUNK)];
+        ByteBuffer buffer = ByteBuffer.allocateDirect(2 * chunk.length).order(ByteOrder.nativeOrder());
+        ShortBuffer shorts = buffer.asShortBuffer();
+        double sum = 0.0;
+        try (RandomAccessFile stream = new RandomAccessFile(file, "rw");
+             FileChannel channel = stream.getChannel()) {
+            for (int i = 0; i < pixels; i += chunk.length) {
+                int count = Math.min(chunk.length, pixels - i);
+                decoder.readLevels(i, count, chunk, 0);
+                long chunkSum = 0;
+                for (int j = 0; j < count; j++) {
+                    chunkSum += chunk[j];
+                    shorts.put(j, (short) (chunk[j] - 32768));
+                }
+                sum += chunkSum;
+                buffer.position(0).limit(2 * count);
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            }
+        } catch (IOException e) {
+            if (!file.delete()) Log.w(TAG, "Unable to delete " + file);
+            throw e;
+        }
+        return sum / pixels;
+    }
+
+    /**
+     * Calibrates a light frame with the matching dark and flat, in a single pass.
+     *
+     * @return a decoder for the calibrated 16-bit levels, or the same decoder if there's no master for it.
+     */
+    @NonNull
+    public FitsDecoder calibrate(@NonNull FitsDecoder decoder) throws IOException {
+        if (!isSupported(decoder)) return decoder;
+        awaitLoaded();
+        Key key = Key.fromHeader(decoder);
+        Master dark = findDark(key), flat = findFlat(key);
+        if ((dark == null) && (flat == null)) return decoder;
+        int pixels = decoder.getWidth() * decoder.getHeight() * decoder.getChannels();
+        ShortBuffer levels = ByteBuffer.allocateDirect(2 * pixels).order(ByteOrder.nativeOrder()).asShortBuffer();
+        ImagingService.getComputePool().invoke(new CalibrationTask(decoder, (dark == null) ? null : dark.getData(),
+                (flat == null) ? null : flat.getData(), levels, 0, pixels));
+        Map<String, String> cards = decoder.getCards();
+        if (dark != null) cards.put("CALDARK", dark.file.getName());
+        if (flat != null) cards.put("CALFLAT", flat.file.getName());
+        return new FitsDecoder(cards, levels, decoder.getWidth(), decoder.getHeight(), decoder.getChannels());
+    }
+
+    private synchronized void addMaster(Master master) {
+        Iterator<Master> iterator = masters.iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().file.equals(master.file)) iterator.remove();
+        }
+        masters.add(master);
+    }
+
+    public enum FrameType {
+        LIGHT, DARK, FLAT
+    }
+
+    /**
+     * The settings a master depends on.
+     */
+    public static class Key {
+
+        public final int width;
+        public final int height;
+        public final int channels;
+        public final double exposure;
+        /**
+         * {@link Double#NaN} if unknown.
+         */
+        public final double gain;
+        public final int binning;
+        /**
+         * The sensor temperature in degrees Celsius, rounded, or {@link Double#NaN} if unknown.
+         */
+        public final double temperature;
+
+        public Key(int width, int height, int channels, double exposure, double gain, int binning, double temperature) {
+            this.width = width;
+            this.height = height;
+            this.channels = channels;
+            this.exposure = exposure;
+            this.gain = gain;
+            this.binning = binning;
+            this.temperature = Double.isNaN(temperature) ? Double.NaN : Math.round(temperature);
+        }
+
+        /**
+         * Reads the key from the keywords written by INDI drivers.
+         */
+        @NonNull
+        public static Key fromHeader(@NonNull FitsDecoder decoder) {
+            return new Key(decoder.getWidth(), decoder.getHeight(), decoder.getChannels(),
+                    decoder.getDouble("EXPTIME", 0.0), decoder.getDouble("GAIN", Double.NaN),
+                    decoder.getInt("XBINNING", 1), decoder.getDouble("CCD-TEMP", Double.NaN));
+        }
+
+        private boolean sameGeometry(Key other) {
+            return (width == other.width) && (height == other.height) &&
+                    (channels == other.channels) && (binning == other.binning);
+        }
+    }
+
+    /**
+     * A master frame: 32-bit float levels in a FITS file.
+     */
+    public static class Master {
+
+        public final FrameType type;
+        public final Key key;
+        public final File file;
+        private FloatBuffer data = null;
+
+        private Master(FrameType type, Key key, File file) {
+            this.type = type;
+            this.key = key;
+            this.file = file;
+        }
+
+        /**
+         * The gain is written with all its digits, since it must match exactly when the master is loaded again.
+         */
+        private static String getFileName(FrameType type, Key key) {
+            return String.format(Locale.US, "%s_%dx%dx%d_e%.3f_g%s_b%d_t%.0f.fits",
+                    type.name().toLowerCase(Locale.ROOT), key.width, key.height, key.channels,
+                    key.exposure, Double.toString(key.gain), key.binning, key.temperature);
+        }
+
+        @Nullable
+        private static Master fromFile(File file) {
+            String name = file.getName();
+            if (!name.endsWith(".fits")) return null;
+            String[] parts = name.substring(0, name.length() - 5).split("_");
+            if (parts.length != 6) return null;
+            try {
+                FrameType type = FrameType.valueOf(parts[0].toUpperCase(Locale.ROOT));
+                String[] size = parts[1].split("x");
+                return new Master(type, new Key(Integer.parseInt(size[0]), Integer.parseInt(size[1]),
+                        Integer.parseInt(size[2]), Double.parseDouble(parts[2].substring(1)),
+                        Double.parseDouble(parts[3].substring(1)), Integer.parseInt(parts[4].substring(1)),
+                        Double.parseDouble(parts[5].substring(1))), file);
+            } catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+                return null;
+            }
+        }
+
+        /**
+         * @return the levels of the master, memory-mapped.
+         */
+        @NonNull
+        public synchronized FloatBuffer getData() throws IOException {
+            if (data == null) {
+                try (RandomAccessFile stream = new RandomAccessFile(file, "r");
+                     FileChannel channel = stream.getChannel()) {
+                    long pixels = (long) key.width * key.height * key.channels;
+                    if (channel.size() < BLOCK_SIZE + 4 * pixels)
+                        throw new IOException("Truncated master frame!");
+                    data = channel.map(FileChannel.MapMode.READ_ONLY, BLOCK_SIZE, 4 * pixels).asFloatBuffer();
+                }
+            }
+            return data.duplicate();
+        }
+    }
+
+    /**
+     * Dark or flat frames waiting to be combined.
+     */
+    public class Batch {
+
+        public final FrameType type;
+        public final Key key;
+        private final List<File> files = new ArrayList<>();
+        private final List<Double> means = new ArrayList<>();
+
+        private Batch(FrameType type, Key key) {
+            this.type = type;
+            this.key = key;
+        }
+
+        public int size() {
+            return files.size();
+        }
+
+        /**
+         * Deletes the frames without combining them.
+         */
+        public void discard() {
+            for (File file : files) {
+                if (!file.delete()) Log.w(TAG, "Unable to delete " + file);
+            }
+        }
+
+        /**
+         * Median-combines the frames and saves the master, replacing the one with the same key.
+         * Flats are calibrated with the matching dark, if any, and normalized to a mean of 1.
+         */
+        @NonNull
+        public Master combine() throws IOException {
+            try {
+                int pixels = key.width * key.height * key.channels, count = files.size();
+                ShortBuffer[] frames = new ShortBuffer[count];
+                for (int i = 0; i < count; i++) {
+                    try (RandomAccessFile stream = new RandomAccessFile(files.get(i), "r");
+                         FileChannel channel = stream.getChannel()) {
+                        frames[i] = channel.map(FileChannel.MapMode.READ_ONLY, 0, 2L * pixels)
+                                .order(ByteOrder.nativeOrder()).asShortBuffer();
+                    }
+                }
+                FloatBuffer dark = null;
+                float[] scales = null;
+                if (type == FrameType.FLAT) {
+                    scales = new float[count];
+                    Master darkMaster = findDark(key);
+                    double darkMean = 0.0;
+                    if (darkMaster != null) {
+                        dark = darkMaster.getData();
+                        darkMean = mean(dark, pixels);
+                    }
+                    // Every flat is scaled to a mean of 1, so that flats of different brightness can be combined
+                    for (int i = 0; i < count; i++) {
+                        scales[i] = (float) (1.0 / Math.max(1.0, means.get(i) - darkMean));
+                    }
+                }
+                if (!directory.isDirectory() && (!directory.mkdirs()))
+                    throw new IOException("Unable to create " + directory);
+                File file = new File(directory, Master.getFileName(type, key));
+                File temp = new File(directory, file.getName() + ".tmp");
+                try (RandomAccessFile stream = new RandomAccessFile(temp, "rw");
+                     FileChannel channel = stream.getChannel()) {
+                    byte[] header = createHeader(count);
+                    long dataSize = 4L * pixels, size = header.length + ((dataSize + BLOCK_SIZE - 1) / BLOCK_SIZE) * BLOCK_SIZE;
+                    stream.setLength(size);
+                    MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+                    map.put(header);
+                    map.position(header.length);
+                    // FITS data is big endian
+                    FloatBuffer out = map.slice().order(ByteOrder.BIG_ENDIAN).asFloatBuffer();
+                    ImagingService.getComputePool().invoke(new CombineTask(frames, scales, dark, out, 0, pixels));
+                    if (type == FrameType.FLAT) {
+                        double mean = mean(out, pixels);
+                        if (mean > 0.0) {
+                            float scale = (float) (1.0 / mean);
+                            for (int i = 0; i < pixels; i++) {
+                                out.put(i, out.get(i) * scale);
+                            }
+                        }
+                    }
+                    map.force();
+                }
+                if ((file.exists() && (!file.delete())) || (!temp.renameTo(file)))
+                    throw new IOException("Unable to save " + file);
+                Master master = new Master(type, key, file);
+                addMaster(master);
+                return master;
+            } finally {
+                discard();
+            }
+        }
+
+        private double mean(FloatBuffer buffer, int pixels) {
+            double sum = 0.0;
+            for (int i = 0; i < pixels; i++) {
+                sum += buffer.get(i);
+            }
+            return sum / pixels;
+        }
+
+        private byte[] createHeader(int frames) {
+            StringBuilder builder = new StringBuilder();
+            addCard(builder, "SIMPLE", "T");
+            addCard(builder, "BITPIX", "-32");
+            addCard(builder, "NAXIS", (key.channels == 1) ? "2" : "3");
+            addCard(builder, "NAXIS1", String.valueOf(key.width));
+            addCard(builder, "NAXIS2", String.valueOf(key.height));
+            if (key.channels != 1) addCard(builder, "NAXIS3", String.valueOf(key.channels));
+            addCard(builder, "IMAGETYP", (type == FrameType.DARK) ? "'Master Dark'" : "'Master Flat'");
+            addCard(builder, "EXPTIME", String.format(Locale.US, "%.3f", key.exposure));
+            if (!Double.isNaN(key.gain)) addCard(builder, "GAIN", Double.toString(key.gain));
+            addCard(builder, "XBINNING", String.valueOf(key.binning));
+            addCard(builder, "YBINNING", String.valueOf(key.binning));
+            if (!Double.isNaN(key.temperature))
+                addCard(builder, "CCD-TEMP", String.format(Locale.US, "%.0f", key.temperature));
+            addCard(builder, "NCOMBINE", String.valueOf(frames));
+            builder.append(String.format(Locale.US, "%-" + CARD_SIZE + "s", "END"));
+            while (builder.length() % BLOCK_SIZE != 0) {
+                builder.append(' ');
+            }
+            return builder.toString().getBytes(StandardCharsets.US_ASCII);
+        }
+
+        private void addCard(StringBuilder builder, String key, String value) {
+            builder.append(String.format(Locale.US, "%-8s= %20s", key, value));
+            builder.append(String.format(Locale.US, "%" + (CARD_SIZE - 30) + "s", ""));
+        }
+    }
+
+    /**
+     * Computes the median of the frames pixel by pixel. Flats are dark-subtracted and scaled before.
+     */
+    private static class CombineTask extends RecursiveAction {
+
+        private final ShortBuffer[] frames;
+        private final float[] scales;
+        private final FloatBuffer dark;
+        private final FloatBuffer out;
+        private final int from;
+        private final int to;
+
+        private CombineTask(ShortBuffer[] frames, float[] scales, FloatBuffer dark, FloatBuffer out, int from, int to) {
+            this.frames = frames;
+            this.scales = scales;
+            this.dark = dark;
+            this.out = out;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > CHUNK) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new CombineTask(frames, scales, dark, out, from, middle),
+                        new CombineTask(frames, scales, dark, out, middle, to));
+                return;
+            }
+            int count = frames.length;
+            boolean flat = (scales != null);
+            float[] values = new float[count];
+            for (int i = from; i < to; i++) {
+                float darkLevel = (dark == null) ? 0f : dark.get(i);
+                for (int k = 0; k < count; k++) {
+                    float value = frames[k].get(i) + 32768;
+                    if (flat) value = (value - darkLevel) * scales[k];
+                    // Insertion sort, the frames are few
+                    int j = k - 1;
+                    while ((j >= 0) && (values[j] > value)) {
+                        values[j + 1] = values[j];
+                        j--;
+                    }
+                    values[j + 1] = value;
+                }
+                out.put(i, ((count & 1) == 1) ? values[count / 2] : ((values[count / 2 - 1] + values[count / 2]) / 2f));
+            }
+        }
+    }
+
+    /**
+     * Subtracts the dark and divides by the flat, in one pass over the frame.
+     */
+    private static class CalibrationTask extends RecursiveAction {
+
+        private final FitsDecoder decoder;
+        private final FloatBuffer dark;
+        private final FloatBuffer flat;
+        private final ShortBuffer out;
+        private final int from;
+        private final int to;
+
+        private CalibrationTask(FitsDecoder decoder, FloatBuffer dark, FloatBuffer flat, ShortBuffer out, int from, int to) {
+            this.decoder = decoder;
+            this.dark = dark;
+            this.flat = flat;
+            this.out = out;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > CHUNK) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new CalibrationTask(decoder, dark, flat, out, from, middle),
+                        new CalibrationTask(decoder, dark, flat, out, middle, to));
+                return;
+            }
+            int count = to - from;
+            int[] levels = new int[count];
+            decoder.readLevels(from, count, levels, 0);
+            float[] darkLevels = null, flatLevels = null;
+            if (dark != null) {
+                darkLevels = new float[count];
+                FloatBuffer view = dark.duplicate();
+                view.position(from);
+                view.get(darkLevels);
+            }
+            if (flat != null) {
+                flatLevels = new float[count];
+                FloatBuffer view = flat.duplicate();
+                view.position(from);
+                view.get(flatLevels);
+            }
+            for (int i = 0; i < count; i++) {
+                float value = levels[i];
+                if (darkLevels != null) value -= darkLevels[i];
+                // Dead pixels of the flat are left uncorrected
+                if ((flatLevels != null) && (flatLevels[i] > 0.01f)) value /= flatLevels[i];
+                int level = (int) (value + PEDESTAL + 0.5f);
+                out.put(from + i, (short) (Math.max(0, Math.min(level, MAX_LEVEL)) - 32768));
+            }
+        }
+    }
+}
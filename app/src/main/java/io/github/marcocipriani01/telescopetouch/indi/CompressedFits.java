@@ -0,0 +1,598 @@
+/*
+ * Copyright 2021 Marco Cipriani (@marcocipriani01)
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package io.github.marcocipriani01.telescopetouch.indi;
+
+import androidx.annotation.NonNull;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.RecursiveAction;
+import java.util.regex.Pattern;
+import java.util.zip.DataFormatException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+
+/**
+ * Decompression of the BLOBs that INDI and fpack compress: zlib-compressed BLOBs (format ending with ".z")
+ * and tile-compressed FITS images (".fits.fz", RICE_1, GZIP_1, GZIP_2 or NOCOMPRESS tiles).
+ * Compressed FITS images are turned back into a plain FITS file that {@link FitsDecoder} can read:
+ * the tiles are decompressed in parallel straight into the data unit of the new file.
+ *
+ * @author marcocipriani01
+ */
+public final class CompressedFits {
+
+    private static final int CARD_SIZE = 80;
+    private static final int BLOCK_SIZE = 2880;
+    /**
+     * Keywords of the binary table that describe the compression and must not be copied in the image.
+     */
+    private static final Set<String> TABLE_KEYWORDS = new HashSet<>(Arrays.asList(
+            "SIMPLE", "XTENSION", "BITPIX", "NAXIS", "PCOUNT", "GCOUNT", "TFIELDS", "THEAP", "EXTNAME", "END",
+            "ZIMAGE", "ZCMPTYPE", "ZBITPIX", "ZNAXIS", "ZSIMPLE", "ZTENSION", "ZEXTEND", "ZBLOCKED", "ZPCOUNT",
+            "ZGCOUNT", "ZHECKSUM", "ZDATASUM", "ZQUANTIZ", "ZDITHER0", "ZMASKCMP", "ZSCALE", "ZZERO", "ZBLANK"));
+    /**
+     * Indexed keywords of the binary table, like NAXISn and TFORMn.
+     */
+    private static final Pattern INDEXED_TABLE_KEYWORD =
+            Pattern.compile("(NAXIS|TTYPE|TFORM|TUNIT|TDIM|TSCAL|TZERO|TNULL|TDISP|ZNAXIS|ZTILE|ZNAME|ZVAL)[0-9]+");
+
+    private CompressedFits() {
+    }
+
+    /**
+     * @return {@code true} if the format is the one of a zlib-compressed INDI BLOB.
+     */
+    public static boolean isZlib(String format) {
+        return format.endsWith(".z");
+    }
+
+    /**
+     * @return {@code true} if the format is the one of a tile-compressed FITS image.
+     */
+    public static boolean isCompressedFITS(String format) {
+        return format.endsWith(".fz");
+    }
+
+    /**
+     * Decompresses a zlib-compressed BLOB.
+     *
+     * @param sizeHint the expected size of the decompressed data, which INDI sends along the BLOB, or 0.
+     */
+    @NonNull
+    public static byte[] inflate(@NonNull byte[] data, int length, int sizeHint) throws IOException {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(data, 0, Math.min(length, data.length));
+            byte[] out = new byte[(sizeHint > 0) ? sizeHint : Math.max(BLOCK_SIZE, 4 * length)];
+            int size = 0;
+            while (!inflater.finished()) {
+                if (size == out.length) out = Arrays.copyOf(out, out.length * 2);
+                int count = inflater.inflate(out, size, out.length - size);
+                if ((count == 0) && (inflater.needsInput() || inflater.needsDictionary()))
+                    throw new EOFException("Truncated zlib BLOB!");
+                size += count;
+            }
+            return (size == out.length) ? out : Arrays.copyOf(out, size);
+        } catch (DataFormatException e) {
+            throw new IOException("Invalid zlib BLOB!", e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * Converts a tile-compressed FITS file into an uncompressed one.
+     */
+    @NonNull
+    public static byte[] uncompress(@NonNull byte[] data, int length) throws IOException {
+        length = Math.min(length, data.length);
+        int offset = 0;
+        while (offset < length) {
+            List<String> cards = new ArrayList<>();
+            Map<String, String> values = new HashMap<>();
+            int dataOffset = readHeader(data, length, offset, cards, values);
+            if ("T".equals(values.get("ZIMAGE")))
+                return new CompressedImage(data, length, dataOffset, cards, values).uncompress();
+            // Skip this HDU
+            long size = Math.abs(getInt(values, "BITPIX", 8)) / 8;
+            int naxis = getInt(values, "NAXIS", 0);
+            if (naxis == 0) {
+                size = 0;
+            } else {
+                for (int i = 1; i <= naxis; i++) {
+                    size *= getInt(values, "NAXIS" + i, 0);
+                }
+            }
+            size = (size + getInt(values, "PCOUNT", 0)) * getInt(values, "GCOUNT", 1);
+            offset = (int) (dataOffset + ((size + BLOCK_SIZE - 1) / BLOCK_SIZE) * BLOCK_SIZE);
+        }
+        throw new IllegalStateException("No compressed image in FITS file!");
+    }
+
+    /**
+     * Reads a header, filling the list of raw cards and the map of values.
+     *
+     * @return the offset of the data unit.
+     */
+    private static int readHeader(byte[] data, int length, int offset,
+                                  List<String> cards, Map<String, String> values) throws EOFException {
+        while (offset + CARD_SIZE <= length) {
+            String card = new String(data, offset, CARD_SIZE, StandardCharsets.US_ASCII);
+            offset += CARD_SIZE;
+            String key = card.substring(0, 8).trim();
+            if (key.equals("END"))
+                return ((offset + BLOCK_SIZE - 1) / BLOCK_SIZE) * BLOCK_SIZE;
+            cards.add(card);
+            if (card.charAt(8) == '=') values.put(key, FitsDecoder.parseValue(card.substring(10)));
+        }
+        throw new EOFException("FITS header not terminated!");
+    }
+
+    private static int getInt(Map<String, String> values, String key, int defaultValue) {
+        String value = values.get(key);
+        if (value == null) return defaultValue;
+        try {
+            return (int) Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    private static String card(String key, String value) {
+        StringBuilder builder = new StringBuilder(key);
+        while (builder.length() < 8) {
+            builder.append(' ');
+        }
+        builder.append("= ");
+        for (int i = value.length(); i < 20; i++) {
+            builder.append(' ');
+        }
+        builder.append(value);
+        while (builder.length() < CARD_SIZE) {
+            builder.append(' ');
+        }
+        return builder.toString();
+    }
+
+    private static boolean isTableKeyword(String key) {
+        return TABLE_KEYWORDS.contains(key) || INDEXED_TABLE_KEYWORD.matcher(key).matches();
+    }
+
+    /**
+     * Decompresses a tile compressed with the Rice algorithm, as implemented by CFITSIO.
+     *
+     * @param bytePix the size of the original integers, in bytes.
+     */
+    private static void riceDecompress(byte[] in, int offset, int length, int[] out, int count,
+                                       int blockSize, int bytePix) throws EOFException {
+        int fsBits, fsMax, bBits = 8 * bytePix;
+        long mask;
+        switch (bytePix) {
+            case 1:
+                fsBits = 3;
+                fsMax = 6;
+                mask = 0xffL;
+                break;
+            case 2:
+                fsBits = 4;
+                fsMax = 14;
+                mask = 0xffffL;
+                break;
+            case 4:
+                fsBits = 5;
+                fsMax = 25;
+                mask = 0xffffffffL;
+                break;
+            default:
+                throw new UnsupportedOperationException("Unsupported Rice BYTEPIX " + bytePix);
+        }
+        int end = offset + length, p = offset;
+        if (length < bytePix + 1) throw new EOFException("Truncated Rice tile!");
+        long lastPix = 0;
+        for (int i = 0; i < bytePix; i++) {
+            lastPix = (lastPix << 8) | (in[p++] & 0xff);
+        }
+        long b = in[p++] & 0xff;
+        int nBits = 8;
+        for (int i = 0; i < count; ) {
+            nBits -= fsBits;
+            while (nBits < 0) {
+                if (p >= end) throw new EOFException("Truncated Rice tile!");
+                b = (b << 8) | (in[p++] & 0xff);
+                nBits += 8;
+            }
+            int fs = (int) (b >>> nBits) - 1;
+            b &= (1L << nBits) - 1;
+            int iMax = Math.min(i + blockSize, count);
+            if (fs < 0) {
+                // Low-entropy block: all the differences are zero
+                for (; i < iMax; i++) {
+                    out[i] = (int) lastPix;
+                }
+            } else if (fs == fsMax) {
+                // High-entropy block: the differences are stored as they are
+                for (; i < iMax; i++) {
+                    int k = bBits - nBits;
+                    long diff = b << k;
+                    for (k -= 8; k >= 0; k -= 8) {
+                        if (p >= end) throw new EOFException("Truncated Rice tile!");
+                        b = in[p++] & 0xff;
+                        diff |= b << k;
+                    }
+                    if (nBits > 0) {
+                        if (p >= end) throw new EOFException("Truncated Rice tile!");
+                        b = in[p++] & 0xff;
+                        diff |= b >>> (-k);
+                        b &= (1L << nBits) - 1;
+                    } else {
+                        b = 0;
+                    }
+                    diff &= mask;
+                    diff = ((diff & 1) == 0) ? (diff >>> 1) : (~(diff >>> 1) & mask);
+                    lastPix = (diff + lastPix) & mask;
+                    out[i] = (int) lastPix;
+                }
+            } else {
+                for (; i < iMax; i++) {
+                    while (b == 0) {
+                        if (p >= end) throw new EOFException("Truncated Rice tile!");
+                        nBits += 8;
+                        b = in[p++] & 0xff;
+                    }
+                    int nZero = nBits - (64 - Long.numberOfLeadingZeros(b));
+                    nBits -= nZero + 1;
+                    b ^= 1L << nBits;
+                    nBits -= fs;
+                    while (nBits < 0) {
+                        if (p >= end) throw new EOFException("Truncated Rice tile!");
+                        b = (b << 8) | (in[p++] & 0xff);
+                        nBits += 8;
+                    }
+                    long diff = (((long) nZero) << fs) | (b >>> nBits);
+                    b &= (1L << nBits) - 1;
+                    diff = ((diff & 1) == 0) ? (diff >>> 1) : (~(diff >>> 1) & mask);
+                    lastPix = (diff + lastPix) & mask;
+                    out[i] = (int) lastPix;
+                }
+            }
+        }
+    }
+
+    private static void readFully(InputStream stream, byte[] out, int offset, int length) throws IOException {
+        while (length > 0) {
+            int count = stream.read(out, offset, length);
+            if (count < 0) throw new EOFException("Truncated GZIP tile!");
+            offset += count;
+            length -= count;
+        }
+    }
+
+    private static class CompressedImage {
+
+        private final byte[] data;
+        private final int length;
+        private final List<String> cards;
+        private final String compression;
+        private final int bitPix;
+        private final int pixelSize;
+        private final int[] size = new int[3];
+        private final int[] tile = new int[3];
+        private final int[] tileCount = new int[3];
+        private final int blockSize;
+        private final int bytePix;
+        private final int rowWidth;
+        private final int rows;
+        private final int columnOffset;
+        private final boolean longDescriptors;
+        private final int heapOffset;
+        private byte[] out;
+        private ByteBuffer outBuffer;
+        private int outDataOffset;
+
+        private CompressedImage(byte[] data, int length, int dataOffset, List<String> cards, Map<String, String> values) {
+            this.data = data;
+            this.length = length;
+            this.cards = cards;
+            String compression = values.get("ZCMPTYPE");
+            this.compression = (compression == null) ? "" : compression.toUpperCase();
+            String quantization = values.get("ZQUANTIZ");
+            if (((quantization != null) && (!quantization.equalsIgnoreCase("NONE"))) ||
+                    values.containsKey("ZSCALE") || values.containsKey("ZZERO") || hasScaleColumns(values))
+                throw new UnsupportedOperationException("Unsupported quantized FITS!");
+            bitPix = getInt(values, "ZBITPIX", 0);
+            if ((bitPix != 8) && (bitPix != 16) && (bitPix != 32) && (bitPix != -32) && (bitPix != -64))
+                throw new UnsupportedOperationException("Unsupported FITS BITPIX " + bitPix);
+            pixelSize = Math.abs(bitPix) / 8;
+            int naxis = getInt(values, "ZNAXIS", 0);
+            if ((naxis < 2) || (naxis > 3))
+                throw new UnsupportedOperationException("Unsupported FITS NAXIS " + naxis);
+            for (int i = 0; i < 3; i++) {
+                size[i] = (i < naxis) ? getInt(values, "ZNAXIS" + (i + 1), 0) : 1;
+                // Default: one row per tile
+                tile[i] = getInt(values, "ZTILE" + (i + 1), (i == 0) ? size[0] : 1);
+                if ((size[i] <= 0) || (tile[i] <= 0)) throw new IllegalStateException("Invalid FITS image");
+                tileCount[i] = (size[i] + tile[i] - 1) / tile[i];
+            }
+            int blockSize = 32, bytePix = 4;
+            for (int i = 1; values.containsKey("ZNAME" + i); i++) {
+                String name = values.get("ZNAME" + i).toUpperCase();
+                if (name.equals("BLOCKSIZE")) {
+                    blockSize = getInt(values, "ZVAL" + i, blockSize);
+                } else if (name.equals("BYTEPIX")) {
+                    bytePix = getInt(values, "ZVAL" + i, bytePix);
+                }
+            }
+            this.blockSize = blockSize;
+            this.bytePix = bytePix;
+            rowWidth = getInt(values, "NAXIS1", 0);
+            rows = getInt(values, "NAXIS2", 0);
+            if (rows != tileCount[0] * tileCount[1] * tileCount[2])
+                throw new IllegalStateException("Invalid FITS tile table!");
+            // Find the COMPRESSED_DATA column
+            int fields = getInt(values, "TFIELDS", 0), columnOffset = -1;
+            boolean longDescriptors = false;
+            for (int i = 1, offset = 0; i <= fields; i++) {
+                String form = values.get("TFORM" + i);
+                if (form == null) throw new IllegalStateException("Invalid FITS tile table!");
+                form = form.toUpperCase();
+                int j = 0;
+                while ((j < form.length()) && Character.isDigit(form.charAt(j))) {
+                    j++;
+                }
+                int repeat = (j == 0) ? 1 : Integer.parseInt(form.substring(0, j));
+                char type = form.charAt(j);
+                if ("COMPRESSED_DATA".equalsIgnoreCase(values.get("TTYPE" + i))) {
+                    if ((type != 'P') && (type != 'Q'))
+                        throw new UnsupportedOperationException("Unsupported FITS tile table!");
+                    columnOffset = offset;
+                    longDescriptors = (type == 'Q');
+                }
+                offset += columnWidth(type, repeat);
+            }
+            if (columnOffset == -1) throw new UnsupportedOperationException("Unsupported FITS tile table!");
+            this.columnOffset = dataOffset + columnOffset;
+            this.longDescriptors = longDescriptors;
+            heapOffset = dataOffset + getInt(values, "THEAP", rowWidth * rows);
+        }
+
+        /**
+         * @return {@code true} if the tile table has the per-tile scale and zero columns of quantized images.
+         */
+        private static boolean hasScaleColumns(Map<String, String> values) {
+            int fields = getInt(values, "TFIELDS", 0);
+            for (int i = 1; i <= fields; i++) {
+                String type = values.get("TTYPE" + i);
+                if ("ZSCALE".equalsIgnoreCase(type) || "ZZERO".equalsIgnoreCase(type)) return true;
+            }
+            return false;
+        }
+
+        private static int columnWidth(char type, int repeat) {
+            switch (type) {
+                case 'L':
+                case 'B':
+                case 'A':
+                    return repeat;
+                case 'X':
+                    return (repeat + 7) / 8;
+                case 'I':
+                    return 2 * repeat;
+                case 'J':
+                case 'E':
+                    return 4 * repeat;
+                case 'K':
+                case 'D':
+                case 'C':
+                case 'P':
+                    return 8 * repeat;
+                case 'M':
+                case 'Q':
+                    return 16 * repeat;
+                default:
+                    throw new UnsupportedOperationException("Unsupported FITS column type " + type);
+            }
+        }
+
+        private byte[] uncompress() throws IOException {
+            // Header of the uncompressed image
+            StringBuilder header = new StringBuilder();
+            header.append(card("SIMPLE", "T"));
+            header.append(card("BITPIX", String.valueOf(bitPix)));
+            int naxis = (size[2] > 1) ? 3 : 2;
+            header.append(card("NAXIS", String.valueOf(naxis)));
+            for (int i = 0; i < naxis; i++) {
+                header.append(card("NAXIS" + (i + 1), String.valueOf(size[i])));
+            }
+            for (String card : cards) {
+                if (!isTableKeyword(card.substring(0, 8).trim())) header.append(card);
+            }
+            header.append(String.format("%-80s", "END"));
+            byte[] headerBytes = header.toString().getBytes(StandardCharsets.US_ASCII);
+            outDataOffset = ((headerBytes.length + BLOCK_SIZE - 1) / BLOCK_SIZE) * BLOCK_SIZE;
+            long dataSize = (long) size[0] * size[1] * size[2] * pixelSize;
+            if (outDataOffset + dataSize > Integer.MAX_VALUE) throw new OutOfMemoryError("FITS image too large!");
+            out = new byte[(int) (outDataOffset + ((dataSize + BLOCK_SIZE - 1) / BLOCK_SIZE) * BLOCK_SIZE)];
+            Arrays.fill(out, 0, outDataOffset, (byte) ' ');
+            System.arraycopy(headerBytes, 0, out, 0, headerBytes.length);
+            outBuffer = ByteBuffer.wrap(out).order(ByteOrder.BIG_ENDIAN);
+            try {
+                ImagingService.getComputePool().invoke(new TilesTask(0, rows));
+            } catch (RuntimeException e) {
+                // Checked exceptions are wrapped by the tasks, and wrapped again when rethrown by another thread
+                for (Throwable cause = e.getCause(); cause != null; cause = cause.getCause()) {
+                    if (cause instanceof IOException) throw (IOException) cause;
+                }
+                throw e;
+            }
+            return out;
+        }
+
+        /**
+         * @param values buffer for the pixels of a Rice tile, reused across the tiles of a task.
+         */
+        private int[] uncompressTile(int index, int[] values) throws IOException {
+            int tx = index % tileCount[0], ty = (index / tileCount[0]) % tileCount[1],
+                    tz = index / (tileCount[0] * tileCount[1]),
+                    x0 = tx * tile[0], y0 = ty * tile[1], z0 = tz * tile[2],
+                    w = Math.min(tile[0], size[0] - x0), h = Math.min(tile[1], size[1] - y0),
+                    d = Math.min(tile[2], size[2] - z0), pixels = w * h * d;
+            // Variable-length array descriptor: element count and offset in the heap
+            ByteBuffer table = ByteBuffer.wrap(data, 0, length).order(ByteOrder.BIG_ENDIAN);
+            int descriptor = columnOffset + index * rowWidth;
+            long count, offset;
+            if (longDescriptors) {
+                count = table.getLong(descriptor);
+                offset = table.getLong(descriptor + 8);
+            } else {
+                count = table.getInt(descriptor) & 0xffffffffL;
+                offset = table.getInt(descriptor + 4) & 0xffffffffL;
+            }
+            long start = heapOffset + offset;
+            if (start + count > length) throw new EOFException("Truncated FITS tile!");
+            byte[] pixelBytes;
+            int pixelBytesOffset;
+            switch (compression) {
+                case "RICE_1":
+                case "RICE_ONE": {
+                    if (bitPix < 0) throw new UnsupportedOperationException("Unsupported Rice floating point FITS!");
+                    if ((values == null) || (values.length < pixels)) values = new int[pixels];
+                    riceDecompress(data, (int) start, (int) count, values, pixels, blockSize, bytePix);
+                    writeTile(values, x0, y0, z0, w, h, d);
+                    return values;
+                }
+                case "GZIP_1":
+                case "GZIP_2": {
+                    int tileBytes = pixels * pixelSize;
+                    boolean shuffled = compression.equals("GZIP_2");
+                    GZIPInputStream stream = new GZIPInputStream(new ByteArrayInputStream(data, (int) start, (int) count));
+                    if ((!shuffled) && (w == size[0]) && (h == size[1] || d == 1)) {
+                        // Contiguous in the image: decompress in place
+                        readFully(stream, out, outDataOffset + (int) ((((long) z0 * size[1] + y0) * size[0]) * pixelSize), tileBytes);
+                        stream.close();
+                        return values;
+                    }
+                    pixelBytes = new byte[tileBytes];
+                    readFully(stream, pixelBytes, 0, tileBytes);
+                    stream.close();
+                    if (shuffled) pixelBytes = unshuffle(pixelBytes);
+                    pixelBytesOffset = 0;
+                    break;
+                }
+                case "NOCOMPRESS": {
+                    if (count < (long) pixels * pixelSize) throw new EOFException("Truncated FITS tile!");
+                    pixelBytes = data;
+                    pixelBytesOffset = (int) start;
+                    break;
+                }
+                default:
+                    throw new UnsupportedOperationException("Unsupported FITS compression " + compression);
+            }
+            // Copy the tile one row at a time
+            int rowBytes = w * pixelSize;
+            for (int z = 0; z < d; z++) {
+                for (int y = 0; y < h; y++) {
+                    System.arraycopy(pixelBytes, pixelBytesOffset + ((z * h + y) * w) * pixelSize, out,
+                            outDataOffset + (int) ((((long) (z0 + z) * size[1] + y0 + y) * size[0] + x0) * pixelSize), rowBytes);
+                }
+            }
+            return values;
+        }
+
+        /**
+         * GZIP_2 stores the most significant bytes of all the pixels first, then the second bytes, and so on.
+         */
+        private byte[] unshuffle(byte[] shuffled) {
+            byte[] bytes = new byte[shuffled.length];
+            int pixels = shuffled.length / pixelSize;
+            for (int b = 0; b < pixelSize; b++) {
+                for (int i = 0, from = b * pixels; i < pixels; i++) {
+                    bytes[i * pixelSize + b] = shuffled[from + i];
+                }
+            }
+            return bytes;
+        }
+
+        private void writeTile(int[] values, int x0, int y0, int z0, int w, int h, int d) {
+            for (int z = 0, i = 0; z < d; z++) {
+                for (int y = 0; y < h; y++) {
+                    int pixel = (int) (((long) (z0 + z) * size[1] + y0 + y) * size[0] + x0),
+                            position = outDataOffset + pixel * pixelSize;
+                    switch (bitPix) {
+                        case 8:
+                            for (int x = 0; x < w; x++, position++) {
+                                out[position] = (byte) values[i++];
+                            }
+                            break;
+                        case 16:
+                            for (int x = 0; x < w; x++, position += 2) {
+                                outBuffer.putShort(position, (short) values[i++]);
+                            }
+                            break;
+                        default:
+                            for (int x = 0; x < w; x++, position += 4) {
+                                outBuffer.putInt(position, values[i++]);
+                            }
+                            break;
+                    }
+                }
+            }
+        }
+
+        private class TilesTask extends RecursiveAction {
+
+            private final int from;
+            private final int to;
+
+            private TilesTask(int from, int to) {
+                this.from = from;
+                this.to = to;
+            }
+
+            @Override
+            protected void compute() {
+                // Small tiles (e.g. one row each) are grouped to limit the overhead
+                if ((to - from) * (long) tile[0] * tile[1] * tile[2] <= (1 << 18) || (to - from == 1)) {
+                    try {
+                        int[] values = null;
+                        for (int i = from; i < to; i++) {
+                            values = uncompressTile(i, values);
+                        }
+                    } catch (IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                } else {
+                    int middle = (from + to) >>> 1;
+                    invokeAll(new TilesTask(from, middle), new TilesTask(middle, to));
+                }
+            }
+        }
+    }
+}
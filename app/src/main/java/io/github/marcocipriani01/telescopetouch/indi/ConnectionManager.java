@@ -42,16 +42,16 @@ import org.indilib.i4j.client.INDISwitchElement;
 import org.indilib.i4j.client.INDISwitchProperty;
 import org.indilib.i4j.properties.INDIStandardElement;
 
-import java.util.ArrayList;
+import java.io.File;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
 import io.github.marcocipriani01.telescopetouch.R;
 import io.github.marcocipriani01.telescopetouch.TelescopeTouchApp;
+import io.github.marcocipriani01.telescopetouch.UIEventBus;
 import io.github.marcocipriani01.telescopetouch.astronomy.EquatorialCoordinates;
 import io.github.marcocipriani01.telescopetouch.layers.TelescopeLayer;
 
@@ -63,13 +63,14 @@ import io.github.marcocipriani01.telescopetouch.layers.TelescopeLayer;
 public class ConnectionManager implements INDIServerConnectionListener, INDIDeviceListener, INDIPropertyListener {
 
     private static final String TAG = TelescopeTouchApp.getTag(ConnectionManager.class);
+    private static final int LOG_CAPACITY = 1000;
     public final EquatorialCoordinates telescopeCoordinates = new EquatorialCoordinates();
     public final Map<INDIDevice, INDICamera> indiCameras = new HashMap<>();
     public final Map<INDIDevice, INDIFocuser> indiFocusers = new HashMap<>();
     private final Handler uiHandler = new Handler(Looper.getMainLooper());
-    private final Set<ManagerListener> managerListeners = new HashSet<>();
+    private final UIEventBus.Channel<ManagerListener> managerEvents = UIEventBus.getInstance().newChannel();
     private final Set<INDIServerConnectionListener> indiListeners = new HashSet<>();
-    private final List<LogItem> logs = new ArrayList<>();
+    private final LogStore logs = new LogStore(LOG_CAPACITY);
     private final HandlerThread indiThread = new HandlerThread("INDI manager thread");
     // Telescope
     public volatile String telescopeName = null;
@@ -81,6 +82,7 @@ public class ConnectionManager implements INDIServerConnectionListener, INDIDevi
     public volatile INDISwitchElement telescopeOnCoordSetSlew = null;
     public volatile INDISwitchElement telescopeOnCoordSetTrack = null;
     private Handler indiHandler;
+    private PropertyDispatcher propertyDispatcher;
     // Formatting
     private java.text.DateFormat dateFormat = null;
     private java.text.DateFormat timeFormat = null;
@@ -103,20 +105,45 @@ public class ConnectionManager implements INDIServerConnectionListener, INDIDevi
         indiHandler.postDelayed(r, delayMillis);
     }
 
+    public void removeCallbacks(@NonNull Runnable r) {
+        indiHandler.removeCallbacks(r);
+    }
+
+    /**
+     * Sends the changes of the given properties to the drivers. Repeated updates of a property
+     * are merged and only its latest desired values are sent.
+     */
     public void updateProperties(INDIProperty<?>... properties) {
-        indiHandler.post(() -> {
-            try {
-                for (INDIProperty<?> prop : properties) {
-                    prop.sendChangesToDriver();
-                }
-            } catch (Exception e) {
-                Log.e(TAG, "Property update error!", e);
-                TelescopeTouchApp.connectionManager.log(e);
-            }
-        });
+        propertyDispatcher.update(properties);
+    }
+
+    /**
+     * Sends the given properties immediately, without merging them with other updates.
+     * Use this for commands, like aborts or relative movements, that must be sent every time.
+     */
+    public void sendProperties(INDIProperty<?>... properties) {
+        propertyDispatcher.send(properties);
+    }
+
+    /**
+     * @return the number of requested property updates, of properties sent to the drivers,
+     * of updates waiting to be sent, and the maximum number of updates ever waiting.
+     */
+    public long[] getPropertyUpdateCounters() {
+        return propertyDispatcher.getCounters();
     }
 
-    public List<LogItem> getLogs() {
+    /**
+     * @return how many property updates were requested for each property sent.
+     */
+    public double getPropertyCoalescingRatio() {
+        return propertyDispatcher.getCoalescingRatio();
+    }
+
+    /**
+     * @return the logs. Read them on the UI thread only.
+     */
+    public LogStore getLogs() {
         return logs;
     }
 
@@ -129,6 +156,9 @@ public class ConnectionManager implements INDIServerConnectionListener, INDIDevi
         preferences.edit().putBoolean(TelescopeLayer.PREFERENCE_ID, false).apply();
         indiThread.start();
         indiHandler = new Handler(indiThread.getLooper());
+        propertyDispatcher = new PropertyDispatcher(indiHandler);
+        // Logs older than the last LOG_CAPACITY are moved to the cache instead of being kept in memory
+        logs.setSpillFile(new File(context.getCacheDir(), "indi_logs.txt"), this::post);
     }
 
     public State getState() {
@@ -144,13 +174,7 @@ public class ConnectionManager implements INDIServerConnectionListener, INDIDevi
      * @param state the new state of the Connection button.
      */
     public void updateState(State state) {
-        uiHandler.post(() -> {
-            synchronized (managerListeners) {
-                for (ManagerListener listener : managerListeners) {
-                    listener.updateConnectionState(state);
-                }
-            }
-        });
+        managerEvents.post("connectionState", listener -> listener.updateConnectionState(state));
     }
 
     /**
@@ -207,15 +231,11 @@ public class ConnectionManager implements INDIServerConnectionListener, INDIDevi
      * @param message a new log.
      */
     public void log(String message) {
-        uiHandler.post(() -> {
+        managerEvents.run(null, () -> {
             Date now = new Date();
             LogItem log = new LogItem(message, dateFormat.format(now) + " " + timeFormat.format(now));
             logs.add(log);
-            synchronized (managerListeners) {
-                for (ManagerListener listener : managerListeners) {
-                    listener.addLog(log);
-                }
-            }
+            managerEvents.deliver(listener -> listener.addLog(log));
         });
     }
 
@@ -234,21 +254,12 @@ public class ConnectionManager implements INDIServerConnectionListener, INDIDevi
      * @param message a new log.
      */
     public void log(String message, INDIDevice device) {
-        uiHandler.post(() -> {
+        // Only the last message of a device is kept, older messages still waiting for a frame can be dropped
+        managerEvents.run(device, () -> {
             Date now = new Date();
             LogItem log = new LogItem(message, dateFormat.format(now) + " " + timeFormat.format(now), device);
-            for (int i = 0, logsSize = logs.size(); i < logsSize; i++) {
-                if (logs.get(i).getDevice() == log.getDevice()) {
-                    logs.remove(i);
-                    break;
-                }
-            }
             logs.add(log);
-            synchronized (managerListeners) {
-                for (ManagerListener listener : managerListeners) {
-                    listener.deviceLog(log);
-                }
-            }
+            managerEvents.deliver(listener -> listener.deviceLog(log));
         });
     }
 
@@ -256,18 +267,14 @@ public class ConnectionManager implements INDIServerConnectionListener, INDIDevi
      * @param listener a new {@link ManagerListener}
      */
     public void addManagerListener(ManagerListener listener) {
-        synchronized (managerListeners) {
-            managerListeners.add(listener);
-        }
+        managerEvents.addListener(listener);
     }
 
     /**
      * @param listener a new {@link ManagerListener}
      */
     public void removeManagerListener(ManagerListener listener) {
-        synchronized (managerListeners) {
-            managerListeners.remove(listener);
-        }
+        managerEvents.removeListener(listener);
     }
 
     /**
@@ -275,6 +282,8 @@ public class ConnectionManager implements INDIServerConnectionListener, INDIDevi
      */
     public void disconnect() {
         if (getState() == State.CONNECTED) {
+            propertyDispatcher.clear();
+            managerEvents.run(null, logs::flushSpill);
             indiHandler.post(() -> {
                 busy = true;
                 try {
@@ -333,13 +342,7 @@ public class ConnectionManager implements INDIServerConnectionListener, INDIDevi
             if (camera != null) {
                 camera.terminate();
                 indiCameras.remove(device);
-                uiHandler.post(() -> {
-                    synchronized (managerListeners) {
-                        for (ManagerListener listener : managerListeners) {
-                            listener.onCamerasListChange();
-                        }
-                    }
-                });
+                managerEvents.post("onCamerasListChange", ManagerListener::onCamerasListChange);
             }
         }
         synchronized (indiFocusers) {
@@ -347,13 +350,7 @@ public class ConnectionManager implements INDIServerConnectionListener, INDIDevi
             if (focuser != null) {
                 focuser.terminate();
                 indiFocusers.remove(device);
-                uiHandler.post(() -> {
-                    synchronized (managerListeners) {
-                        for (ManagerListener listener : managerListeners) {
-                            listener.onFocusersListChange();
-                        }
-                    }
-                });
+                managerEvents.post("onFocusersListChange", ManagerListener::onFocusersListChange);
             }
         }
     }
@@ -376,14 +373,8 @@ public class ConnectionManager implements INDIServerConnectionListener, INDIDevi
             indiFocusers.clear();
         }
         log(resources.getString(R.string.connection_lost));
-        uiHandler.post(() -> {
-            synchronized (managerListeners) {
-                for (ManagerListener listener : managerListeners) {
-                    listener.updateConnectionState(State.DISCONNECTED);
-                    listener.onConnectionLost();
-                }
-            }
-        });
+        managerEvents.post("connectionState", listener -> listener.updateConnectionState(State.DISCONNECTED));
+        managerEvents.post(ManagerListener::onConnectionLost);
     }
 
     @Override
@@ -440,18 +431,12 @@ public class ConnectionManager implements INDIServerConnectionListener, INDIDevi
         if (camera != null) {
             camera.processNewProp(property);
         } else if (INDICamera.isCameraProp(property)) {
-            camera = new INDICamera(device, context, uiHandler);
+            camera = new INDICamera(device, context);
             camera.processNewProp(property);
             synchronized (indiCameras) {
                 indiCameras.put(device, camera);
             }
-            uiHandler.post(() -> {
-                synchronized (managerListeners) {
-                    for (ManagerListener listener : managerListeners) {
-                        listener.onCamerasListChange();
-                    }
-                }
-            });
+            managerEvents.post("onCamerasListChange", ManagerListener::onCamerasListChange);
         }
 
         INDIFocuser focuser;
@@ -461,18 +446,12 @@ public class ConnectionManager implements INDIServerConnectionListener, INDIDevi
         if (focuser != null) {
             focuser.processNewProp(property);
         } else if (INDIFocuser.isFocuserProp(property)) {
-            focuser = new INDIFocuser(device, uiHandler);
+            focuser = new INDIFocuser(device);
             focuser.processNewProp(property);
             synchronized (indiFocusers) {
                 indiFocusers.put(device, focuser);
             }
-            uiHandler.post(() -> {
-                synchronized (managerListeners) {
-                    for (ManagerListener listener : managerListeners) {
-                        listener.onFocusersListChange();
-                    }
-                }
-            });
+            managerEvents.post("onFocusersListChange", ManagerListener::onFocusersListChange);
         }
     }
 
@@ -505,13 +484,7 @@ public class ConnectionManager implements INDIServerConnectionListener, INDIDevi
                 synchronized (indiCameras) {
                     indiCameras.remove(device);
                 }
-                uiHandler.post(() -> {
-                    synchronized (managerListeners) {
-                        for (ManagerListener listener : managerListeners) {
-                            listener.onCamerasListChange();
-                        }
-                    }
-                });
+                managerEvents.post("onCamerasListChange", ManagerListener::onCamerasListChange);
             }
         }
 
@@ -525,13 +498,7 @@ public class ConnectionManager implements INDIServerConnectionListener, INDIDevi
                 synchronized (indiFocusers) {
                     indiFocusers.remove(device);
                 }
-                uiHandler.post(() -> {
-                    synchronized (managerListeners) {
-                        for (ManagerListener listener : managerListeners) {
-                            listener.onFocusersListChange();
-                        }
-                    }
-                });
+                managerEvents.post("onFocusersListChange", ManagerListener::onFocusersListChange);
             }
         }
     }
@@ -603,6 +570,10 @@ public class ConnectionManager implements INDIServerConnectionListener, INDIDevi
         private final String log;
         private final String timestamp;
         private INDIDevice device = null;
+        /**
+         * Position in the {@link LogStore}.
+         */
+        long sequence = -1;
 
         LogItem(@NonNull String log, @NonNull String timestamp) {
             this.log = log;
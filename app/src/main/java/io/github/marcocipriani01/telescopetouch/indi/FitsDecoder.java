@@ -0,0 +1,443 @@
+/*
+ * Copyright 2021 Marco Cipriani (@marcocipriani01)
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package io.github.marcocipriani01.telescopetouch.indi;
+
+import androidx.annotation.NonNull;
+
+import java.io.EOFException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Decodes uncompressed FITS images directly from the BLOB bytes, converting whole rows at a time
+ * into ARGB pixels. It doesn't depend on the Android framework, so that it can be used off-device.
+ * <p>
+ * All the standard BITPIX values are supported. Pixels are first converted to 16-bit levels: integer
+ * data that, once scaled with BZERO and BSCALE, fits in the 16-bit range is used as is, everything else
+ * (including floating point data) is linearly mapped from its minimum and maximum values.
+ *
+ * @author marcocipriani01
+ */
+public class FitsDecoder {
+
+    private static final int CARD_SIZE = 80;
+    private static final int BLOCK_SIZE = 2880;
+    private static final int MAX_LEVEL = ImageStretcher.LEVELS - 1;
+    private static final int HISTOGRAM_CHUNK = 1 << 16;
+    private final Map<String, String> cards = new HashMap<>();
+    private final int dataOffset;
+    private final int width;
+    private final int height;
+    private final int channels;
+    private final int bitPerPix;
+    private final double bZero;
+    private final double bScale;
+    private ByteBuffer bytes = null;
+    private ShortBuffer shorts = null;
+    private IntBuffer ints = null;
+    private FloatBuffer floats = null;
+    private DoubleBuffer doubles = null;
+    private double levelOffset = 0.0;
+    private double levelScale = 1.0;
+
+    public FitsDecoder(@NonNull byte[] data) throws EOFException {
+        this(data, data.length);
+    }
+
+    public FitsDecoder(@NonNull byte[] data, int length) throws EOFException {
+        length = Math.min(length, data.length);
+        int offset = 0;
+        boolean end = false;
+        while (offset + CARD_SIZE <= length) {
+            String card = new String(data, offset, CARD_SIZE, StandardCharsets.US_ASCII);
+            offset += CARD_SIZE;
+            String key = (card.length() > 8) ? card.substring(0, 8).trim() : card.trim();
+            if (key.equals("END")) {
+                end = true;
+                break;
+            }
+            if ((card.length() > 10) && (card.charAt(8) == '=')) cards.put(key, parseValue(card.substring(10)));
+        }
+        if (!end) throw new EOFException("FITS header not terminated!");
+        // The data unit starts at the beginning of the next 2880 bytes block
+        dataOffset = ((offset + BLOCK_SIZE - 1) / BLOCK_SIZE) * BLOCK_SIZE;
+        bitPerPix = getInt("BITPIX", 0);
+        int naxis = getInt("NAXIS", 0);
+        width = getInt("NAXIS1", 0);
+        height = getInt("NAXIS2", 0);
+        if ((bitPerPix == 0) || (width <= 0) || (height <= 0))
+            throw new IllegalStateException("Invalid FITS image");
+        if (naxis == 2) {
+            channels = 1;
+        } else if (naxis == 3) {
+            channels = getInt("NAXIS3", 1);
+            if ((channels != 1) && (channels != 3))
+                throw new UnsupportedOperationException("Unsupported number of color planes: " + channels);
+        } else {
+            throw new UnsupportedOperationException("Unsupported FITS NAXIS " + naxis);
+        }
+        bZero = getDouble("BZERO", 0.0);
+        bScale = getDouble("BSCALE", 1.0);
+        long pixels = (long) width * height * channels;
+        if (dataOffset + pixels * (Math.abs(bitPerPix) / 8) > length)
+            throw new EOFException("Truncated FITS image!");
+        ByteBuffer buffer = ByteBuffer.wrap(data, dataOffset, length - dataOffset).slice().order(ByteOrder.BIG_ENDIAN);
+        switch (bitPerPix) {
+            case 8:
+                bytes = buffer;
+                // Signed bytes (BZERO = -128) and other scaled data
+                if ((bZero != 0.0) || (bScale != 1.0)) findLevelRange((int) pixels, 255.0);
+                break;
+            case 16:
+                shorts = buffer.asShortBuffer();
+                // Anything but unsigned 16-bit data, like signed levels (BZERO = 0)
+                if ((bZero != 32768.0) || (bScale != 1.0)) findLevelRange((int) pixels, 65535.0);
+                break;
+            case 32:
+                ints = buffer.asIntBuffer();
+                findLevelRange((int) pixels, 65535.0);
+                break;
+            case -32:
+                floats = buffer.asFloatBuffer();
+                findLevelRange((int) pixels, 1.0);
+                break;
+            case -64:
+                doubles = buffer.asDoubleBuffer();
+                findLevelRange((int) pixels, 1.0);
+                break;
+            default:
+                throw new UnsupportedOperationException("Unsupported FITS BITPIX " + bitPerPix);
+        }
+    }
+
+    /**
+     * Creates a decoder for 16-bit levels that were already converted from another image,
+     * stored like unsigned 16-bit FITS data.
+     *
+     * @param cards the header of the original image.
+     * @see FrameHistory
+     */
+    FitsDecoder(@NonNull Map<String, String> cards, @NonNull ShortBuffer levels, int width, int height, int channels) {
+        this.cards.putAll(cards);
+        this.cards.put("BITPIX", "16");
+        this.cards.put("BZERO", "32768");
+        this.cards.put("BSCALE", "1");
+        this.dataOffset = 0;
+        this.width = width;
+        this.height = height;
+        this.channels = channels;
+        this.bitPerPix = 16;
+        this.bZero = 32768.0;
+        this.bScale = 1.0;
+        this.shorts = levels;
+    }
+
+    public static boolean isFITS(String format) {
+        return format.equals(".fits") || format.equals(".fit") || format.equals(".fts");
+    }
+
+    static String parseValue(String value) {
+        value = value.trim();
+        if (value.startsWith("'")) {
+            int end = value.indexOf('\'', 1);
+            return (end == -1) ? value.substring(1).trim() : value.substring(1, end).trim();
+        }
+        int comment = value.indexOf('/');
+        return ((comment == -1) ? value : value.substring(0, comment)).trim();
+    }
+
+    /**
+     * @return a copy of all the header cards.
+     */
+    Map<String, String> getCards() {
+        return new HashMap<>(cards);
+    }
+
+    public String getString(String key) {
+        return cards.get(key);
+    }
+
+    public int getInt(String key, int defaultValue) {
+        String value = cards.get(key);
+        if (value == null) return defaultValue;
+        try {
+            return (int) Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    public double getDouble(String key, double defaultValue) {
+        String value = cards.get(key);
+        if (value == null) return defaultValue;
+        try {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getBitPerPix() {
+        return bitPerPix;
+    }
+
+    /**
+     * @return 1 for grayscale and Bayer images, 3 for RGB images stored as three planes.
+     */
+    public int getChannels() {
+        return channels;
+    }
+
+    /**
+     * @return the color filter array pattern of the sensor, like {@code RGGB}, or {@code null} if this
+     * isn't a raw single-plane image with a supported Bayer matrix.
+     */
+    public String getBayerPattern() {
+        if (channels != 1) return null;
+        String pattern = cards.get("BAYERPAT");
+        if (pattern == null) return null;
+        pattern = pattern.toUpperCase();
+        switch (pattern) {
+            case "RGGB":
+            case "BGGR":
+            case "GRBG":
+            case "GBRG":
+                return pattern;
+            default:
+                return null;
+        }
+    }
+
+    public int getBayerOffsetX() {
+        return getInt("XBAYROFF", 0);
+    }
+
+    public int getBayerOffsetY() {
+        return getInt("YBAYROFF", 0);
+    }
+
+    public double getBZero() {
+        return bZero;
+    }
+
+    public double getBScale() {
+        return bScale;
+    }
+
+    /**
+     * Finds the minimum and maximum physical values of scaled 8 and 16-bit, 32-bit and floating point images to map them
+     * to 16-bit levels. If all the values are between 0 and {@code nativeMax}, that range is used instead.
+     */
+    private void findLevelRange(int pixels, double nativeMax) {
+        double min = Double.POSITIVE_INFINITY, max = Double.NEGATIVE_INFINITY;
+        if (bytes != null) {
+            int rawMin = 255, rawMax = 0;
+            for (int i = 0; i < pixels; i++) {
+                int val = bytes.get(i) & 0xff;
+                if (val < rawMin) rawMin = val;
+                if (val > rawMax) rawMax = val;
+            }
+            double a = bZero + bScale * rawMin, b = bZero + bScale * rawMax;
+            min = Math.min(a, b);
+            max = Math.max(a, b);
+        } else if (shorts != null) {
+            int rawMin = Short.MAX_VALUE, rawMax = Short.MIN_VALUE;
+            for (int i = 0; i < pixels; i++) {
+                int val = shorts.get(i);
+                if (val < rawMin) rawMin = val;
+                if (val > rawMax) rawMax = val;
+            }
+            double a = bZero + bScale * rawMin, b = bZero + bScale * rawMax;
+            min = Math.min(a, b);
+            max = Math.max(a, b);
+        } else if (ints != null) {
+            int rawMin = Integer.MAX_VALUE, rawMax = Integer.MIN_VALUE;
+            for (int i = 0; i < pixels; i++) {
+                int val = ints.get(i);
+                if (val < rawMin) rawMin = val;
+                if (val > rawMax) rawMax = val;
+            }
+            double a = bZero + bScale * rawMin, b = bZero + bScale * rawMax;
+            min = Math.min(a, b);
+            max = Math.max(a, b);
+        } else if (floats != null) {
+            for (int i = 0; i < pixels; i++) {
+                float val = floats.get(i);
+                // NaN fails both comparisons
+                if (val < min) min = val;
+                if (val > max) max = val;
+            }
+            double a = bZero + bScale * min, b = bZero + bScale * max;
+            min = Math.min(a, b);
+            max = Math.max(a, b);
+        } else {
+            for (int i = 0; i < pixels; i++) {
+                double val = doubles.get(i);
+                if (val < min) min = val;
+                if (val > max) max = val;
+            }
+            double a = bZero + bScale * min, b = bZero + bScale * max;
+            min = Math.min(a, b);
+            max = Math.max(a, b);
+        }
+        if (min > max) {
+            // Only NaNs
+            levelOffset = 0.0;
+            levelScale = 0.0;
+        } else if ((min >= 0.0) && (max <= nativeMax)) {
+            levelOffset = 0.0;
+            levelScale = MAX_LEVEL / nativeMax;
+        } else {
+            levelOffset = min;
+            levelScale = (max > min) ? (MAX_LEVEL / (max - min)) : 0.0;
+        }
+    }
+
+    /**
+     * Converts a run of consecutive pixels into 16-bit levels. Every BITPIX has its own loop and scaling path.
+     *
+     * @param index        the index of the first pixel in the data unit.
+     * @param count        how many pixels to read.
+     * @param levels       the output array.
+     * @param levelsOffset where to start writing in the output array.
+     */
+    public void readLevels(int index, int count, int[] levels, int levelsOffset) {
+        int end = levelsOffset + count;
+        switch (bitPerPix) {
+            case 8: {
+                if ((bScale == 1.0) && (bZero == 0.0)) {
+                    for (int i = levelsOffset, j = index; i < end; i++, j++) {
+                        levels[i] = (bytes.get(j) & 0xff) * 257;
+                    }
+                } else {
+                    double scale = bScale * levelScale, offset = (bZero - levelOffset) * levelScale;
+                    for (int i = levelsOffset, j = index; i < end; i++, j++) {
+                        levels[i] = clamp(offset + scale * (bytes.get(j) & 0xff));
+                    }
+                }
+                break;
+            }
+            case 16: {
+                if ((bScale == 1.0) && (bZero == 32768.0)) {
+                    // Unsigned 16-bit data, the most common case for CCD drivers
+                    for (int i = levelsOffset, j = index; i < end; i++, j++) {
+                        levels[i] = shorts.get(j) + 32768;
+                    }
+                } else if ((bScale == 1.0) && (bZero == 0.0) && (levelOffset == 0.0) && (levelScale == 1.0)) {
+                    // Signed 16-bit data without negative levels
+                    for (int i = levelsOffset, j = index; i < end; i++, j++) {
+                        levels[i] = shorts.get(j);
+                    }
+                } else {
+                    double scale = bScale * levelScale, offset = (bZero - levelOffset) * levelScale;
+                    for (int i = levelsOffset, j = index; i < end; i++, j++) {
+                        levels[i] = clamp(offset + scale * shorts.get(j));
+                    }
+                }
+                break;
+            }
+            case 32: {
+                double scale = bScale * levelScale, offset = (bZero - levelOffset) * levelScale;
+                for (int i = levelsOffset, j = index; i < end; i++, j++) {
+                    levels[i] = clamp(offset + scale * ints.get(j));
+                }
+                break;
+            }
+            case -32: {
+                float scale = (float) (bScale * levelScale), offset = (float) ((bZero - levelOffset) * levelScale);
+                for (int i = levelsOffset, j = index; i < end; i++, j++) {
+                    levels[i] = clamp(offset + scale * floats.get(j));
+                }
+                break;
+            }
+            case -64: {
+                double scale = bScale * levelScale, offset = (bZero - levelOffset) * levelScale;
+                for (int i = levelsOffset, j = index; i < end; i++, j++) {
+                    levels[i] = clamp(offset + scale * doubles.get(j));
+                }
+                break;
+            }
+        }
+    }
+
+    private static int clamp(double level) {
+        // NaN is converted to 0
+        int val = (int) (level + 0.5);
+        return (val < 0) ? 0 : Math.min(val, MAX_LEVEL);
+    }
+
+    /**
+     * Adds every pixel of the image (of its first plane, for RGB images) to the given 16-bit histogram.
+     */
+    public void computeHistogram(int[] histogram) {
+        if (histogram.length < ImageStretcher.LEVELS)
+            throw new IllegalArgumentException("Histogram too small!");
+        int pixels = width * height;
+        int[] levels = new int[Math.min(pixels, HISTOGRAM_CHUNK)];
+        for (int i = 0; i < pixels; i += levels.length) {
+            int count = Math.min(levels.length, pixels - i);
+            readLevels(i, count, levels, 0);
+            for (int j = 0; j < count; j++) {
+                histogram[levels[j]]++;
+            }
+        }
+    }
+
+    /**
+     * Converts the given rows into opaque grayscale ARGB pixels without any stretch.
+     *
+     * @see #decodeRows(int, int, int[], int[])
+     */
+    public void decodeRows(int firstRow, int rowCount, int[] argb) {
+        decodeRows(firstRow, rowCount, argb, ImageStretcher.getLinearLut());
+    }
+
+    /**
+     * Converts the given rows into ARGB pixels, mapping every 16-bit level through a lookup table.
+     *
+     * @param firstRow the first row to decode.
+     * @param rowCount how many rows to decode.
+     * @param argb     the output buffer, at least {@code rowCount * width} long.
+     * @param lut      a lookup table from 16-bit levels to ARGB colors, see {@link ImageStretcher}.
+     */
+    public void decodeRows(int firstRow, int rowCount, int[] argb, int[] lut) {
+        if ((firstRow < 0) || (rowCount < 0) || (firstRow + rowCount > height))
+            throw new IndexOutOfBoundsException("Invalid rows!");
+        int pixels = rowCount * width;
+        if (argb.length < pixels) throw new IllegalArgumentException("Buffer too small!");
+        readLevels(firstRow * width, pixels, argb, 0);
+        for (int i = 0; i < pixels; i++) {
+            argb[i] = lut[argb[i]];
+        }
+    }
+}
@@ -0,0 +1,431 @@
+/*
+ * Copyright 2021 Marco Cipriani (@marcocipriani01)
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package io.github.marcocipriani01.telescopetouch.indi;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Converts a {@link FitsDecoder} image into ARGB rows, debayering raw color frames (bilinear interpolation)
+ * and combining RGB planes. The image is split in bands of rows that are processed in parallel on a
+ * fork-join pool; every band is handed to a {@link RowSink} as soon as it's ready.
+ *
+ * @author marcocipriani01
+ */
+public class FitsRenderer {
+
+    private static final int BAND_PIXELS = 1 << 18;
+    private static final int RED = 0, GREEN = 1, BLUE = 2;
+    private static final int MAX_BINNING = 128;
+    private final FitsDecoder decoder;
+    private final int width;
+    private final int height;
+    private final Mode mode;
+    /**
+     * Color of every cell of the 2x2 Bayer matrix, indexed by {@code (rowParity << 1) | columnParity}.
+     */
+    private final int[] cfa = new int[4];
+    private final int bayerOffsetX;
+    private final int bayerOffsetY;
+    private volatile ImagePool bufferPool = null;
+
+    public FitsRenderer(@NonNull FitsDecoder decoder) {
+        this.decoder = decoder;
+        this.width = decoder.getWidth();
+        this.height = decoder.getHeight();
+        String pattern = decoder.getBayerPattern();
+        if (decoder.getChannels() == 3) {
+            mode = Mode.RGB;
+        } else if ((pattern != null) && (width > 1) && (height > 1)) {
+            mode = Mode.BAYER;
+            for (int i = 0; i < 4; i++) {
+                char c = pattern.charAt(i);
+                cfa[i] = (c == 'R') ? RED : ((c == 'G') ? GREEN : BLUE);
+            }
+        } else {
+            mode = Mode.MONO;
+        }
+        bayerOffsetX = decoder.getBayerOffsetX();
+        bayerOffsetY = decoder.getBayerOffsetY();
+    }
+
+    /**
+     * @param bufferPool where the temporary pixel buffers of the rendering are taken from, or {@code null}.
+     */
+    public void setBufferPool(@Nullable ImagePool bufferPool) {
+        this.bufferPool = bufferPool;
+    }
+
+    private int[] obtainBuffer(int length) {
+        ImagePool bufferPool = this.bufferPool;
+        return (bufferPool == null) ? new int[length] : bufferPool.obtainBuffer(length);
+    }
+
+    private void releaseBuffer(int[] buffer) {
+        ImagePool bufferPool = this.bufferPool;
+        if (bufferPool != null) bufferPool.release(buffer);
+    }
+
+    private static int mirror(int i, int size) {
+        if (i < 0) return Math.min(-i, size - 1);
+        if (i >= size) return Math.max(2 * size - 2 - i, 0);
+        return i;
+    }
+
+    private static int rgb(int[][] luts, int r, int g, int b) {
+        return 0xff000000 | (luts[RED][r] & 0xff0000) | (luts[GREEN][g] & 0xff00) | (luts[BLUE][b] & 0xff);
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public boolean isColor() {
+        return mode != Mode.MONO;
+    }
+
+    /**
+     * @return how many lookup tables {@link #render(int[][], RowSink)} expects: one per color channel.
+     */
+    public int getChannels() {
+        return (mode == Mode.MONO) ? 1 : 3;
+    }
+
+    public int[][] getLinearLuts() {
+        int[][] luts = new int[getChannels()][];
+        for (int i = 0; i < luts.length; i++) {
+            luts[i] = ImageStretcher.getLinearLut();
+        }
+        return luts;
+    }
+
+    /**
+     * Computes the histogram of every color channel and returns one stretch lookup table per channel.
+     *
+     * @param stretchers at least {@link #getChannels()} stretchers, reused between frames.
+     */
+    public int[][] computeStretch(@NonNull ImageStretcher[] stretchers) {
+        int channels = getChannels();
+        if (stretchers.length < channels) throw new IllegalArgumentException("Not enough stretchers!");
+        switch (mode) {
+            case MONO: {
+                decoder.computeHistogram(stretchers[0].resetHistogram());
+                break;
+            }
+            case BAYER: {
+                int[][] histograms = new int[3][];
+                for (int i = 0; i < 3; i++) {
+                    histograms[i] = stretchers[i].resetHistogram();
+                }
+                int[] levels = new int[width];
+                for (int y = 0; y < height; y++) {
+                    decoder.readLevels(y * width, width, levels, 0);
+                    int rowPhase = ((y + bayerOffsetY) & 1) << 1;
+                    int[] even = histograms[cfa[rowPhase | (bayerOffsetX & 1)]],
+                            odd = histograms[cfa[rowPhase | ((bayerOffsetX + 1) & 1)]];
+                    for (int x = 0; x < width - 1; x += 2) {
+                        even[levels[x]]++;
+                        odd[levels[x + 1]]++;
+                    }
+                    if ((width & 1) == 1) even[levels[width - 1]]++;
+                }
+                break;
+            }
+            case RGB: {
+                int planeSize = width * height;
+                int[] levels = new int[width];
+                for (int c = 0; c < 3; c++) {
+                    int[] histogram = stretchers[c].resetHistogram();
+                    for (int y = 0; y < height; y++) {
+                        decoder.readLevels(c * planeSize + y * width, width, levels, 0);
+                        for (int x = 0; x < width; x++) {
+                            histogram[levels[x]]++;
+                        }
+                    }
+                }
+                break;
+            }
+        }
+        int[][] luts = new int[channels][];
+        for (int i = 0; i < channels; i++) {
+            luts[i] = stretchers[i].computeLut();
+        }
+        return luts;
+    }
+
+    /**
+     * Renders the whole image in parallel. The sink may be called concurrently from different threads.
+     *
+     * @param luts one lookup table for each color channel, see {@link ImageStretcher}.
+     * @param sink receives the ARGB pixels, one band of rows at a time.
+     */
+    public void render(@NonNull int[][] luts, @NonNull RowSink sink) {
+        renderRegion(luts, 0, 0, width, height, sink);
+    }
+
+    /**
+     * Renders a rectangular region of the image at full resolution, in parallel.
+     * Row indices passed to the sink are relative to the top of the region.
+     *
+     * @see #render(int[][], RowSink)
+     */
+    public void renderRegion(@NonNull int[][] luts, int x, int y, int regionWidth, int regionHeight, @NonNull RowSink sink) {
+        if ((x < 0) || (y < 0) || (regionWidth <= 0) || (regionHeight <= 0) ||
+                (x + regionWidth > width) || (y + regionHeight > height))
+            throw new IndexOutOfBoundsException("Invalid region!");
+        run(new Job(x, y, regionWidth, 1, luts, sink), regionHeight);
+    }
+
+    /**
+     * @return the binning factor that will be actually used for the requested one. Bayer images
+     * can only be binned by even factors, so that every block contains a whole number of Bayer matrices.
+     */
+    public int getBinningFactor(int requested) {
+        int factor = Math.max(1, Math.min(requested, Math.min(MAX_BINNING, Math.min(width, height))));
+        if ((mode == Mode.BAYER) && (factor > 1) && ((factor & 1) == 1))
+            factor = (factor + 1 <= Math.min(width, height)) ? (factor + 1) : (factor - 1);
+        return factor;
+    }
+
+    /**
+     * Renders a downscaled copy of the image, averaging blocks of {@code factor * factor} pixels.
+     * Bayer images are demosaiced by the binning itself (superpixel), so no interpolation takes place.
+     *
+     * @param factor the requested binning factor, see {@link #getBinningFactor(int)}.
+     *               The output image is {@code width / factor} by {@code height / factor} pixels.
+     * @see #render(int[][], RowSink)
+     */
+    public void renderBinned(@NonNull int[][] luts, int factor, @NonNull RowSink sink) {
+        factor = getBinningFactor(factor);
+        run(new Job(0, 0, width / factor, factor, luts, sink), height / factor);
+    }
+
+    private void run(Job job, int rows) {
+        if (job.luts.length < getChannels()) throw new IllegalArgumentException("Not enough lookup tables!");
+        int bandRows = Math.max(2, BAND_PIXELS / (job.columns * job.factor * job.factor));
+        ImagingService.getComputePool().invoke(new BandTask(job, 0, rows, bandRows));
+    }
+
+    private void renderBand(Job job, int firstRow, int rowCount) {
+        int[] argb = obtainBuffer(rowCount * job.columns);
+        if (job.factor > 1) {
+            binBand(job, firstRow, rowCount, argb);
+        } else {
+            int columns = job.columns, top = job.y + firstRow;
+            switch (mode) {
+                case MONO: {
+                    for (int r = 0; r < rowCount; r++) {
+                        decoder.readLevels((top + r) * width + job.x, columns, argb, r * columns);
+                    }
+                    int[] lut = job.luts[0];
+                    for (int i = 0, pixels = rowCount * columns; i < pixels; i++) {
+                        argb[i] = lut[argb[i]];
+                    }
+                    break;
+                }
+                case BAYER: {
+                    debayerBand(job, top, rowCount, argb);
+                    break;
+                }
+                case RGB: {
+                    int planeSize = width * height;
+                    int[] green = new int[columns], blue = new int[columns];
+                    for (int r = 0; r < rowCount; r++) {
+                        int start = (top + r) * width + job.x, offset = r * columns;
+                        decoder.readLevels(start, columns, argb, offset);
+                        decoder.readLevels(planeSize + start, columns, green, 0);
+                        decoder.readLevels(2 * planeSize + start, columns, blue, 0);
+                        for (int i = 0; i < columns; i++) {
+                            argb[offset + i] = rgb(job.luts, argb[offset + i], green[i], blue[i]);
+                        }
+                    }
+                    break;
+                }
+            }
+        }
+        job.sink.setRows(argb, firstRow, rowCount);
+        releaseBuffer(argb);
+    }
+
+    /**
+     * Bilinear demosaicing: every missing channel is the average of the closest pixels of that color.
+     * Image borders are mirrored, which preserves the Bayer matrix.
+     */
+    private void debayerBand(Job job, int top, int rowCount, int[] argb) {
+        // The band plus one row above and one below
+        int[] levels = obtainBuffer((rowCount + 2) * width);
+        for (int r = 0; r < rowCount + 2; r++) {
+            decoder.readLevels(mirror(top - 1 + r, height) * width, width, levels, r * width);
+        }
+        int[] channels = new int[3];
+        int firstColumn = job.x, lastColumn = job.x + job.columns;
+        for (int r = 0; r < rowCount; r++) {
+            int up = r * width, mid = up + width, down = mid + width, out = r * job.columns - firstColumn,
+                    rowPhase = ((top + r + bayerOffsetY) & 1) << 1;
+            for (int x = firstColumn; x < lastColumn; x++) {
+                int left = mirror(x - 1, width), right = mirror(x + 1, width),
+                        phase = rowPhase | ((x + bayerOffsetX) & 1), color = cfa[phase];
+                channels[color] = levels[mid + x];
+                if (color == GREEN) {
+                    channels[cfa[phase ^ 1]] = (levels[mid + left] + levels[mid + right]) >> 1;
+                    channels[cfa[phase ^ 2]] = (levels[up + x] + levels[down + x]) >> 1;
+                } else {
+                    channels[GREEN] = (levels[up + x] + levels[down + x] + levels[mid + left] + levels[mid + right]) >> 2;
+                    channels[cfa[phase ^ 3]] = (levels[up + left] + levels[up + right] +
+                            levels[down + left] + levels[down + right]) >> 2;
+                }
+                argb[out + x] = rgb(job.luts, channels[RED], channels[GREEN], channels[BLUE]);
+            }
+        }
+        releaseBuffer(levels);
+    }
+
+    private void binBand(Job job, int firstRow, int rowCount, int[] argb) {
+        int factor = job.factor, columns = job.columns, blockSize = factor * factor;
+        int[] levels = obtainBuffer(factor * width);
+        switch (mode) {
+            case MONO: {
+                int[] lut = job.luts[0];
+                for (int r = 0; r < rowCount; r++) {
+                    decoder.readLevels((firstRow + r) * factor * width, factor * width, levels, 0);
+                    for (int c = 0; c < columns; c++) {
+                        int sum = 0;
+                        for (int k = 0, row = c * factor; k < factor; k++, row += width) {
+                            for (int i = row, end = row + factor; i < end; i++) {
+                                sum += levels[i];
+                            }
+                        }
+                        argb[r * columns + c] = lut[sum / blockSize];
+                    }
+                }
+                break;
+            }
+            case BAYER: {
+                int[] sums = new int[3];
+                // Every block contains (factor / 2)^2 Bayer matrices
+                int redBlue = blockSize / 4, green = blockSize / 2;
+                for (int r = 0; r < rowCount; r++) {
+                    int top = (firstRow + r) * factor;
+                    decoder.readLevels(top * width, factor * width, levels, 0);
+                    for (int c = 0; c < columns; c++) {
+                        sums[RED] = sums[GREEN] = sums[BLUE] = 0;
+                        for (int k = 0; k < factor; k++) {
+                            int rowPhase = ((top + k + bayerOffsetY) & 1) << 1;
+                            for (int x = c * factor, end = x + factor, i = k * width + x; x < end; x++, i++) {
+                                sums[cfa[rowPhase | ((x + bayerOffsetX) & 1)]] += levels[i];
+                            }
+                        }
+                        argb[r * columns + c] = rgb(job.luts, sums[RED] / redBlue, sums[GREEN] / green, sums[BLUE] / redBlue);
+                    }
+                }
+                break;
+            }
+            case RGB: {
+                int planeSize = width * height;
+                int[][] channels = new int[3][columns];
+                for (int r = 0; r < rowCount; r++) {
+                    for (int plane = 0; plane < 3; plane++) {
+                        decoder.readLevels(plane * planeSize + (firstRow + r) * factor * width, factor * width, levels, 0);
+                        int[] channel = channels[plane];
+                        for (int c = 0; c < columns; c++) {
+                            int sum = 0;
+                            for (int k = 0, row = c * factor; k < factor; k++, row += width) {
+                                for (int i = row, end = row + factor; i < end; i++) {
+                                    sum += levels[i];
+                                }
+                            }
+                            channel[c] = sum / blockSize;
+                        }
+                    }
+                    for (int c = 0; c < columns; c++) {
+                        argb[r * columns + c] = rgb(job.luts, channels[RED][c], channels[GREEN][c], channels[BLUE][c]);
+                    }
+                }
+                break;
+            }
+        }
+        releaseBuffer(levels);
+    }
+
+    private enum Mode {
+        MONO, BAYER, RGB
+    }
+
+    public interface RowSink {
+        /**
+         * @param argb     the pixels, {@code rowCount * width} long, where width is the one of the output.
+         * @param firstRow the index of the first row in the output.
+         * @param rowCount the number of rows.
+         */
+        void setRows(int[] argb, int firstRow, int rowCount);
+    }
+
+    /**
+     * Describes what to render: a region of the image, possibly binned.
+     */
+    private static class Job {
+
+        private final int x;
+        private final int y;
+        private final int columns;
+        private final int factor;
+        private final int[][] luts;
+        private final RowSink sink;
+
+        private Job(int x, int y, int columns, int factor, int[][] luts, RowSink sink) {
+            this.x = x;
+            this.y = y;
+            this.columns = columns;
+            this.factor = factor;
+            this.luts = luts;
+            this.sink = sink;
+        }
+    }
+
+    private class BandTask extends RecursiveAction {
+
+        private final Job job;
+        private final int firstRow;
+        private final int rowCount;
+        private final int bandRows;
+
+        private BandTask(Job job, int firstRow, int rowCount, int bandRows) {
+            this.job = job;
+            this.firstRow = firstRow;
+            this.rowCount = rowCount;
+            this.bandRows = bandRows;
+        }
+
+        @Override
+        protected void compute() {
+            if (rowCount <= bandRows) {
+                renderBand(job, firstRow, rowCount);
+            } else {
+                int half = Math.max(bandRows, ((rowCount / 2) / bandRows) * bandRows);
+                invokeAll(new BandTask(job, firstRow, half, bandRows),
+                        new BandTask(job, firstRow + half, rowCount - half, bandRows));
+            }
+        }
+    }
+}
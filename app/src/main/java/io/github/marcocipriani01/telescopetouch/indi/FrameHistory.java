@@ -0,0 +1,266 @@
+/*
+ * Copyright 2021 Marco Cipriani (@marcocipriani01)
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package io.github.marcocipriani01.telescopetouch.indi;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Ring buffer of the last decoded FITS frames, stored as 16-bit levels in direct buffers, so that they can be
+ * blinked and stretched again without downloading or decoding them another time.
+ * The oldest frames are discarded when the buffer is full or when its memory exceeds the budget.
+ * All methods are thread-safe.
+ *
+ * @author marcocipriani01
+ */
+public class FrameHistory {
+
+    private static final int CHUNK = 1 << 16;
+    private final ArrayDeque<Entry> frames = new ArrayDeque<>();
+    private int capacity;
+    private long maxBytes;
+    private long usedBytes = 0;
+    private long nextId = 0;
+
+    /**
+     * @param capacity how many frames to keep, 0 to disable the history.
+     * @param maxBytes the maximum amount of memory used by the frames.
+     */
+    public FrameHistory(int capacity, long maxBytes) {
+        this.capacity = Math.max(0, capacity);
+        this.maxBytes = maxBytes;
+    }
+
+    public synchronized int getCapacity() {
+        return capacity;
+    }
+
+    public synchronized void setCapacity(int capacity) {
+        this.capacity = Math.max(0, capacity);
+        trim(0);
+    }
+
+    public synchronized long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public synchronized void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+        trim(0);
+    }
+
+    public synchronized long getUsedBytes() {
+        return usedBytes;
+    }
+
+    public synchronized int size() {
+        return frames.size();
+    }
+
+    /**
+     * @return the frames in the buffer, from the oldest to the newest.
+     */
+    @NonNull
+    public synchronized List<Entry> getFrames() {
+        return new ArrayList<>(frames);
+    }
+
+    /**
+     * @param index the index of the frame, 0 being the oldest one.
+     */
+    @NonNull
+    public synchronized Entry get(int index) {
+        if ((index < 0) || (index >= frames.size())) throw new IndexOutOfBoundsException("Invalid frame index!");
+        int i = 0;
+        for (Entry entry : frames) {
+            if (i++ == index) return entry;
+        }
+        throw new IndexOutOfBoundsException("Invalid frame index!");
+    }
+
+    /**
+     * @return the position of the given frame in the buffer, or -1 if it was discarded.
+     */
+    public synchronized int indexOf(@NonNull Entry entry) {
+        int i = 0;
+        for (Entry e : frames) {
+            if (e == entry) return i;
+            i++;
+        }
+        return -1;
+    }
+
+    public synchronized void clear() {
+        frames.clear();
+        usedBytes = 0;
+    }
+
+    /**
+     * Discards the oldest frames until there's room for a new frame of the given size, if not 0.
+     */
+    private void trim(long required) {
+        int slots = (required == 0) ? 0 : 1;
+        while ((!frames.isEmpty()) && ((frames.size() + slots > capacity) || (usedBytes + required > maxBytes))) {
+            usedBytes -= frames.removeFirst().getBytes();
+        }
+    }
+
+    /**
+     * Copies a decoded frame in the buffer, discarding the oldest ones if needed.
+     * The copy is made outside the lock, so the history can be read while a new frame is added.
+     *
+     * @param metadata the metadata of the frame shown to the user.
+     * @return the new entry, or {@code null} if the history is disabled or the frame exceeds the memory budget.
+     */
+    @Nullable
+    public Entry add(@NonNull FitsDecoder decoder, @Nullable String[] metadata) {
+        long pixels = (long) decoder.getWidth() * decoder.getHeight() * decoder.getChannels(),
+                bytes = 2 * pixels;
+        synchronized (this) {
+            if ((capacity == 0) || (bytes > maxBytes) || (bytes > Integer.MAX_VALUE)) return null;
+            // Make room now, so that the old frames and the new one are never in memory together beyond the budget
+            trim(bytes);
+            usedBytes += bytes;
+        }
+        Entry entry;
+        try {
+            entry = new Entry(decoder, metadata, (int) pixels);
+        } catch (Throwable t) {
+            synchronized (this) {
+                usedBytes -= bytes;
+            }
+            throw t;
+        }
+        synchronized (this) {
+            entry.id = nextId++;
+            frames.addLast(entry);
+            while (frames.size() > capacity) {
+                usedBytes -= frames.removeFirst().getBytes();
+            }
+        }
+        return entry;
+    }
+
+    /**
+     * A buffered frame: its levels, metadata and a few statistics computed while copying it.
+     */
+    public static class Entry {
+
+        public final long timestamp = System.currentTimeMillis();
+        public final int width;
+        public final int height;
+        public final int channels;
+        /**
+         * BITPIX of the original image.
+         */
+        public final int bitPerPix;
+        /**
+         * Statistics of the 16-bit levels of the first plane.
+         */
+        public final int minLevel;
+        public final int maxLevel;
+        public final double meanLevel;
+        public final double stdDevLevel;
+        private final String[] metadata;
+        private final ShortBuffer levels;
+        private final Map<String, String> cards;
+        private long id;
+        private volatile StarDetector.Result stars = null;
+
+        private Entry(FitsDecoder decoder, String[] metadata, int pixels) {
+            this.width = decoder.getWidth();
+            this.height = decoder.getHeight();
+            this.channels = decoder.getChannels();
+            this.bitPerPix = decoder.getBitPerPix();
+            this.metadata = (metadata == null) ? null : metadata.clone();
+            this.cards = decoder.getCards();
+            // Stored like unsigned 16-bit FITS data (BZERO = 32768), so that FitsDecoder can read it back
+            levels = ByteBuffer.allocateDirect(2 * pixels).order(ByteOrder.nativeOrder()).asShortBuffer();
+            int[] chunk = new int[Math.min(pixels, CHUNK)];
+            int planeSize = width * height, min = Integer.MAX_VALUE, max = Integer.MIN_VALUE;
+            double sum = 0.0, sumSquares = 0.0;
+            for (int i = 0; i < pixels; i += chunk.length) {
+                int count = Math.min(chunk.length, pixels - i);
+                decoder.readLevels(i, count, chunk, 0);
+                boolean firstPlane = i < planeSize;
+                long chunkSum = 0, chunkSquares = 0;
+                for (int j = 0; j < count; j++) {
+                    int level = chunk[j];
+                    levels.put(i + j, (short) (level - 32768));
+                    if (firstPlane && (i + j < planeSize)) {
+                        if (level < min) min = level;
+                        if (level > max) max = level;
+                        chunkSum += level;
+                        chunkSquares += (long) level * level;
+                    }
+                }
+                sum += chunkSum;
+                sumSquares += chunkSquares;
+            }
+            minLevel = min;
+            maxLevel = max;
+            meanLevel = sum / planeSize;
+            stdDevLevel = Math.sqrt(Math.max(0.0, sumSquares / planeSize - meanLevel * meanLevel));
+        }
+
+        /**
+         * @return a unique, increasing identifier of this frame.
+         */
+        public long getId() {
+            return id;
+        }
+
+        private long getBytes() {
+            return 2L * levels.capacity();
+        }
+
+        @Nullable
+        public String[] getMetadata() {
+            return (metadata == null) ? null : metadata.clone();
+        }
+
+        /**
+         * @return the stars detected in this frame, if the detection was enabled.
+         */
+        @Nullable
+        public StarDetector.Result getStars() {
+            return stars;
+        }
+
+        void setStars(@Nullable StarDetector.Result stars) {
+            this.stars = stars;
+        }
+
+        /**
+         * @return a decoder that reads the buffered levels, with the same header cards as the original image.
+         * Rendering it only requires the lookup tables, not decoding the original data again.
+         */
+        @NonNull
+        public FitsDecoder getDecoder() {
+            return new FitsDecoder(cards, levels.duplicate(), width, height, channels);
+        }
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright 2021 Marco Cipriani (@marcocipriani01)
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package io.github.marcocipriani01.telescopetouch.indi;
+
+import androidx.annotation.NonNull;
+
+import java.util.Locale;
+
+/**
+ * Counters and latencies of the frame pipeline of a camera. Thread-safe.
+ *
+ * @author marcocipriani01
+ */
+public class FrameStatistics {
+
+    /**
+     * Weight of the last sample in the moving average of the latencies.
+     */
+    private static final double SMOOTHING = 0.2;
+    private final long[] lastLatency = new long[Stage.values().length];
+    private final double[] averageLatency = new double[Stage.values().length];
+    private long received = 0;
+    private long decoded = 0;
+    private long dropped = 0;
+
+    synchronized void frameReceived() {
+        received++;
+    }
+
+    synchronized void frameDecoded() {
+        decoded++;
+    }
+
+    synchronized void frameDropped() {
+        dropped++;
+    }
+
+    /**
+     * @param nanos how long the frame spent in the given stage, in nanoseconds.
+     */
+    synchronized void record(@NonNull Stage stage, long nanos) {
+        int i = stage.ordinal();
+        lastLatency[i] = nanos;
+        averageLatency[i] = (averageLatency[i] == 0.0) ? nanos : (averageLatency[i] + SMOOTHING * (nanos - averageLatency[i]));
+    }
+
+    public synchronized long getReceived() {
+        return received;
+    }
+
+    public synchronized long getDecoded() {
+        return decoded;
+    }
+
+    /**
+     * @return how many frames were replaced by a newer one before reaching the screen.
+     */
+    public synchronized long getDropped() {
+        return dropped;
+    }
+
+    /**
+     * @return the latency of the last frame in the given stage, in milliseconds.
+     */
+    public synchronized double getLastLatency(@NonNull Stage stage) {
+        return lastLatency[stage.ordinal()] / 1e6;
+    }
+
+    /**
+     * @return the moving average of the latency of the given stage, in milliseconds.
+     */
+    public synchronized double getAverageLatency(@NonNull Stage stage) {
+        return averageLatency[stage.ordinal()] / 1e6;
+    }
+
+    public synchronized void reset() {
+        received = decoded = dropped = 0;
+        for (int i = 0; i < lastLatency.length; i++) {
+            lastLatency[i] = 0;
+            averageLatency[i] = 0.0;
+        }
+    }
+
+    @NonNull
+    @Override
+    public synchronized String toString() {
+        StringBuilder builder = new StringBuilder();
+        builder.append("Received: ").append(received).append(", decoded: ").append(decoded)
+                .append(", dropped: ").append(dropped);
+        for (Stage stage : Stage.values()) {
+            builder.append(", ").append(stage.name().toLowerCase(Locale.ROOT)).append(": ")
+                    .append(String.format(Locale.ROOT, "%.1f ms", getAverageLatency(stage)));
+        }
+        return builder.toString();
+    }
+
+    public enum Stage {
+        /**
+         * From the arrival of the BLOB to the beginning of the decoding.
+         */
+        RECEIVE,
+        DECODE,
+        /**
+         * Saving the image, if requested.
+         */
+        POST_PROCESS,
+        /**
+         * From the end of the post processing to the delivery to the listeners on the UI thread.
+         */
+        PUBLISH
+    }
+}
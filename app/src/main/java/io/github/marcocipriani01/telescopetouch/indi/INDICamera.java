@@ -28,16 +28,17 @@ import android.content.Intent;
 import android.content.pm.PackageManager;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
-import android.graphics.Color;
+import android.graphics.Rect;
 import android.media.MediaScannerConnection;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Environment;
-import android.os.Handler;
 import android.os.Parcel;
+import android.os.ParcelFileDescriptor;
 import android.os.Parcelable;
 import android.provider.MediaStore;
 import android.util.Log;
+import android.webkit.MimeTypeMap;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
@@ -61,28 +62,25 @@ import org.indilib.i4j.client.INDITextProperty;
 import org.indilib.i4j.client.INDIValueException;
 import org.indilib.i4j.properties.INDIStandardElement;
 
-import java.io.ByteArrayInputStream;
-import java.io.EOFException;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.text.SimpleDateFormat;
 import java.util.Arrays;
 import java.util.Date;
-import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Locale;
 import java.util.Objects;
 import java.util.Set;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 import io.github.marcocipriani01.telescopetouch.BuildConfig;
 import io.github.marcocipriani01.telescopetouch.R;
 import io.github.marcocipriani01.telescopetouch.TelescopeTouchApp;
+import io.github.marcocipriani01.telescopetouch.UIEventBus;
 
 public class INDICamera implements INDIPropertyListener, Parcelable {
 
@@ -106,10 +104,35 @@ public class INDICamera implements INDIPropertyListener, Parcelable {
         }
     };
     private static final String TAG = TelescopeTouchApp.getTag(INDICamera.class);
+    /**
+     * Full resolution tiles larger than this are not rendered: the preview is already detailed enough.
+     */
+    private static final int MAX_TILE_PIXELS = 16 * 1024 * 1024;
+    /**
+     * How many images can wait to be saved. Every pending image holds its BLOB in memory.
+     */
+    private static final int SAVE_QUEUE_CAPACITY = 4;
+    /**
+     * Side of the subframe around the star in focus mode, in binned pixels.
+     */
+    private static final int FOCUS_BOX_SIZE = 100;
+    /**
+     * The subframe is moved when the star drifts from its center by more than this fraction of the side.
+     */
+    private static final double FOCUS_TRACKING_THRESHOLD = 0.15;
+    /**
+     * In focus mode, the next exposure starts anyway if the last frame hasn't been analyzed within this time.
+     */
+    private static final long FOCUS_FRAME_TIMEOUT_MS = 5000;
+    /**
+     * Pixels of the live stack farther than this many standard deviations from the mean are rejected.
+     */
+    private static final double STACKING_KAPPA = 2.5;
     public final INDIDevice device;
     private final Context context;
-    private final Handler uiHandler;
-    private final Set<CameraListener> listeners = new HashSet<>();
+    private final UIEventBus.Channel<CameraListener> events = UIEventBus.getInstance().newChannel();
+    private final ImageStretcher[] stretchers = {new ImageStretcher(), new ImageStretcher(), new ImageStretcher()};
+    private final ImagePool imagePool = new ImagePool(Runtime.getRuntime().maxMemory() / 4);
     public volatile INDIBLOBProperty blobP;
     public volatile INDIBLOBElement blobE;
     public volatile INDINumberProperty exposureP;
@@ -125,6 +148,11 @@ public class INDICamera implements INDIPropertyListener, Parcelable {
     public volatile INDINumberProperty binningP;
     public volatile INDINumberElement binningXE;
     public volatile INDINumberElement binningYE;
+    public volatile INDINumberProperty frameP;
+    public volatile INDINumberElement frameXE;
+    public volatile INDINumberElement frameYE;
+    public volatile INDINumberElement frameWidthE;
+    public volatile INDINumberElement frameHeightE;
     public volatile INDINumberProperty gainP;
     public volatile INDINumberElement gainE;
     public volatile INDISwitchProperty isoP;
@@ -142,26 +170,60 @@ public class INDICamera implements INDIPropertyListener, Parcelable {
     public volatile INDISwitchElement[] formatsE;
     public volatile INDISwitchProperty transferFormatP;
     public volatile INDISwitchElement[] transferFormatsE;
-    private volatile Thread loadingThread = null;
-    private volatile INDIBLOBValue queuedValue = null;
+    private final LatestSlot<Frame> receivedFrames = new LatestSlot<>();
+    private final LatestSlot<Frame> decodedFrames = new LatestSlot<>();
+    private final LatestSlot<Frame> processedFrames = new LatestSlot<>();
+    private final FrameStatistics statistics = new FrameStatistics();
+    private final ImageWriter imageWriter = new ImageWriter("INDICamera image writer", SAVE_QUEUE_CAPACITY, this::imageSaveError);
+    private final FrameHistory frameHistory = new FrameHistory(0, Runtime.getRuntime().maxMemory() / 4);
+    private volatile LiveStacker liveStacker = null;
+    private volatile CalibrationLibrary calibrationLibrary = null;
+    private volatile boolean calibration = false;
+    /**
+     * The last FITS BLOB decoded, to recognize reloads of the same image. Accessed only by the decoding lane.
+     */
+    private INDIBLOBValue lastFitsBlob = null;
+    private final ImagingService.Lane decodingLane =
+            ImagingService.getInstance().newLane("INDICamera decoding", ImagingService.Priority.CAMERA);
+    private final ImagingService.Lane postProcessingLane =
+            ImagingService.getInstance().newLane("INDICamera analysis", ImagingService.Priority.BACKGROUND);
     private volatile boolean stretch = false;
+    private volatile boolean starDetection = false;
+    private volatile StarDetector.Result lastStars = null;
+    private volatile FrameHistory.Entry displayedEntry = null;
+    private volatile long displayedFrameId = -1;
+    private long nextFrameId = 0;
     private volatile Bitmap lastBitmap = null;
+    private volatile Bitmap lastTile = null;
+    private volatile FitsRenderer lastRenderer = null;
+    private volatile int[][] lastLuts = null;
+    private volatile int previewScale = 1;
+    private volatile int previewSize = 0;
+    private volatile Thread tileThread = null;
+    private volatile Rect queuedTile = null;
     private volatile boolean bitmapSaved = false;
     private volatile SaveMode saveMode = SaveMode.SHOW_ONLY;
     private volatile int jpgQuality = 100;
     private volatile boolean captureLoop = false;
     private volatile INDISwitchElement captureLoopPreset = null;
     private volatile double captureLoopExposure = -1;
+    private volatile FocusRegion focusRegion = null;
+    /**
+     * In focus mode, the next exposure starts only when the last one has ended and its frame has been analyzed,
+     * so that a move of the subframe is always applied before it.
+     */
+    private boolean focusExposureEnded = false;
+    private boolean focusFrameAnalyzed = false;
+    private final Runnable focusFrameTimeout = this::onFocusFrameTimeout;
     private volatile String[] metadata = new String[]{null, null, null, null};
     private volatile float loopDelay = 0f;
     private volatile int loopTotalCaptures = 0;
     private volatile int loopRemainingCaptures = 0;
     private volatile String filePrefix = null;
 
-    public INDICamera(INDIDevice device, Context context, Handler uiHandler) {
+    public INDICamera(INDIDevice device, Context context) {
         this.device = device;
         this.context = context;
-        this.uiHandler = uiHandler;
     }
 
     public static boolean isCameraProp(INDIProperty<?> property) {
@@ -169,14 +231,6 @@ public class INDICamera implements INDIPropertyListener, Parcelable {
         return name.startsWith("CCD_") || name.startsWith("CAPTURE_");
     }
 
-    private static int findFITSLineValue(String in) {
-        if (in.contains("=")) in = in.split("=")[1];
-        Matcher matcher = Pattern.compile("[0-9]+").matcher(in);
-        if (matcher.find())
-            return Integer.parseInt(matcher.group());
-        return -1;
-    }
-
     public int getRemainingCaptures() {
         return loopRemainingCaptures;
     }
@@ -208,6 +262,11 @@ public class INDICamera implements INDIPropertyListener, Parcelable {
         this.loopDelay = loopDelay;
     }
 
+    private long getLoopDelayMillis() {
+        // Focus mode runs as fast as possible
+        return (focusRegion == null) ? (long) (loopDelay * 1000) : 0L;
+    }
+
     public String[] getLastMetadata() {
         return metadata;
     }
@@ -275,6 +334,180 @@ public class INDICamera implements INDIPropertyListener, Parcelable {
         }
     }
 
+    public boolean hasSubframe() {
+        return (frameP != null) && (frameXE != null) && (frameYE != null) && (frameWidthE != null) && (frameHeightE != null);
+    }
+
+    /**
+     * @return {@code true} if the focus mode loop is running.
+     */
+    public boolean isFocusing() {
+        return focusRegion != null;
+    }
+
+    /**
+     * Starts a capture loop that downloads only a small subframe centered on the brightest star of the last image,
+     * found by the star detection, and follows the star if it drifts. The frame and binning settings are restored
+     * when the loop stops. Images taken in focus mode are neither saved nor added to the frame history.
+     *
+     * @param exposure the exposure time, in seconds.
+     * @param binning  the binning to use in focus mode.
+     */
+    public synchronized void startFocusLoop(double exposure, int binning) throws INDIValueException {
+        if ((!canCapture()) || (!hasSubframe()))
+            throw new UnsupportedOperationException("Unsupported focus mode!");
+        if (captureLoop) throw new IllegalStateException("Capture loop already running!");
+        StarDetector.Result stars = lastStars;
+        if ((stars == null) || stars.stars.isEmpty()) throw new IllegalStateException("No star to focus on!");
+        StarDetector.Star star = stars.stars.get(0);
+        for (StarDetector.Star s : stars.stars) {
+            if (!s.saturated) {
+                star = s;
+                break;
+            }
+        }
+        int binX = 1, binY = 1;
+        if (hasBinning()) {
+            binX = (int) (double) binningXE.getValue();
+            binY = (int) (double) binningYE.getValue();
+        } else {
+            binning = 1;
+        }
+        binning = Math.max(1, binning);
+        FocusRegion region = new FocusRegion(this, binning);
+        // CCD_FRAME is expressed in unbinned pixels
+        region.centerOn(region.originalX + star.x * binX, region.originalY + star.y * binY);
+        if (hasBinning()) {
+            binningXE.setDesiredValue((double) binning);
+            binningYE.setDesiredValue((double) binning);
+        }
+        setFrame(region.x, region.y, region.size, region.size);
+        if (hasBinning()) {
+            connectionManager.updateProperties(binningP, frameP);
+        } else {
+            connectionManager.updateProperties(frameP);
+        }
+        focusRegion = region;
+        focusExposureEnded = focusFrameAnalyzed = false;
+        try {
+            startCaptureLoop(exposure, 0);
+        } catch (RuntimeException | INDIValueException e) {
+            restoreFrame();
+            throw e;
+        }
+    }
+
+    private void setFrame(double x, double y, double width, double height) throws INDIValueException {
+        frameXE.setDesiredValue(x);
+        frameYE.setDesiredValue(y);
+        frameWidthE.setDesiredValue(width);
+        frameHeightE.setDesiredValue(height);
+    }
+
+    /**
+     * Ends the focus mode, if active, restoring the frame and binning settings.
+     */
+    private synchronized void restoreFrame() {
+        FocusRegion region = focusRegion;
+        if (region == null) return;
+        focusRegion = null;
+        focusExposureEnded = focusFrameAnalyzed = false;
+        connectionManager.removeCallbacks(focusFrameTimeout);
+        try {
+            if (hasBinning()) {
+                binningXE.setDesiredValue(region.originalBinX);
+                binningYE.setDesiredValue(region.originalBinY);
+            }
+            if (hasSubframe()) {
+                setFrame(region.originalX, region.originalY, region.originalWidth, region.originalHeight);
+                if (hasBinning()) {
+                    connectionManager.updateProperties(binningP, frameP);
+                } else {
+                    connectionManager.updateProperties(frameP);
+                }
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Unable to restore the frame settings!", e);
+            cameraError(e);
+        }
+    }
+
+    /**
+     * @return {@code true} if the decoded image is a subframe taken in focus mode.
+     */
+    private boolean isFocusFrame(FocusRegion region, FitsDecoder decoder) {
+        if ((region == null) || (decoder == null)) return false;
+        int side = region.size / region.binning;
+        return (decoder.getWidth() == side) && (decoder.getHeight() == side);
+    }
+
+    /**
+     * Moves the subframe if the star followed in focus mode drifted from its center.
+     */
+    private void trackStar(FocusRegion region, StarDetector.Result result) {
+        double center = (region.size / region.binning) / 2.0;
+        StarDetector.Star closest = null;
+        double closestDistance = Double.MAX_VALUE;
+        for (StarDetector.Star star : result.stars) {
+            double distance = Math.hypot(star.x - center, star.y - center);
+            if (distance < closestDistance) {
+                closest = star;
+                closestDistance = distance;
+            }
+        }
+        if ((closest == null) || (closestDistance * region.binning < FOCUS_TRACKING_THRESHOLD * region.size))
+            return;
+        synchronized (this) {
+            if ((focusRegion != region) || (!hasSubframe())) return;
+            region.centerOn(region.x + closest.x * region.binning, region.y + closest.y * region.binning);
+            try {
+                frameXE.setDesiredValue((double) region.x);
+                frameYE.setDesiredValue((double) region.y);
+                // The next exposure goes through the same queue, so it's sent after the new frame
+                connectionManager.updateProperties(frameP);
+            } catch (Exception e) {
+                Log.e(TAG, "Unable to move the focus subframe!", e);
+            }
+        }
+    }
+
+    /**
+     * Called when an exposure of the focus mode ends.
+     */
+    private synchronized void onFocusExposureEnded() {
+        if (focusFrameAnalyzed) {
+            startFocusExposure();
+        } else {
+            focusExposureEnded = true;
+            connectionManager.postDelayed(focusFrameTimeout, FOCUS_FRAME_TIMEOUT_MS);
+        }
+    }
+
+    /**
+     * Called when a frame received in focus mode has been analyzed, or couldn't be.
+     */
+    private synchronized void onFocusFrameAnalyzed() {
+        if (focusRegion == null) return;
+        if (focusExposureEnded) {
+            startFocusExposure();
+        } else {
+            focusFrameAnalyzed = true;
+        }
+    }
+
+    private synchronized void onFocusFrameTimeout() {
+        if (focusExposureEnded) {
+            Log.w(TAG, "Focus frame not analyzed in time");
+            startFocusExposure();
+        }
+    }
+
+    private void startFocusExposure() {
+        focusExposureEnded = focusFrameAnalyzed = false;
+        connectionManager.removeCallbacks(focusFrameTimeout);
+        connectionManager.post(this::captureLoopExposureRunnable);
+    }
+
     private void startProgressNotification() {
         Intent intent = new Intent(context, CameraForegroundService.class);
         intent.setAction(CameraForegroundService.SERVICE_START);
@@ -286,7 +519,7 @@ public class INDICamera implements INDIPropertyListener, Parcelable {
     private void captureLoopExposureRunnable() {
         try {
             if (captureLoop && canCapture()) {
-                if (hasUploadSettings()) {
+                if (hasUploadSettings() && (focusRegion == null)) {
                     if (hasFrameTypes()) {
                         setUploadPrefixSpecial(getFilePrefix(), String.format("%.2f", captureLoopExposure));
                     } else {
@@ -294,7 +527,12 @@ public class INDICamera implements INDIPropertyListener, Parcelable {
                     }
                 }
                 exposureE.setDesiredValue(captureLoopExposure);
-                exposureP.sendChangesToDriver();
+                if (focusRegion == null) {
+                    exposureP.sendChangesToDriver();
+                } else {
+                    // After the pending moves of the subframe
+                    connectionManager.sendProperties(exposureP);
+                }
             } else {
                 cameraLoopStop();
             }
@@ -329,13 +567,14 @@ public class INDICamera implements INDIPropertyListener, Parcelable {
 
     private void cameraLoopStop() {
         captureLoop = false;
-        uiHandler.post(() -> {
-            synchronized (listeners) {
-                for (CameraListener listener : listeners) {
-                    listener.onCameraLoopStop();
-                }
+        restoreFrame();
+        if (calibration) {
+            // Masters of the loops stopped before reaching the number of frames per master
+            for (CalibrationLibrary.Batch batch : getCalibrationLibrary().takePendingBatches()) {
+                combineMaster(batch);
             }
-        });
+        }
+        events.post(CameraListener::onCameraLoopStop);
     }
 
     public void setJpgQuality(int jpgQuality) {
@@ -369,6 +608,7 @@ public class INDICamera implements INDIPropertyListener, Parcelable {
                         uploadBothE.setDesiredValue(Constants.SwitchStatus.ON);
                         break;
                     case SAVE_JPG_AND_SHOW:
+                    case SAVE_RAW_AND_SHOW:
                     case SHOW_ONLY:
                         blobP.addINDIPropertyListener(this);
                         uploadBothE.setDesiredValue(Constants.SwitchStatus.OFF);
@@ -396,14 +636,24 @@ public class INDICamera implements INDIPropertyListener, Parcelable {
         });
     }
 
+    private void imageSaveError(Throwable throwable) {
+        events.post(listener -> listener.onImageSaveError(throwable));
+    }
+
+    /**
+     * @return how many images are waiting to be saved. If it stays close to {@link #getSaveQueueCapacity()},
+     * the storage can't keep up with the capture loop.
+     */
+    public int getSaveQueueDepth() {
+        return imageWriter.getQueueDepth();
+    }
+
+    public int getSaveQueueCapacity() {
+        return imageWriter.getCapacity();
+    }
+
     private void cameraError(Throwable throwable) {
-        uiHandler.post(() -> {
-            synchronized (listeners) {
-                for (CameraListener listener : listeners) {
-                    listener.onCameraError(throwable);
-                }
-            }
-        });
+        events.post(listener -> listener.onCameraError(throwable));
     }
 
     public void stopReceiving() {
@@ -419,7 +669,16 @@ public class INDICamera implements INDIPropertyListener, Parcelable {
 
     public Uri saveImage() throws IOException {
         if (lastBitmap == null) throw new IllegalStateException("No Bitmap in memory!");
-        Uri uri = saveImage(lastBitmap);
+        Uri uri;
+        FitsRenderer renderer = lastRenderer;
+        int[][] luts = lastLuts;
+        if ((previewScale > 1) && (renderer != null) && (luts != null)) {
+            Bitmap fullResolution = renderBitmap(renderer, luts);
+            uri = saveImage(fullResolution);
+            imagePool.release(fullResolution);
+        } else {
+            uri = saveImage(lastBitmap);
+        }
         if (uri == null) {
             return null;
         } else {
@@ -428,58 +687,103 @@ public class INDICamera implements INDIPropertyListener, Parcelable {
         }
     }
 
-    @SuppressLint("SimpleDateFormat")
-    @SuppressWarnings({"ResultOfMethodCallIgnored", "SameParameterValue"})
     public Uri saveImage(@NonNull Bitmap bitmap) throws IOException {
+        return saveImage(bitmap, new Date());
+    }
+
+    private Uri saveImage(@NonNull Bitmap bitmap, Date date) throws IOException {
+        DCIMFile file = createDCIMFile(date, ".jpg", "image/jpeg");
+        if (file == null) return null;
+        bitmap.compress(Bitmap.CompressFormat.JPEG, jpgQuality, file.stream);
+        file.stream.flush();
+        file.stream.close();
+        return file.uri;
+    }
+
+    /**
+     * Writes the BLOB exactly as it was received, without decoding or compressing it.
+     */
+    private Uri saveRaw(@NonNull INDIBLOBValue blobValue, Date date) throws IOException {
+        String format = blobValue.getFormat();
+        DCIMFile file = createDCIMFile(date, format, getMimeType(format));
+        if (file == null) return null;
+        FileChannel channel = file.stream.getChannel();
+        byte[] data = blobValue.getBlobData();
+        // Compressed BLOBs are shorter than the size sent by INDI
+        ByteBuffer buffer = ByteBuffer.wrap(data, 0, Math.min(blobValue.getSize(), data.length));
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        file.stream.close();
+        return file.uri;
+    }
+
+    private static String getMimeType(String format) {
+        if (CompressedFits.isZlib(format)) return "application/zlib";
+        if (FitsDecoder.isFITS(format) || CompressedFits.isCompressedFITS(format)) return "application/fits";
+        String mimeType = MimeTypeMap.getSingleton().getMimeTypeFromExtension(
+                format.substring(format.lastIndexOf('.') + 1).toLowerCase(Locale.ROOT));
+        return (mimeType == null) ? "application/octet-stream" : mimeType;
+    }
+
+    /**
+     * Creates a new file in the folder of the app in DCIM or, if it isn't an image, in Documents,
+     * since MediaStore doesn't accept other MIME types in the image collection.
+     *
+     * @return the file, or {@code null} if the storage permission hasn't been granted yet.
+     */
+    @SuppressLint("SimpleDateFormat")
+    @SuppressWarnings({"ResultOfMethodCallIgnored"})
+    private DCIMFile createDCIMFile(Date date, String extension, String mimeType) throws IOException {
         String folderName = context.getString(R.string.app_name),
-                fileName = new SimpleDateFormat("yyyy-MM-dd_HH-mm-ss").format(new Date());
-        OutputStream stream;
-        Uri uri;
+                fileName = new SimpleDateFormat("yyyy-MM-dd_HH-mm-ss").format(date) + extension;
+        boolean image = mimeType.startsWith("image/");
+        String directory = image ? Environment.DIRECTORY_DCIM : Environment.DIRECTORY_DOCUMENTS;
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
             ContentResolver resolver = context.getContentResolver();
             ContentValues contentValues = new ContentValues();
             contentValues.put(MediaStore.MediaColumns.DISPLAY_NAME, fileName);
-            contentValues.put(MediaStore.MediaColumns.MIME_TYPE, "image/jpeg");
-            contentValues.put(MediaStore.MediaColumns.RELATIVE_PATH, Environment.DIRECTORY_DCIM + File.separator + folderName);
-            uri = resolver.insert(MediaStore.Images.Media.EXTERNAL_CONTENT_URI, contentValues);
-            stream = resolver.openOutputStream(uri);
+            contentValues.put(MediaStore.MediaColumns.MIME_TYPE, mimeType);
+            contentValues.put(MediaStore.MediaColumns.RELATIVE_PATH, directory + File.separator + folderName);
+            Uri uri = resolver.insert(image ? MediaStore.Images.Media.EXTERNAL_CONTENT_URI :
+                    MediaStore.Files.getContentUri(MediaStore.VOLUME_EXTERNAL), contentValues);
+            if (uri == null) throw new IOException("Unable to create " + fileName);
+            ParcelFileDescriptor descriptor = resolver.openFileDescriptor(uri, "w");
+            if (descriptor == null) throw new FileNotFoundException(fileName);
+            return new DCIMFile(uri, new ParcelFileDescriptor.AutoCloseOutputStream(descriptor));
         } else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
             if (context.checkSelfPermission(Manifest.permission.WRITE_EXTERNAL_STORAGE) == PackageManager.PERMISSION_DENIED) {
-                uiHandler.post(() -> {
-                    synchronized (listeners) {
-                        for (CameraListener listener : listeners) {
-                            listener.onRequestStoragePermission();
-                        }
-                    }
-                });
+                events.post("storagePermission", CameraListener::onRequestStoragePermission);
                 return null;
             }
-            File dir = new File(Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DCIM).getPath() + File.separator + folderName);
-            if (!dir.exists()) dir.mkdir();
-            File file = new File(dir, fileName + ".jpg");
-            uri = FileProvider.getUriForFile(context, BuildConfig.APPLICATION_ID + ".provider", file);
-            stream = new FileOutputStream(file);
+            File dir = new File(Environment.getExternalStoragePublicDirectory(directory).getPath() + File.separator + folderName);
+            if (!dir.exists()) dir.mkdirs();
+            File file = new File(dir, fileName);
+            Uri uri = FileProvider.getUriForFile(context, BuildConfig.APPLICATION_ID + ".provider", file);
+            FileOutputStream stream = new FileOutputStream(file);
             MediaScannerConnection.scanFile(context, new String[]{dir.getPath()}, null, null);
+            return new DCIMFile(uri, stream);
         } else {
-            File dir = new File(Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DCIM).getPath() + File.separator + folderName);
-            if (!dir.exists()) dir.mkdir();
-            File file = new File(dir, fileName + ".jpg");
-            uri = Uri.fromFile(file);
-            stream = new FileOutputStream(file);
+            File dir = new File(Environment.getExternalStoragePublicDirectory(directory).getPath() + File.separator + folderName);
+            if (!dir.exists()) dir.mkdirs();
+            File file = new File(dir, fileName);
+            FileOutputStream stream = new FileOutputStream(file);
             MediaScannerConnection.scanFile(context, new String[]{dir.getPath()}, null, null);
+            return new DCIMFile(Uri.fromFile(file), stream);
         }
-        bitmap.compress(Bitmap.CompressFormat.JPEG, jpgQuality, stream);
-        stream.flush();
-        stream.close();
-        return uri;
     }
 
     @Override
     public synchronized void propertyChanged(INDIProperty<?> indiProperty) {
         if (indiProperty == blobP) {
-            if (listeners.isEmpty()) return;
-            queuedValue = blobE.getValue();
-            if ((loadingThread == null) || (!loadingThread.isAlive())) startProcessing();
+            INDIBLOBValue blobValue = blobE.getValue();
+            // Saved before decoding, so that frames the app can't display are saved too
+            boolean saved = saveRawBLOB(blobValue);
+            if (!events.hasListeners()) {
+                onFocusFrameAnalyzed();
+                return;
+            }
+            receiveFrame(blobValue, saved);
         } else if (indiProperty == exposureP) {
             final Constants.PropertyStates state = indiProperty.getState();
             if (captureLoop) {
@@ -487,10 +791,14 @@ public class INDICamera implements INDIPropertyListener, Parcelable {
                     switch (state) {
                         case OK:
                             if ((captureLoopExposure != -1) && (captureLoopPreset == null)) {
-                                connectionManager.postDelayed(this::captureLoopExposureRunnable, (long) (loopDelay * 1000));
+                                if (focusRegion == null) {
+                                    connectionManager.postDelayed(this::captureLoopExposureRunnable, getLoopDelayMillis());
+                                } else {
+                                    onFocusExposureEnded();
+                                }
                                 break;
                             } else if ((captureLoopPreset != null) && (captureLoopExposure == -1)) {
-                                connectionManager.postDelayed(this::captureLoopPresetRunnable, (long) (loopDelay * 1000));
+                                connectionManager.postDelayed(this::captureLoopPresetRunnable, getLoopDelayMillis());
                                 break;
                             }
                         case ALERT:
@@ -498,55 +806,32 @@ public class INDICamera implements INDIPropertyListener, Parcelable {
                             cameraLoopStop();
                             break;
                     }
-                    uiHandler.post(() -> {
-                        synchronized (listeners) {
-                            for (CameraListener listener : listeners) {
-                                listener.onCameraLoopStateChange(state);
-                            }
-                        }
-                    });
+                    events.post("loopState", listener -> listener.onCameraLoopStateChange(state));
                 } else if (loopRemainingCaptures <= 1) {
                     cameraLoopStop();
                 } else {
                     switch (state) {
                         case OK:
                             if ((captureLoopExposure != -1) && (captureLoopPreset == null)) {
-                                connectionManager.postDelayed(this::captureLoopExposureRunnable, (long) (loopDelay * 1000));
+                                connectionManager.postDelayed(this::captureLoopExposureRunnable, getLoopDelayMillis());
                             } else if ((captureLoopPreset != null) && (captureLoopExposure == -1)) {
-                                connectionManager.postDelayed(this::captureLoopPresetRunnable, (long) (loopDelay * 1000));
+                                connectionManager.postDelayed(this::captureLoopPresetRunnable, getLoopDelayMillis());
                             } else {
                                 break;
                             }
                             loopRemainingCaptures--;
-                            uiHandler.post(() -> {
-                                synchronized (listeners) {
-                                    for (CameraListener listener : listeners) {
-                                        listener.onLoopProgressChange(loopTotalCaptures - loopRemainingCaptures, loopTotalCaptures);
-                                    }
-                                }
-                            });
+                            int captured = loopTotalCaptures - loopRemainingCaptures, total = loopTotalCaptures;
+                            events.post("loopProgress", listener -> listener.onLoopProgressChange(captured, total));
                             break;
                         case ALERT:
                         case IDLE:
                             cameraLoopStop();
                             break;
                     }
-                    uiHandler.post(() -> {
-                        synchronized (listeners) {
-                            for (CameraListener listener : listeners) {
-                                listener.onCameraLoopStateChange(state);
-                            }
-                        }
-                    });
+                    events.post("loopState", listener -> listener.onCameraLoopStateChange(state));
                 }
             } else {
-                uiHandler.post(() -> {
-                    synchronized (listeners) {
-                        for (CameraListener listener : listeners) {
-                            listener.onCameraStateChange(state);
-                        }
-                    }
-                });
+                events.post("cameraState", listener -> listener.onCameraStateChange(state));
             }
         }
     }
@@ -695,11 +980,12 @@ public class INDICamera implements INDIPropertyListener, Parcelable {
     }
 
     public void abort() throws INDIValueException {
-        if (captureLoop) cameraLoopStop();
+        // Abort first: in focus mode the driver must not get the full frame back during a subframe exposure
         if (canAbort()) {
             abortE.setDesiredValue(Constants.SwitchStatus.ON);
-            connectionManager.updateProperties(abortP);
+            connectionManager.sendProperties(abortP);
         }
+        if (captureLoop) cameraLoopStop();
     }
 
     public void setGain(double gain) throws INDIValueException {
@@ -840,6 +1126,15 @@ public class INDICamera implements INDIPropertyListener, Parcelable {
                     binningP = (INDINumberProperty) property;
                 }
                 break;
+            case "CCD_FRAME":
+                if ((property instanceof INDINumberProperty) &&
+                        ((frameXE = (INDINumberElement) property.getElement("X")) != null) &&
+                        ((frameYE = (INDINumberElement) property.getElement("Y")) != null) &&
+                        ((frameWidthE = (INDINumberElement) property.getElement("WIDTH")) != null) &&
+                        ((frameHeightE = (INDINumberElement) property.getElement("HEIGHT")) != null)) {
+                    frameP = (INDINumberProperty) property;
+                }
+                break;
             case "CCD_FRAME_TYPE":
                 if (property instanceof INDISwitchProperty) {
                     frameTypesE = property.getElementsAsList().toArray(new INDISwitchElement[0]);
@@ -875,13 +1170,7 @@ public class INDICamera implements INDIPropertyListener, Parcelable {
             default:
                 return;
         }
-        uiHandler.post(() -> {
-            synchronized (listeners) {
-                for (CameraListener listener : listeners) {
-                    listener.onCameraFunctionsChange();
-                }
-            }
-        });
+        events.post("functions", CameraListener::onCameraFunctionsChange);
     }
 
     public synchronized boolean removeProp(INDIProperty<?> property) {
@@ -916,6 +1205,10 @@ public class INDICamera implements INDIPropertyListener, Parcelable {
                 binningXE = binningYE = null;
                 binningP = null;
                 break;
+            case "CCD_FRAME":
+                frameXE = frameYE = frameWidthE = frameHeightE = null;
+                frameP = null;
+                break;
             case "CCD_FRAME_TYPE":
                 frameTypesE = null;
                 frameTypeP = null;
@@ -938,22 +1231,23 @@ public class INDICamera implements INDIPropertyListener, Parcelable {
             default:
                 return false;
         }
-        uiHandler.post(() -> {
-            synchronized (listeners) {
-                for (CameraListener listener : listeners) {
-                    listener.onCameraFunctionsChange();
-                }
-            }
-        });
+        events.post("functions", CameraListener::onCameraFunctionsChange);
         return (blobP == null) && (exposureP == null) && (exposurePresetsP == null) &&
                 (abortP == null) && (binningP == null) && (isoP == null) &&
                 (forceBulbP == null) && (gainP == null);
     }
 
     public synchronized void terminate() {
-        synchronized (listeners) {
-            listeners.clear();
-        }
+        events.clearListeners();
+        decodingLane.cancel();
+        postProcessingLane.cancel();
+        dropFrame(receivedFrames.close());
+        decodedFrames.close();
+        // A frame waiting to be published keeps its pooled Bitmap
+        dropFrame(processedFrames.close());
+        imageWriter.close();
+        frameHistory.clear();
+        resetLiveStack();
         blobP = null;
         blobE = null;
         if (exposureP != null) {
@@ -969,6 +1263,9 @@ public class INDICamera implements INDIPropertyListener, Parcelable {
         forceBulbOnE = forceBulbOffE = null;
         binningP = null;
         binningXE = binningYE = null;
+        frameP = null;
+        frameXE = frameYE = frameWidthE = frameHeightE = null;
+        focusRegion = null;
         isoP = null;
         isoE = null;
         uploadModeP = null;
@@ -991,49 +1288,117 @@ public class INDICamera implements INDIPropertyListener, Parcelable {
         return lastBitmap;
     }
 
-    public void freeMemory() {
-        synchronized (listeners) {
-            for (CameraListener listener : listeners) {
-                listener.onBitmapDestroy();
-            }
+    /**
+     * @return how many pixels of the original image are averaged, in each direction,
+     * into one pixel of the last Bitmap. 1 means full resolution.
+     */
+    public int getPreviewScale() {
+        return previewScale;
+    }
+
+    /**
+     * Large FITS images are shown downscaled to roughly this size, and full resolution details
+     * can be requested with {@link #loadFullResolutionTile(Rect)}.
+     *
+     * @param previewSize the largest side of the preview, in pixels, or 0 to always load images at full resolution.
+     */
+    public void setPreviewSize(int previewSize) {
+        this.previewSize = Math.max(0, previewSize);
+    }
+
+    /**
+     * Asynchronously renders a region of the last image at full resolution. Only the latest request is processed,
+     * the result is delivered to {@link CameraListener#onFullResolutionTileLoaded(Bitmap, Rect)}.
+     *
+     * @param region the region, in coordinates of the full resolution image.
+     */
+    public synchronized void loadFullResolutionTile(@NonNull Rect region) {
+        if ((previewScale <= 1) || (lastRenderer == null)) return;
+        queuedTile = new Rect(region);
+        if (tileThread == null) {
+            tileThread = new TileThread();
+            tileThread.start();
         }
+    }
+
+    private synchronized Rect nextTile() {
+        Rect tile = queuedTile;
+        queuedTile = null;
+        if (tile == null) tileThread = null;
+        return tile;
+    }
+
+    /**
+     * @return the pool of the bitmaps and the buffers used to decode the images of this camera.
+     * Its memory cap can be changed with {@link ImagePool#setMaxBytes(long)}.
+     */
+    public ImagePool getImagePool() {
+        return imagePool;
+    }
+
+    public void freeMemory() {
+        events.deliver(CameraListener::onBitmapDestroy);
         if (lastBitmap != null) {
             lastBitmap.recycle();
             lastBitmap = null;
         }
+        imagePool.clear();
+        frameHistory.clear();
+        resetLiveStack();
+        displayedEntry = null;
+        onFrameHistoryChanged();
+        recycleTile();
+        lastRenderer = null;
+        lastLuts = null;
+        previewScale = 1;
+    }
+
+    private void recycleTile() {
+        if (lastTile != null) {
+            lastTile.recycle();
+            lastTile = null;
+        }
     }
 
+    /**
+     * Loads the last image again, to apply new settings. Frames in the history don't need to be decoded again.
+     */
     public synchronized void reloadBitmap() {
-        if (!listeners.isEmpty() && (blobE != null)) {
-            queuedValue = blobE.getValue();
-            if ((loadingThread == null) || (!loadingThread.isAlive())) startProcessing();
+        if (!events.hasListeners()) return;
+        FrameHistory.Entry entry = displayedEntry;
+        if ((entry != null) && (frameHistory.indexOf(entry) != -1)) {
+            showHistoryFrame(entry);
+        } else if (blobE != null) {
+            receiveFrame(blobE.getValue(), bitmapSaved);
         }
     }
 
+    /**
+     * @return frames received, decoded and dropped, and the latency of every stage of the image pipeline.
+     */
+    public FrameStatistics getFrameStatistics() {
+        return statistics;
+    }
+
     public void addListener(CameraListener listener) {
-        synchronized (listeners) {
-            this.listeners.add(listener);
-        }
+        events.addListener(listener);
     }
 
     public void removeListener(CameraListener listener) {
-        synchronized (listeners) {
-            this.listeners.remove(listener);
-        }
+        events.removeListener(listener);
     }
 
     private void onImageLoadingException(final Throwable throwable) {
         Log.e(TAG, throwable.getLocalizedMessage(), throwable);
-        uiHandler.post(() -> {
-            synchronized (listeners) {
-                for (CameraListener listener : listeners) {
-                    listener.onImageLoadingError(throwable);
-                }
-            }
+        events.run(null, () -> {
+            events.deliver(listener -> listener.onImageLoadingError(throwable));
             if (lastBitmap != null) {
-                lastBitmap.recycle();
+                imagePool.release(lastBitmap);
                 lastBitmap = null;
             }
+            recycleTile();
+            lastRenderer = null;
+            lastLuts = null;
         });
     }
 
@@ -1041,46 +1406,433 @@ public class INDICamera implements INDIPropertyListener, Parcelable {
         this.stretch = stretch;
     }
 
-    private synchronized void loadingFinished(Bitmap bitmap, String[] metadata) throws IOException {
-        this.metadata = metadata;
-        if ((saveMode == SaveMode.SAVE_JPG_AND_SHOW) && (bitmap != null)) {
-            saveImage(bitmap);
-            bitmapSaved = true;
-        } else {
-            bitmapSaved = false;
+    /**
+     * Enables the detection of the stars in FITS images. The results are delivered to
+     * {@link CameraListener#onStarsDetected(StarDetector.Result)}.
+     */
+    public void setStarDetection(boolean starDetection) {
+        this.starDetection = starDetection;
+        if (!starDetection) lastStars = null;
+    }
+
+    /**
+     * @return the stars found in the last FITS image, or {@code null}.
+     */
+    public StarDetector.Result getLastStars() {
+        return lastStars;
+    }
+
+    /**
+     * Enables the calibration of the FITS images: dark and flat frames are combined in masters,
+     * that are applied to the light frames. See {@link CalibrationLibrary}.
+     *
+     * @param framesPerMaster how many dark or flat frames are combined in a master.
+     */
+    public void setCalibration(boolean calibration, int framesPerMaster) {
+        if (calibration) getCalibrationLibrary().setFramesPerMaster(framesPerMaster);
+        this.calibration = calibration;
+    }
+
+    /**
+     * @return the master frames of this camera, loaded from the app storage when first requested.
+     * Every camera has its own folder, so that cameras never mix their masters and pending frames.
+     */
+    @NonNull
+    public synchronized CalibrationLibrary getCalibrationLibrary() {
+        if (calibrationLibrary == null) {
+            String folder = device.getName().replaceAll("[^A-Za-z0-9._-]", "_");
+            calibrationLibrary = new CalibrationLibrary(
+                    new File(new File(context.getFilesDir(), "calibration"), folder));
         }
-        if (listeners.isEmpty()) {
-            if (lastBitmap != null) {
-                lastBitmap.recycle();
-                lastBitmap = null;
+        return calibrationLibrary;
+    }
+
+    /**
+     * Enables the live stacking of the FITS images, or disables it if the mode is {@code null}.
+     * Changing the mode discards the stack. The results are delivered to
+     * {@link CameraListener#onLiveStackUpdated(LiveStacker.Result)}.
+     */
+    public synchronized void setLiveStacking(@Nullable LiveStacker.Mode mode) {
+        LiveStacker stacker = liveStacker;
+        if (mode == null) {
+            liveStacker = null;
+        } else if ((stacker == null) || (stacker.getMode() != mode)) {
+            liveStacker = new LiveStacker(mode, STACKING_KAPPA, Runtime.getRuntime().maxMemory() / 8);
+        }
+    }
+
+    /**
+     * @return the live stack, or {@code null} if the live stacking is disabled.
+     */
+    @Nullable
+    public LiveStacker getLiveStacker() {
+        return liveStacker;
+    }
+
+    /**
+     * Discards the live stack: the next image becomes the new reference.
+     */
+    public void resetLiveStack() {
+        LiveStacker stacker = liveStacker;
+        if (stacker != null) stacker.reset();
+    }
+
+    /**
+     * Decodes a JPG or PNG image, reusing a pooled bitmap of the same size if available.
+     */
+    private Bitmap decodeBitmap(byte[] data, int length) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(data, 0, length, options);
+        options.inJustDecodeBounds = false;
+        options.inMutable = true;
+        options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+        if ((options.outWidth > 0) && (options.outHeight > 0))
+            options.inBitmap = imagePool.pollBitmap(options.outWidth, options.outHeight);
+        try {
+            return BitmapFactory.decodeByteArray(data, 0, length, options);
+        } catch (IllegalArgumentException e) {
+            // The pooled bitmap can't be reused for this image
+            imagePool.release(options.inBitmap);
+            options.inBitmap = null;
+            return BitmapFactory.decodeByteArray(data, 0, length, options);
+        }
+    }
+
+    private Bitmap renderBitmap(FitsRenderer renderer, int[][] luts) {
+        int width = renderer.getWidth(), height = renderer.getHeight();
+        Bitmap bitmap = imagePool.obtainBitmap(width, height);
+        renderer.render(luts, (argb, firstRow, rowCount) -> {
+            synchronized (bitmap) {
+                bitmap.setPixels(argb, 0, width, 0, firstRow, width, rowCount);
             }
-            if (bitmap != null) bitmap.recycle();
+        });
+        return bitmap;
+    }
+
+    /**
+     * First stage of the pipeline: queues a BLOB for decoding, replacing the one that is still waiting, if any.
+     */
+    private synchronized void receiveFrame(INDIBLOBValue blobValue, boolean saved) {
+        statistics.frameReceived();
+        Frame frame = new Frame(nextFrameId++, blobValue, null);
+        frame.saved = saved;
+        dropFrame(receivedFrames.offer(frame));
+        decodingLane.submit(this::decodeNextFrame);
+    }
+
+    /**
+     * Shows a frame of the history again, with the current stretch settings. The frame goes through
+     * the image pipeline like a new one, so it replaces (or is replaced by) a frame waiting to be decoded.
+     */
+    public synchronized void showHistoryFrame(@NonNull FrameHistory.Entry entry) {
+        dropFrame(receivedFrames.offer(new Frame(nextFrameId++, null, entry)));
+        decodingLane.submit(this::decodeNextFrame);
+    }
+
+    /**
+     * @return the last frames decoded from FITS images. Its size is set with {@link #setHistorySize(int)}.
+     */
+    public FrameHistory getFrameHistory() {
+        return frameHistory;
+    }
+
+    /**
+     * @param frames how many FITS frames to keep in memory for blinking, 0 to disable the history.
+     */
+    public void setHistorySize(int frames) {
+        frameHistory.setCapacity(frames);
+        if (frameHistory.indexOf(displayedEntry) == -1) displayedEntry = null;
+    }
+
+    /**
+     * @return the history entry of the frame currently shown, or {@code null} if it isn't in the history.
+     */
+    public FrameHistory.Entry getDisplayedHistoryFrame() {
+        return displayedEntry;
+    }
+
+    private void addToHistory(Frame frame) {
+        if (frameHistory.getCapacity() == 0) return;
+        try {
+            FrameHistory.Entry entry = frameHistory.add(frame.decoder, frame.metadata);
+            if (entry == null) return;
+            frame.historyEntry = entry;
+            long id = frame.id;
+            events.run(null, () -> {
+                if (displayedFrameId == id) displayedEntry = entry;
+                onFrameHistoryChanged();
+            });
+        } catch (OutOfMemoryError e) {
+            Log.e(TAG, "Not enough memory for the frame history!", e);
+            frameHistory.clear();
+        }
+    }
+
+    private void onFrameHistoryChanged() {
+        events.deliver(CameraListener::onFrameHistoryChanged);
+    }
+
+    private void dropFrame(Frame frame) {
+        if (frame == null) return;
+        statistics.frameDropped();
+        imagePool.release(frame.bitmap);
+    }
+
+    /**
+     * Decoding stage.
+     */
+    @SuppressLint("DefaultLocale")
+    private void decode(Frame frame) throws IOException {
+        FrameHistory.Entry entry = frame.historyEntry;
+        if (entry != null) {
+            // Only the stretch is computed again
+            renderFits(frame, entry.getDecoder());
+            frame.metadata = entry.getMetadata();
             return;
         }
-        uiHandler.post(() -> {
-            Bitmap oldBitmap = lastBitmap;
-            lastBitmap = bitmap;
-            synchronized (listeners) {
-                for (CameraListener listener : listeners) {
-                    listener.onImageLoaded(bitmap, metadata);
-                }
+        String format = frame.blobValue.getFormat();
+        int blobSize = frame.blobValue.getSize();
+        if (format.equals("") || (blobSize == 0))
+            throw new FileNotFoundException();
+        String blobSizeString = String.format("%.2f MB", blobSize / 1000000.0);
+        byte[] blobData = frame.blobValue.getBlobData();
+        String dataFormat = format;
+        if (CompressedFits.isZlib(dataFormat)) {
+            dataFormat = dataFormat.substring(0, dataFormat.length() - 2);
+            // The size sent by INDI is the one of the uncompressed data
+            if (blobData.length != blobSize) {
+                blobData = CompressedFits.inflate(blobData, blobData.length, blobSize);
+                blobSize = blobData.length;
             }
-            if (oldBitmap != null) oldBitmap.recycle();
+        }
+        if (CompressedFits.isCompressedFITS(dataFormat)) {
+            blobData = CompressedFits.uncompress(blobData, blobSize);
+            blobSize = blobData.length;
+            dataFormat = ".fits";
+        }
+        if (FitsDecoder.isFITS(dataFormat)) {
+            FitsDecoder original = new FitsDecoder(blobData, blobSize), decoder = original;
+            // Reloading the last image with new settings: it's already in the live stack or in a master
+            boolean reload = (frame.blobValue == lastFitsBlob), focusFrame = isFocusFrame(focusRegion, decoder);
+            lastFitsBlob = frame.blobValue;
+            INDISwitchElement selectedType = hasFrameTypes() ? getSelectedFrameType() : null;
+            CalibrationLibrary.FrameType type = CalibrationLibrary.getFrameType(decoder,
+                    (selectedType == null) ? null : selectedType.getName());
+            if (calibration && (!focusFrame) && CalibrationLibrary.isSupported(decoder))
+                decoder = calibrate(decoder, type, reload);
+            LiveStacker stacker = liveStacker;
+            if ((stacker != null) && (!focusFrame) && (type == CalibrationLibrary.FrameType.LIGHT)) {
+                stack(frame, stacker, decoder, reload);
+            } else {
+                renderFits(frame, decoder);
+            }
+            frame.metadata = new String[]{
+                    blobSizeString, original.getWidth() + "x" + original.getHeight(), format, String.valueOf(original.getBitPerPix())};
+        } else {
+            Bitmap bitmap = decodeBitmap(blobData, blobSize);
+            frame.bitmap = bitmap;
+            if (bitmap == null) {
+                frame.metadata = new String[]{blobSizeString, null, format, null};
+            } else {
+                frame.metadata = new String[]{
+                        blobSizeString, bitmap.getWidth() + "x" + bitmap.getHeight(), format,
+                        (dataFormat.equals(".jpg") || dataFormat.equals(".jpeg")) ? "8" : null};
+            }
+        }
+    }
+
+    /**
+     * Calibrates a light frame with the master dark and flat, or adds a dark or flat frame to the next master.
+     */
+    private FitsDecoder calibrate(FitsDecoder decoder, CalibrationLibrary.FrameType type, boolean reload) throws IOException {
+        CalibrationLibrary library = getCalibrationLibrary();
+        if (type == CalibrationLibrary.FrameType.LIGHT) return library.calibrate(decoder);
+        if (reload) return decoder;
+        CalibrationLibrary.Batch batch = library.addFrame(type, decoder);
+        if (batch != null) combineMaster(batch);
+        return decoder;
+    }
+
+    /**
+     * Deletes the master frames of this camera and the frames waiting to be combined. Runs in the image writer thread,
+     * after the masters already being combined, and reports to {@link CameraListener#onMasterFramesDeleted()}.
+     */
+    public void deleteMasterFrames() {
+        CalibrationLibrary library = getCalibrationLibrary();
+        boolean submitted = imageWriter.submit(() -> {
+            library.clear();
+            events.post(CameraListener::onMasterFramesDeleted);
+        });
+        if (!submitted) imageSaveError(new IOException("Image saving queue full!"));
+    }
+
+    /**
+     * Combines the master in the image writer thread, since it takes a while and writes to disk.
+     */
+    private void combineMaster(CalibrationLibrary.Batch batch) {
+        boolean submitted = imageWriter.submit(() -> {
+            CalibrationLibrary.Master master = batch.combine();
+            events.post(listener -> listener.onMasterFrameCreated(master));
+        });
+        if (!submitted) {
+            Log.e(TAG, "Image saving queue full, master frame discarded!");
+            batch.discard();
+        }
+    }
+
+    /**
+     * Adds a FITS image to the live stack and renders the stack instead of the image.
+     * The frame keeps the decoder of the single image, for the history and the star detection.
+     */
+    private void stack(Frame frame, LiveStacker stacker, FitsDecoder decoder, boolean reload) {
+        if (reload) {
+            FitsDecoder stackDecoder = stacker.getDecoder();
+            renderFits(frame, (stackDecoder == null) ? decoder : stackDecoder);
+            frame.decoder = decoder;
+            return;
+        }
+        StarDetector.Result stars = new StarDetector(decoder).detect();
+        LiveStacker.Result result = stacker.add(decoder, stars);
+        FitsDecoder stackDecoder = stacker.getDecoder();
+        renderFits(frame, (stackDecoder == null) ? decoder : stackDecoder);
+        frame.decoder = decoder;
+        frame.stars = stars;
+        events.run("liveStack", () -> {
+            if (liveStacker != stacker) return;
+            events.deliver(listener -> listener.onLiveStackUpdated(result));
         });
-        if (queuedValue != null) startProcessing();
     }
 
-    private synchronized void startProcessing() {
-        loadingThread = new LoadingThread(queuedValue);
-        loadingThread.start();
-        queuedValue = null;
-        uiHandler.post(() -> {
-            synchronized (listeners) {
-                for (CameraListener listener : listeners) {
-                    listener.onImageLoading();
+    /**
+     * Stretches and renders a FITS image, downscaled to the preview size if needed.
+     */
+    private void renderFits(Frame frame, FitsDecoder decoder) {
+        frame.decoder = decoder;
+        ImagingService.Rendering rendering = ImagingService.render(decoder, stretch ? stretchers : null, previewSize, imagePool);
+        frame.renderer = rendering.renderer;
+        frame.luts = rendering.luts;
+        frame.bitmap = rendering.bitmap;
+        frame.scale = rendering.scale;
+    }
+
+    /**
+     * Queues a new BLOB for saving as it was received, if requested. Runs before the BLOB enters the image pipeline.
+     * Subframes taken in focus mode are never saved.
+     *
+     * @return {@code true} if the BLOB was queued for saving.
+     */
+    private boolean saveRawBLOB(INDIBLOBValue blobValue) {
+        if ((saveMode != SaveMode.SAVE_RAW_AND_SHOW) || (focusRegion != null) || (blobValue == null)) return false;
+        Date date = new Date();
+        if (imageWriter.submit(() -> saveRaw(blobValue, date))) return true;
+        Log.e(TAG, "Image saving queue full!");
+        imageSaveError(new IOException("Image saving queue full!"));
+        return false;
+    }
+
+    /**
+     * Post processing stage, run right after the decoding: queues the image for saving as JPG, if requested.
+     * The image writer gets its own copy of the image, since the displayed Bitmap returns to the pool.
+     */
+    private void postProcess(Frame frame) throws IOException {
+        // Frames of the history have already been saved, if needed, and focus frames are never saved
+        if ((frame.historyEntry != null) || isFocusFrame(focusRegion, frame.decoder)) return;
+        if ((saveMode != SaveMode.SAVE_JPG_AND_SHOW) || (frame.bitmap == null)) return;
+        Date date = new Date();
+        FitsRenderer renderer = frame.renderer;
+        int[][] luts = frame.luts;
+        ImageWriter.Job job;
+        if (renderer == null) {
+            Bitmap copy = frame.bitmap.copy(Bitmap.Config.ARGB_8888, true);
+            job = () -> {
+                try {
+                    saveImage(copy, date);
+                } finally {
+                    imagePool.release(copy);
+                }
+            };
+        } else {
+            job = () -> {
+                Bitmap fullResolution = renderBitmap(renderer, luts);
+                try {
+                    saveImage(fullResolution, date);
+                } finally {
+                    imagePool.release(fullResolution);
                 }
+            };
+        }
+        if (imageWriter.submit(job)) {
+            frame.saved = true;
+        } else {
+            throw new IOException("Image saving queue full!");
+        }
+    }
+
+    /**
+     * Last stage of the pipeline, runs on the UI thread: delivers the latest processed frame to the listeners.
+     */
+    private void publishFrame() {
+        Frame frame = processedFrames.poll();
+        if (frame == null) return;
+        statistics.record(FrameStatistics.Stage.PUBLISH, System.nanoTime() - frame.stageStart);
+        this.metadata = frame.metadata;
+        this.bitmapSaved = frame.saved;
+        this.displayedFrameId = frame.id;
+        this.displayedEntry = frame.historyEntry;
+        if (!events.hasListeners()) {
+            if (lastBitmap != null) {
+                imagePool.release(lastBitmap);
+                lastBitmap = null;
             }
-        });
+            recycleTile();
+            lastRenderer = null;
+            lastLuts = null;
+            imagePool.release(frame.bitmap);
+            return;
+        }
+        Bitmap oldBitmap = lastBitmap;
+        lastBitmap = frame.bitmap;
+        previewScale = frame.scale;
+        lastRenderer = (frame.scale > 1) ? frame.renderer : null;
+        lastLuts = (frame.scale > 1) ? frame.luts : null;
+        events.deliver(listener -> listener.onImageLoaded(frame.bitmap, frame.metadata));
+        imagePool.release(oldBitmap);
+        recycleTile();
+        if (frame.historyEntry != null) onFrameHistoryChanged();
+    }
+
+    /**
+     * Runs after the frame has been handed to the publishing stage, so it doesn't delay the display.
+     *
+     * @param result     the stars, if they were already detected to stack the frame.
+     * @param focusFrame {@code true} for subframes taken in focus mode: their stars are shown even if the star
+     *                   detection is disabled, but their coordinates can't be used to start the focus mode.
+     */
+    private StarDetector.Result detectStars(FitsDecoder decoder, FrameHistory.Entry entry,
+                                            StarDetector.Result result, boolean focusFrame) {
+        try {
+            if ((result == null) && (entry != null)) result = entry.getStars();
+            if (result == null) {
+                result = new StarDetector(decoder).detect();
+            }
+            if ((entry != null) && (entry.getStars() == null)) entry.setStars(result);
+            StarDetector.Result stars = result;
+            events.run("stars", () -> {
+                if (focusFrame) {
+                    if (focusRegion == null) return;
+                } else if (starDetection) {
+                    lastStars = stars;
+                } else {
+                    return;
+                }
+                events.deliver(listener -> listener.onStarsDetected(stars));
+            });
+            return result;
+        } catch (Exception e) {
+            Log.e(TAG, "Star detection error", e);
+            return null;
+        }
     }
 
     @Override
@@ -1096,6 +1848,7 @@ public class INDICamera implements INDIPropertyListener, Parcelable {
     public enum SaveMode {
         SHOW_ONLY(R.string.ccd_image_show_only),
         SAVE_JPG_AND_SHOW(R.string.ccd_image_save_show),
+        SAVE_RAW_AND_SHOW(R.string.ccd_image_save_raw_show),
         REMOTE_SAVE(R.string.ccd_image_remote_save),
         REMOTE_SAVE_AND_SHOW(R.string.ccd_image_remote_and_display);
 
@@ -1144,145 +1897,239 @@ public class INDICamera implements INDIPropertyListener, Parcelable {
 
         default void onCameraLoopStop() {
         }
+
+        default void onImageSaveError(Throwable e) {
+        }
+
+        default void onFrameHistoryChanged() {
+
+        }
+
+        default void onStarsDetected(@NonNull StarDetector.Result result) {
+        }
+
+        default void onLiveStackUpdated(@NonNull LiveStacker.Result result) {
+        }
+
+        default void onMasterFrameCreated(@NonNull CalibrationLibrary.Master master) {
+        }
+
+        default void onMasterFramesDeleted() {
+        }
+
+        /**
+         * @param tile   a full resolution region of the last image, valid until the next tile or image is loaded.
+         * @param region the position of the tile in the full resolution image.
+         *               Divide by {@link #getPreviewScale()} to get preview coordinates.
+         */
+        default void onFullResolutionTileLoaded(@NonNull Bitmap tile, @NonNull Rect region) {
+        }
     }
 
-    private class LoadingThread extends Thread {
+    /**
+     * A frame moving through the image pipeline.
+     */
+    private static class Frame {
 
+        private final long id;
         private final INDIBLOBValue blobValue;
-
-        private LoadingThread(@NonNull INDIBLOBValue blobValue) {
-            super("INDICamera loading thread");
+        /**
+         * The frame of the history this frame has been copied to or, if there's no BLOB, loaded from.
+         */
+        private volatile FrameHistory.Entry historyEntry;
+        /**
+         * When the frame entered the current stage, in nanoseconds.
+         */
+        private long stageStart = System.nanoTime();
+        private Bitmap bitmap = null;
+        private String[] metadata = null;
+        /**
+         * The renderer of the original FITS image, kept to save the image and to load full resolution tiles
+         * when the Bitmap is a downscaled preview.
+         */
+        private FitsRenderer renderer = null;
+        private FitsDecoder decoder = null;
+        /**
+         * The stars found to register the frame on the live stack.
+         */
+        private StarDetector.Result stars = null;
+        private int[][] luts = null;
+        /**
+         * The binning factor of the preview.
+         */
+        private int scale = 1;
+        private boolean saved = false;
+
+        private Frame(long id, INDIBLOBValue blobValue, FrameHistory.Entry historyEntry) {
+            this.id = id;
             this.blobValue = blobValue;
+            this.historyEntry = historyEntry;
+        }
+    }
+
+    /**
+     * Decoding stage, run on the imaging service: decodes the last frame received, if it hasn't been replaced yet,
+     * queues it for saving and hands it to the publishing stage. The analysis of the frame runs afterwards,
+     * with a lower priority.
+     */
+    private void decodeNextFrame() {
+        Frame frame = receivedFrames.poll();
+        if (frame == null) return;
+        long start = System.nanoTime();
+        statistics.record(FrameStatistics.Stage.RECEIVE, start - frame.stageStart);
+        events.post("imageLoading", CameraListener::onImageLoading);
+        try {
+            decode(frame);
+        } catch (Throwable t) {
+            imagePool.release(frame.bitmap);
+            onImageLoadingException(t);
+            if (frame.historyEntry == null) onFocusFrameAnalyzed();
+            return;
+        }
+        long decoded = System.nanoTime();
+        statistics.record(FrameStatistics.Stage.DECODE, decoded - start);
+        statistics.frameDecoded();
+        try {
+            postProcess(frame);
+        } catch (Exception e) {
+            Log.e(TAG, e.getLocalizedMessage(), e);
+            imageSaveError(e);
+        }
+        frame.stageStart = System.nanoTime();
+        statistics.record(FrameStatistics.Stage.POST_PROCESS, frame.stageStart - decoded);
+        Frame dropped = processedFrames.offer(frame);
+        if (dropped == null) {
+            events.run(null, this::publishFrame);
+        } else {
+            // A publication is already pending, it will pick up the newer frame
+            dropFrame(dropped);
+        }
+        if (frame.decoder == null) {
+            if (frame.historyEntry == null) onFocusFrameAnalyzed();
+            return;
+        }
+        // The Bitmap belongs to the publishing stage, a frame replaced before its analysis is simply skipped
+        decodedFrames.offer(frame);
+        postProcessingLane.submit(this::analyzeNextFrame);
+    }
+
+    /**
+     * Analysis stage, run on the imaging service with a lower priority than decoding and guide images,
+     * after the frame has been handed to the publishing stage: adds the frame to the history and detects its stars.
+     */
+    private void analyzeNextFrame() {
+        Frame frame = decodedFrames.poll();
+        if (frame == null) return;
+        FitsDecoder decoder = frame.decoder;
+        FocusRegion region = focusRegion;
+        boolean newFrame = (frame.historyEntry == null);
+        boolean focusFrame = newFrame && isFocusFrame(region, decoder);
+        // After the publication, so that copying the frame doesn't delay the display
+        if (newFrame && (!focusFrame)) addToHistory(frame);
+        if (starDetection || focusFrame) {
+            StarDetector.Result result = detectStars(decoder, frame.historyEntry, frame.stars, focusFrame);
+            if (focusFrame && (result != null)) trackStar(region, result);
+        }
+        if (newFrame) onFocusFrameAnalyzed();
+    }
+
+    /**
+     * The subframe around the star followed in focus mode, in unbinned pixels,
+     * and the frame settings to restore at the end.
+     */
+    private static class FocusRegion {
+
+        private final int originalX;
+        private final int originalY;
+        private final int originalWidth;
+        private final int originalHeight;
+        private final double originalBinX;
+        private final double originalBinY;
+        private final int sensorWidth;
+        private final int sensorHeight;
+        private final int binning;
+        /**
+         * Side of the subframe, a multiple of the binning.
+         */
+        private final int size;
+        private int x;
+        private int y;
+
+        private FocusRegion(INDICamera camera, int binning) {
+            originalX = (int) (double) camera.frameXE.getValue();
+            originalY = (int) (double) camera.frameYE.getValue();
+            originalWidth = (int) (double) camera.frameWidthE.getValue();
+            originalHeight = (int) (double) camera.frameHeightE.getValue();
+            if (camera.hasBinning()) {
+                originalBinX = camera.binningXE.getValue();
+                originalBinY = camera.binningYE.getValue();
+            } else {
+                originalBinX = originalBinY = 1.0;
+            }
+            // The maximum frame size is the size of the sensor
+            sensorWidth = Math.max((int) camera.frameWidthE.getMax(), originalX + originalWidth);
+            sensorHeight = Math.max((int) camera.frameHeightE.getMax(), originalY + originalHeight);
+            int size = Math.min(FOCUS_BOX_SIZE * binning, Math.min(sensorWidth, sensorHeight));
+            this.binning = binning;
+            this.size = Math.max(binning, (size / binning) * binning);
+        }
+
+        private void centerOn(double centerX, double centerY) {
+            x = Math.max(0, Math.min((int) Math.round(centerX - size / 2.0), sensorWidth - size));
+            y = Math.max(0, Math.min((int) Math.round(centerY - size / 2.0), sensorHeight - size));
+        }
+    }
+
+    private class TileThread extends Thread {
+
+        private TileThread() {
+            super("INDICamera tile thread");
         }
 
-        @SuppressLint("DefaultLocale")
         @Override
         public void run() {
-            try {
-                String format = blobValue.getFormat();
-                int blobSize = blobValue.getSize();
-                if (format.equals("") || (blobSize == 0))
-                    throw new FileNotFoundException();
-                String blobSizeString = String.format("%.2f MB", blobSize / 1000000.0);
-                byte[] blobData = blobValue.getBlobData();
-                if (format.equals(".fits") || format.equals(".fit") || format.equals(".fts")) {
-                    try (InputStream stream = new ByteArrayInputStream(blobData)) {
-                        int width = 0, height = 0;
-                        byte bitPerPix = 0;
-                        byte[] headerBuffer = new byte[80];
-                        int extraByte = -1;
-                        headerLoop:
-                        while (stream.read(headerBuffer, 0, 80) != -1) {
-                            String card = new String(headerBuffer);
-                            if (card.contains("BITPIX")) {
-                                bitPerPix = (byte) findFITSLineValue(card);
-                            } else if (card.contains("NAXIS1")) {
-                                width = findFITSLineValue(card);
-                            } else if (card.contains("NAXIS2")) {
-                                height = findFITSLineValue(card);
-                            } else if (card.contains("NAXIS")) {
-                                if (findFITSLineValue(card) != 2)
-                                    throw new IndexOutOfBoundsException("Color FITS are not yet supported.");
-                            } else if (card.startsWith("END ")) {
-                                while (true) {
-                                    extraByte = stream.read();
-                                    if (((char) extraByte) != ' ') break headerLoop;
-                                    if (stream.skip(79) != 79) throw new EOFException();
-                                }
-                            }
-                        }
-                        if ((bitPerPix == 0) || (width <= 0) || (height <= 0))
-                            throw new IllegalStateException("Invalid FITS image");
-                        if (bitPerPix == 32)
-                            throw new UnsupportedOperationException("32 bit FITS are not yet supported.");
-                        Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
-                        if (stretch) {
-                            int[][] img = new int[width][height];
-                            int min = Integer.MAX_VALUE, max = Integer.MIN_VALUE;
-                            if (bitPerPix == 8) {
-                                for (int h = 0; h < height; h++) {
-                                    for (int w = 0; w < width; w++) {
-                                        int val;
-                                        if (extraByte == -1) {
-                                            val = stream.read();
-                                        } else {
-                                            val = extraByte;
-                                            extraByte = -1;
-                                        }
-                                        img[w][h] = val;
-                                        if (val > max) max = val;
-                                        if (min > val) min = val;
-                                    }
-                                }
-                            } else if (bitPerPix == 16) {
-                                for (int h = 0; h < height; h++) {
-                                    for (int w = 0; w < width; w++) {
-                                        int val;
-                                        if (extraByte == -1) {
-                                            val = (stream.read() << 8) | stream.read();
-                                        } else {
-                                            val = (extraByte << 8) | stream.read();
-                                            extraByte = -1;
-                                        }
-                                        img[w][h] = val;
-                                        if (val > max) max = val;
-                                        if (min > val) min = val;
-                                    }
-                                }
-                            }
-                            double logMin = Math.log10(min), multiplier = 255.0 / (Math.log10(max) - logMin);
-                            for (int w = 0; w < width; w++) {
-                                for (int h = 0; h < height; h++) {
-                                    int interpolation = (int) ((Math.log10(img[w][h]) - logMin) * multiplier);
-                                    bitmap.setPixel(w, h, Color.rgb(interpolation, interpolation, interpolation));
-                                }
-                            }
-                        } else {
-                            if (bitPerPix == 8) {
-                                for (int h = 0; h < height; h++) {
-                                    for (int w = 0; w < width; w++) {
-                                        int val;
-                                        if (extraByte == -1) {
-                                            val = stream.read();
-                                        } else {
-                                            val = extraByte;
-                                            extraByte = -1;
-                                        }
-                                        bitmap.setPixel(w, h, Color.rgb(val, val, val));
-                                    }
-                                }
-                            } else if (bitPerPix == 16) {
-                                for (int h = 0; h < height; h++) {
-                                    for (int w = 0; w < width; w++) {
-                                        int val;
-                                        if (extraByte == -1) {
-                                            val = (stream.read() << 8) | stream.read();
-                                        } else {
-                                            val = (extraByte << 8) | stream.read();
-                                            extraByte = -1;
-                                        }
-                                        val /= 257;
-                                        bitmap.setPixel(w, h, Color.rgb(val, val, val));
-                                    }
+            Rect region;
+            while ((region = nextTile()) != null) {
+                FitsRenderer renderer = lastRenderer;
+                int[][] luts = lastLuts;
+                if ((renderer == null) || (luts == null) ||
+                        !region.intersect(0, 0, renderer.getWidth(), renderer.getHeight()) ||
+                        ((long) region.width() * region.height() > MAX_TILE_PIXELS)) continue;
+                try {
+                    int tileWidth = region.width();
+                    Bitmap tile = Bitmap.createBitmap(tileWidth, region.height(), Bitmap.Config.ARGB_8888);
+                    renderer.renderRegion(luts, region.left, region.top, tileWidth, region.height(),
+                            (argb, firstRow, rowCount) -> {
+                                synchronized (tile) {
+                                    tile.setPixels(argb, 0, tileWidth, 0, firstRow, tileWidth, rowCount);
                                 }
-                            }
+                            });
+                    final Rect tileRegion = region;
+                    events.run(null, () -> {
+                        if (renderer != lastRenderer) {
+                            tile.recycle();
+                            return;
                         }
-                        loadingFinished(bitmap, new String[]{
-                                blobSizeString, width + "x" + height, format, String.valueOf(bitPerPix)});
-                    }
-                } else {
-                    Bitmap bitmap = BitmapFactory.decodeByteArray(blobData, 0, blobSize);
-                    if (bitmap == null) {
-                        loadingFinished(null, new String[]{blobSizeString, null, format, null});
-                    } else {
-                        loadingFinished(bitmap, new String[]{
-                                blobSizeString, bitmap.getWidth() + "x" + bitmap.getHeight(), format,
-                                (format.equals(".jpg") || format.equals(".jpeg")) ? "8" : null});
-                    }
+                        Bitmap oldTile = lastTile;
+                        lastTile = tile;
+                        events.deliver(listener -> listener.onFullResolutionTileLoaded(tile, tileRegion));
+                        if (oldTile != null) oldTile.recycle();
+                    });
+                } catch (Throwable t) {
+                    Log.e(TAG, "Unable to load the full resolution tile!", t);
                 }
-            } catch (Throwable t) {
-                onImageLoadingException(t);
             }
         }
     }
-}
\ No newline at end of file
+
+    private static class DCIMFile {
+
+        private final Uri uri;
+        private final FileOutputStream stream;
+
+        private DCIMFile(Uri uri, FileOutputStream stream) {
+            this.uri = uri;
+            this.stream = stream;
+        }
+    }
+}
@@ -19,7 +19,6 @@ package io.github.marcocipriani01.telescopetouch.indi;
 
 import static io.github.marcocipriani01.telescopetouch.TelescopeTouchApp.connectionManager;
 
-import android.os.Handler;
 import android.util.Log;
 
 import androidx.annotation.NonNull;
@@ -36,17 +35,15 @@ import org.indilib.i4j.client.INDIValueException;
 import org.indilib.i4j.properties.INDIStandardElement;
 
 import java.util.Arrays;
-import java.util.HashSet;
-import java.util.Set;
 
 import io.github.marcocipriani01.telescopetouch.TelescopeTouchApp;
+import io.github.marcocipriani01.telescopetouch.UIEventBus;
 
 public class INDIFocuser implements INDIPropertyListener {
 
     private static final String TAG = TelescopeTouchApp.getTag(INDIFocuser.class);
     public final INDIDevice device;
-    private final Handler uiHandler;
-    private final Set<FocuserListener> listeners = new HashSet<>();
+    private final UIEventBus.Channel<FocuserListener> events = UIEventBus.getInstance().newChannel();
     public volatile INDISwitchProperty directionP = null;
     public volatile INDISwitchElement inwardDirectionE = null;
     public volatile INDISwitchElement outwardDirectionE = null;
@@ -61,9 +58,8 @@ public class INDIFocuser implements INDIPropertyListener {
     public volatile INDISwitchProperty abortP = null;
     public volatile INDISwitchElement abortE = null;
 
-    public INDIFocuser(INDIDevice device, Handler uiHandler) {
+    public INDIFocuser(INDIDevice device) {
         this.device = device;
-        this.uiHandler = uiHandler;
     }
 
     public static boolean isFocuserProp(INDIProperty<?> property) {
@@ -72,22 +68,18 @@ public class INDIFocuser implements INDIPropertyListener {
     }
 
     public void addListener(FocuserListener listener) {
-        synchronized (listeners) {
-            this.listeners.add(listener);
-        }
+        events.addListener(listener);
     }
 
     public void removeListener(FocuserListener listener) {
-        synchronized (listeners) {
-            this.listeners.remove(listener);
-        }
+        events.removeListener(listener);
     }
 
     public void abort() throws INDIValueException {
         if (!canAbort())
             throw new UnsupportedOperationException("Unsupported abort!");
         abortE.setDesiredValue(Constants.SwitchStatus.ON);
-        connectionManager.updateProperties(abortP);
+        connectionManager.sendProperties(abortP);
     }
 
     public void setAbsolutePosition(int val) throws INDIValueException {
@@ -110,7 +102,7 @@ public class INDIFocuser implements INDIPropertyListener {
         outwardDirectionE.setDesiredValue(Constants.SwitchStatus.ON);
         inwardDirectionE.setDesiredValue(Constants.SwitchStatus.OFF);
         relPositionE.setDesiredValue((double) steps);
-        connectionManager.updateProperties(directionP, relPositionP);
+        connectionManager.sendProperties(directionP, relPositionP);
     }
 
     public void moveInward(int steps) throws INDIValueException {
@@ -119,7 +111,7 @@ public class INDIFocuser implements INDIPropertyListener {
         inwardDirectionE.setDesiredValue(Constants.SwitchStatus.ON);
         outwardDirectionE.setDesiredValue(Constants.SwitchStatus.OFF);
         relPositionE.setDesiredValue((double) steps);
-        connectionManager.updateProperties(directionP, relPositionP);
+        connectionManager.sendProperties(directionP, relPositionP);
     }
 
     public void setSpeed(double val) throws INDIValueException {
@@ -160,22 +152,13 @@ public class INDIFocuser implements INDIPropertyListener {
 
     @Override
     public void propertyChanged(INDIProperty<?> indiProperty) {
-        if (indiProperty == absPositionP) {
-            uiHandler.post(() -> {
-                synchronized (listeners) {
-                    for (FocuserListener listener : listeners) {
-                        listener.onFocuserPositionChange((int) (double) absPositionE.getValue());
-                    }
-                }
-            });
-        } else if (indiProperty == speedP) {
-            uiHandler.post(() -> {
-                synchronized (listeners) {
-                    for (FocuserListener listener : listeners) {
-                        listener.onFocuserSpeedChange((int) (double) speedE.getValue());
-                    }
-                }
-            });
+        INDINumberElement absPositionE = this.absPositionE, speedE = this.speedE;
+        if ((indiProperty == absPositionP) && (absPositionE != null)) {
+            int position = (int) (double) absPositionE.getValue();
+            events.post("position", listener -> listener.onFocuserPositionChange(position));
+        } else if ((indiProperty == speedP) && (speedE != null)) {
+            int speed = (int) (double) speedE.getValue();
+            events.post("speed", listener -> listener.onFocuserSpeedChange(speed));
         }
     }
 
@@ -220,13 +203,7 @@ public class INDIFocuser implements INDIPropertyListener {
             default:
                 return;
         }
-        uiHandler.post(() -> {
-            synchronized (listeners) {
-                for (FocuserListener listener : listeners) {
-                    listener.onFocuserFunctionsChange();
-                }
-            }
-        });
+        events.post("functions", FocuserListener::onFocuserFunctionsChange);
     }
 
     public synchronized boolean removeProp(INDIProperty<?> property) {
@@ -260,21 +237,13 @@ public class INDIFocuser implements INDIPropertyListener {
             default:
                 return false;
         }
-        uiHandler.post(() -> {
-            synchronized (listeners) {
-                for (FocuserListener listener : listeners) {
-                    listener.onFocuserFunctionsChange();
-                }
-            }
-        });
+        events.post("functions", FocuserListener::onFocuserFunctionsChange);
         return (directionP == null) && (relPositionP == null) && (absPositionP == null) &&
                 (syncPositionP == null) && (speedP == null) && (abortP == null);
     }
 
     public void terminate() {
-        synchronized (listeners) {
-            listeners.clear();
-        }
+        events.clearListeners();
         relPositionP = null;
         relPositionE = null;
         absPositionP = null;
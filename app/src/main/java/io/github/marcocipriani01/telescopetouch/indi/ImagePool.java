@@ -0,0 +1,216 @@
+/*
+ * Copyright 2021 Marco Cipriani (@marcocipriani01)
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package io.github.marcocipriani01.telescopetouch.indi;
+
+import android.graphics.Bitmap;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Pool of ARGB_8888 bitmaps and int pixel buffers, keyed by size, so that frames of the same size
+ * (capture loops, guiding) reuse the memory of the previous ones instead of allocating it again.
+ * When the pooled memory exceeds the cap, the least recently used sizes are discarded first.
+ * All methods are thread-safe.
+ *
+ * @author marcocipriani01
+ */
+public class ImagePool {
+
+    private final Map<Long, ArrayDeque<Bitmap>> bitmaps = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<Integer, ArrayDeque<int[]>> buffers = new LinkedHashMap<>(16, 0.75f, true);
+    private long maxBytes;
+    private long pooledBytes = 0;
+    private long hits = 0;
+    private long misses = 0;
+
+    /**
+     * @param maxBytes the maximum amount of memory kept in the pool.
+     */
+    public ImagePool(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    private static long key(int width, int height) {
+        return ((long) width << 32) | (height & 0xffffffffL);
+    }
+
+    private static long sizeOf(Bitmap bitmap) {
+        return bitmap.getAllocationByteCount();
+    }
+
+    public synchronized long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public synchronized void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+        trim();
+    }
+
+    public synchronized long getPooledBytes() {
+        return pooledBytes;
+    }
+
+    /**
+     * @return how many requests were satisfied by a pooled bitmap or buffer.
+     */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * @return how many requests required a new allocation.
+     */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * @return a pooled bitmap with the given size, or {@code null} if there isn't any.
+     * Its content is undefined.
+     */
+    @Nullable
+    public synchronized Bitmap pollBitmap(int width, int height) {
+        ArrayDeque<Bitmap> queue = bitmaps.get(key(width, height));
+        Bitmap bitmap = (queue == null) ? null : queue.poll();
+        if (bitmap == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        pooledBytes -= sizeOf(bitmap);
+        return bitmap;
+    }
+
+    /**
+     * @return a mutable ARGB_8888 bitmap with the given size, from the pool if possible.
+     * Its content is undefined.
+     */
+    @NonNull
+    public Bitmap obtainBitmap(int width, int height) {
+        Bitmap bitmap = pollBitmap(width, height);
+        return (bitmap == null) ? Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888) : bitmap;
+    }
+
+    /**
+     * Gives a bitmap back to the pool. It must not be used by the caller anymore.
+     * Bitmaps that can't be reused, or that don't fit in the pool, are recycled.
+     */
+    public void release(@Nullable Bitmap bitmap) {
+        if ((bitmap == null) || bitmap.isRecycled()) return;
+        if ((!bitmap.isMutable()) || (bitmap.getConfig() != Bitmap.Config.ARGB_8888)) {
+            bitmap.recycle();
+            return;
+        }
+        synchronized (this) {
+            long size = sizeOf(bitmap);
+            if (size > maxBytes) {
+                bitmap.recycle();
+                return;
+            }
+            long key = key(bitmap.getWidth(), bitmap.getHeight());
+            ArrayDeque<Bitmap> queue = bitmaps.get(key);
+            if (queue == null) {
+                queue = new ArrayDeque<>();
+                bitmaps.put(key, queue);
+            }
+            queue.push(bitmap);
+            pooledBytes += size;
+            trim();
+        }
+    }
+
+    /**
+     * @return an int array with the given length, from the pool if possible. Its content is undefined.
+     */
+    @NonNull
+    public int[] obtainBuffer(int length) {
+        synchronized (this) {
+            ArrayDeque<int[]> queue = buffers.get(length);
+            int[] buffer = (queue == null) ? null : queue.poll();
+            if (buffer != null) {
+                hits++;
+                pooledBytes -= 4L * length;
+                return buffer;
+            }
+            misses++;
+        }
+        return new int[length];
+    }
+
+    /**
+     * Gives a buffer back to the pool. It must not be used by the caller anymore.
+     */
+    public synchronized void release(@Nullable int[] buffer) {
+        if (buffer == null) return;
+        long size = 4L * buffer.length;
+        if (size > maxBytes) return;
+        ArrayDeque<int[]> queue = buffers.get(buffer.length);
+        if (queue == null) {
+            queue = new ArrayDeque<>();
+            buffers.put(buffer.length, queue);
+        }
+        queue.push(buffer);
+        pooledBytes += size;
+        trim();
+    }
+
+    /**
+     * Recycles every pooled bitmap and drops every buffer.
+     */
+    public synchronized void clear() {
+        for (ArrayDeque<Bitmap> queue : bitmaps.values()) {
+            for (Bitmap bitmap : queue) {
+                bitmap.recycle();
+            }
+        }
+        bitmaps.clear();
+        buffers.clear();
+        pooledBytes = 0;
+    }
+
+    /**
+     * Discards the least recently used entries until the pool fits in the memory cap.
+     */
+    private void trim() {
+        Iterator<ArrayDeque<int[]>> bufferIterator = buffers.values().iterator();
+        while ((pooledBytes > maxBytes) && bufferIterator.hasNext()) {
+            ArrayDeque<int[]> queue = bufferIterator.next();
+            while ((pooledBytes > maxBytes) && (!queue.isEmpty())) {
+                pooledBytes -= 4L * queue.removeLast().length;
+            }
+            if (queue.isEmpty()) bufferIterator.remove();
+        }
+        Iterator<ArrayDeque<Bitmap>> bitmapIterator = bitmaps.values().iterator();
+        while ((pooledBytes > maxBytes) && bitmapIterator.hasNext()) {
+            ArrayDeque<Bitmap> queue = bitmapIterator.next();
+            while ((pooledBytes > maxBytes) && (!queue.isEmpty())) {
+                Bitmap bitmap = queue.removeLast();
+                pooledBytes -= sizeOf(bitmap);
+                bitmap.recycle();
+            }
+            if (queue.isEmpty()) bitmapIterator.remove();
+        }
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright 2021 Marco Cipriani (@marcocipriani01)
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package io.github.marcocipriani01.telescopetouch.indi;
+
+import java.util.Arrays;
+
+/**
+ * Histogram-based automatic stretch. Images are first accumulated in a 16-bit histogram, then the black,
+ * white and midtone points are derived from the median and the median absolute deviation of the data and
+ * baked into a lookup table that converts every 16-bit level into an opaque grayscale ARGB pixel.
+ *
+ * @author marcocipriani01
+ */
+public class ImageStretcher {
+
+    public static final int LEVELS = 65536;
+    private static final int MAX_LEVEL = LEVELS - 1;
+    /**
+     * Black point distance from the median, in units of normalized MAD.
+     */
+    private static final double SHADOWS_CLIPPING = -2.8;
+    /**
+     * Where the median of the image will be placed after the stretch.
+     */
+    private static final double TARGET_BACKGROUND = 0.25;
+    private static final double MAD_TO_SIGMA = 1.4826;
+    private static int[] linearLut = null;
+    private final int[] histogram = new int[LEVELS];
+    private final int[] lut = new int[LEVELS];
+    private int blackPoint = 0;
+    private int whitePoint = MAX_LEVEL;
+    private double midtone = 0.5;
+
+    /**
+     * @return a shared lookup table that maps 16-bit levels to 8-bit gray without any stretch.
+     */
+    public static synchronized int[] getLinearLut() {
+        if (linearLut == null) {
+            linearLut = new int[LEVELS];
+            for (int i = 0; i < LEVELS; i++) {
+                linearLut[i] = gray((i + 128) / 257);
+            }
+        }
+        return linearLut;
+    }
+
+    static int gray(int val) {
+        if (val < 0) {
+            val = 0;
+        } else if (val > 255) {
+            val = 255;
+        }
+        return 0xff000000 | (val << 16) | (val << 8) | val;
+    }
+
+    /**
+     * Midtones transfer function.
+     */
+    private static double mtf(double m, double x) {
+        if (x <= 0.0) return 0.0;
+        if (x >= 1.0) return 1.0;
+        return ((m - 1.0) * x) / (((2.0 * m) - 1.0) * x - m);
+    }
+
+    /**
+     * Clears the histogram and returns it, ready to be filled with a new image.
+     * Every element is the number of pixels that have the corresponding 16-bit level.
+     */
+    public int[] resetHistogram() {
+        Arrays.fill(histogram, 0);
+        return histogram;
+    }
+
+    public int[] getHistogram() {
+        return histogram;
+    }
+
+    public int getBlackPoint() {
+        return blackPoint;
+    }
+
+    public int getWhitePoint() {
+        return whitePoint;
+    }
+
+    public double getMidtone() {
+        return midtone;
+    }
+
+    /**
+     * Derives the stretch parameters from the current histogram and builds the lookup table.
+     *
+     * @return the lookup table, valid until the next call of this method.
+     */
+    public int[] computeLut() {
+        long total = 0;
+        int low = -1, high = -1;
+        for (int i = 0; i < LEVELS; i++) {
+            int count = histogram[i];
+            if (count != 0) {
+                total += count;
+                if (low == -1) low = i;
+                high = i;
+            }
+        }
+        if (total == 0) {
+            System.arraycopy(getLinearLut(), 0, lut, 0, LEVELS);
+            blackPoint = 0;
+            whitePoint = MAX_LEVEL;
+            midtone = 0.5;
+            return lut;
+        }
+        long half = (total + 1) / 2, cumulative = 0;
+        int median = low;
+        for (int i = low; i <= high; i++) {
+            cumulative += histogram[i];
+            if (cumulative >= half) {
+                median = i;
+                break;
+            }
+        }
+        // Median absolute deviation, found by growing a window around the median
+        cumulative = histogram[median];
+        int mad = 0;
+        while ((cumulative < half) && ((median - mad > low) || (median + mad < high))) {
+            mad++;
+            if (median - mad >= low) cumulative += histogram[median - mad];
+            if (median + mad <= high) cumulative += histogram[median + mad];
+        }
+        blackPoint = Math.max(low, (int) (median + SHADOWS_CLIPPING * MAD_TO_SIGMA * mad));
+        whitePoint = Math.max(high, blackPoint + 1);
+        double range = whitePoint - blackPoint,
+                x = (median - blackPoint) / range;
+        // Midtone balance that maps the median onto the target background
+        midtone = (x <= 0.0) ? 0.5 :
+                (x * (1.0 - TARGET_BACKGROUND)) / (x - 2.0 * TARGET_BACKGROUND * x + TARGET_BACKGROUND);
+        int black = gray(0), white = gray(255);
+        for (int i = 0; i <= blackPoint; i++) {
+            lut[i] = black;
+        }
+        for (int i = blackPoint + 1; i < whitePoint; i++) {
+            lut[i] = gray((int) (mtf(midtone, (i - blackPoint) / range) * 255.0 + 0.5));
+        }
+        for (int i = whitePoint; i < LEVELS; i++) {
+            lut[i] = white;
+        }
+        return lut;
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright 2021 Marco Cipriani (@marcocipriani01)
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package io.github.marcocipriani01.telescopetouch.indi;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import java.util.concurrent.ArrayBlockingQueue;
+
+import io.github.marcocipriani01.telescopetouch.TelescopeTouchApp;
+
+/**
+ * Bounded queue of files to write, processed in order by a dedicated thread,
+ * so that saving images never delays their display.
+ *
+ * @author marcocipriani01
+ */
+public class ImageWriter {
+
+    private static final String TAG = TelescopeTouchApp.getTag(ImageWriter.class);
+    /**
+     * Queued by {@link #close()} to stop the writer thread after the pending jobs.
+     */
+    private static final Job STOP = () -> {
+    };
+    private final ArrayBlockingQueue<Job> queue;
+    private final int capacity;
+    private final String name;
+    private final FailureListener failureListener;
+    private volatile Thread thread = null;
+    private volatile boolean closed = false;
+    private volatile boolean writing = false;
+    private volatile long written = 0;
+    private volatile long failed = 0;
+    private volatile long rejected = 0;
+
+    /**
+     * @param name            the name of the writer thread.
+     * @param capacity        how many jobs can wait in the queue.
+     * @param failureListener called on the writer thread when a job fails.
+     */
+    public ImageWriter(@NonNull String name, int capacity, @NonNull FailureListener failureListener) {
+        this.name = name;
+        this.capacity = capacity;
+        // One more slot, so that the stop job always fits
+        this.queue = new ArrayBlockingQueue<>(capacity + 1);
+        this.failureListener = failureListener;
+    }
+
+    /**
+     * Queues a job. Jobs are executed in the same order they are submitted.
+     *
+     * @return {@code false} if the queue is full or the writer closed, and thus the job was discarded.
+     */
+    public synchronized boolean submit(@NonNull Job job) {
+        if (closed || (queue.size() >= capacity) || (!queue.offer(job))) {
+            rejected++;
+            return false;
+        }
+        if (thread == null) {
+            thread = new WriterThread();
+            thread.start();
+        }
+        return true;
+    }
+
+    /**
+     * @return how many jobs are waiting or being executed.
+     */
+    public int getQueueDepth() {
+        return queue.size() + (writing ? 1 : 0);
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public long getWritten() {
+        return written;
+    }
+
+    public long getFailed() {
+        return failed;
+    }
+
+    /**
+     * @return how many jobs were discarded because the queue was full.
+     */
+    public long getRejected() {
+        return rejected;
+    }
+
+    /**
+     * Stops accepting new jobs. The ones already queued are still executed, then the writer thread stops.
+     * The writer thread is never interrupted, so that a job is never stopped while it is writing.
+     */
+    public synchronized void close() {
+        if (closed) return;
+        closed = true;
+        if (thread != null) queue.offer(STOP);
+    }
+
+    public interface Job {
+        void write() throws Exception;
+    }
+
+    public interface FailureListener {
+        void onWriteFailed(@NonNull Throwable e);
+    }
+
+    private class WriterThread extends Thread {
+
+        private WriterThread() {
+            super(name);
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                Job job;
+                try {
+                    job = queue.take();
+                } catch (InterruptedException e) {
+                    continue;
+                }
+                if (job == STOP) return;
+                writing = true;
+                try {
+                    job.write();
+                    written++;
+                } catch (Throwable t) {
+                    failed++;
+                    Log.e(TAG, "Unable to write the image!", t);
+                    failureListener.onWriteFailed(t);
+                } finally {
+                    writing = false;
+                }
+            }
+        }
+    }
+}
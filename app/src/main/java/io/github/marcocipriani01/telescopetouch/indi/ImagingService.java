@@ -0,0 +1,302 @@
+/*
+ * Copyright 2021 Marco Cipriani (@marcocipriani01)
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package io.github.marcocipriani01.telescopetouch.indi;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.nio.ShortBuffer;
+import java.util.HashMap;
+import java.util.PriorityQueue;
+import java.util.concurrent.ForkJoinPool;
+
+import io.github.marcocipriani01.telescopetouch.TelescopeTouchApp;
+
+/**
+ * Decodes and renders the images of every client of the app (INDI cameras, PHD2) on a small set of shared threads.
+ * Each client submits its work to a {@link Lane}: tasks of the same lane run one at a time and in order, and a task
+ * that is still waiting is replaced by a newer one, so the queue never holds more than one task per lane.
+ * Free threads always pick the waiting lane with the highest {@link Priority}.
+ *
+ * @author marcocipriani01
+ */
+public class ImagingService {
+
+    private static final String TAG = TelescopeTouchApp.getTag(ImagingService.class);
+    /**
+     * Renderers already split their work on the shared fork-join pool, two threads are enough to
+     * decode a camera frame while the previous one is post-processed or a guide image is loaded.
+     */
+    private static final int THREADS = 2;
+    private static ImagingService instance = null;
+    private static ForkJoinPool computePool = null;
+    private final PriorityQueue<Lane> queue = new PriorityQueue<>();
+    private long sequence = 0;
+    private long executed = 0;
+    private long replaced = 0;
+
+    private ImagingService() {
+        for (int i = 0; i < THREADS; i++) {
+            Worker worker = new Worker(i);
+            worker.setDaemon(true);
+            worker.start();
+        }
+    }
+
+    public static synchronized ImagingService getInstance() {
+        if (instance == null) instance = new ImagingService();
+        return instance;
+    }
+
+    /**
+     * @return the fork-join pool on which decoders, renderers and the other image processing classes
+     * split their work. It's shared by all of them, so there is never more than one compute thread per core.
+     */
+    public static synchronized ForkJoinPool getComputePool() {
+        if (computePool == null) computePool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        return computePool;
+    }
+
+    /**
+     * Creates a new serial queue of tasks.
+     *
+     * @param name     the name of the lane, for logging.
+     * @param priority the priority of its tasks over the ones of other lanes.
+     */
+    public Lane newLane(@NonNull String name, @NonNull Priority priority) {
+        return new Lane(name, priority);
+    }
+
+    /**
+     * @return how many tasks have been executed and how many have been replaced by a newer one before running.
+     */
+    public synchronized long[] getCounters() {
+        return new long[]{executed, replaced};
+    }
+
+    /**
+     * Stretches and renders an image, binned down to the given size if needed.
+     *
+     * @param stretchers the stretchers to use, or {@code null} to render with linear tables.
+     *                   They are reused, so they must not be shared among lanes.
+     * @param maxSize    the maximum width or height of the Bitmap, or {@code 0} to render at full resolution.
+     * @param pool       the pool of the Bitmap and of the row buffers.
+     */
+    public static Rendering render(@NonNull FitsDecoder decoder, @Nullable ImageStretcher[] stretchers,
+                                   int maxSize, @NonNull ImagePool pool) {
+        FitsRenderer renderer = new FitsRenderer(decoder);
+        renderer.setBufferPool(pool);
+        int[][] luts;
+        if (stretchers == null) {
+            luts = renderer.getLinearLuts();
+        } else {
+            // The stretchers reuse their tables, keep a copy for the full resolution tiles and the image writer
+            int[][] stretchLuts = renderer.computeStretch(stretchers);
+            luts = new int[stretchLuts.length][];
+            for (int i = 0; i < stretchLuts.length; i++) {
+                luts[i] = stretchLuts[i].clone();
+            }
+        }
+        int width = decoder.getWidth(), height = decoder.getHeight(), scale = 1;
+        if ((maxSize > 0) && (Math.max(width, height) > maxSize))
+            scale = renderer.getBinningFactor((Math.max(width, height) + maxSize - 1) / maxSize);
+        int bitmapWidth = width / scale;
+        Bitmap bitmap = pool.obtainBitmap(bitmapWidth, height / scale);
+        FitsRenderer.RowSink sink = (argb, firstRow, rowCount) -> {
+            synchronized (bitmap) {
+                bitmap.setPixels(argb, 0, bitmapWidth, 0, firstRow, bitmapWidth, rowCount);
+            }
+        };
+        if (scale > 1) {
+            renderer.renderBinned(luts, scale, sink);
+        } else {
+            renderer.render(luts, sink);
+        }
+        return new Rendering(renderer, luts, bitmap, scale);
+    }
+
+    /**
+     * Wraps 16-bit levels in a decoder, without copying them.
+     *
+     * @param levels the pixels, row after row, stored like unsigned 16-bit FITS data (level - 32768).
+     *               The array may be longer than the image.
+     */
+    public static FitsDecoder wrapUnsigned16(@NonNull short[] levels, int width, int height) {
+        if ((width <= 0) || (height <= 0) || (levels.length < width * height))
+            throw new IllegalArgumentException("Invalid 16-bit image!");
+        return new FitsDecoder(new HashMap<>(), ShortBuffer.wrap(levels), width, height, 1);
+    }
+
+    /**
+     * Draws a square around a star.
+     *
+     * @param x    the center of the star, in pixels of the Bitmap.
+     * @param y    the center of the star, in pixels of the Bitmap.
+     * @param size the side of the square.
+     */
+    public static void drawStarBox(@NonNull Bitmap bitmap, double x, double y, int size, int color) {
+        Paint paint = new Paint();
+        paint.setStyle(Paint.Style.STROKE);
+        paint.setColor(color);
+        float half = size / 2f;
+        new Canvas(bitmap).drawRect((float) x - half, (float) y - half, (float) x + half, (float) y + half, paint);
+    }
+
+    private synchronized void enqueue(Lane lane) {
+        lane.sequence = sequence++;
+        lane.queued = true;
+        queue.add(lane);
+        notify();
+    }
+
+    public enum Priority {
+        /**
+         * Frames of the main camera, which the user is waiting for.
+         */
+        CAMERA,
+        /**
+         * Guide star images.
+         */
+        GUIDER,
+        /**
+         * Work that can be delayed, like saving and analyzing frames that have already been displayed.
+         */
+        BACKGROUND
+    }
+
+    /**
+     * An image decoded and rendered by {@link #render(FitsDecoder, ImageStretcher[], int, ImagePool)}.
+     */
+    public static class Rendering {
+
+        public final FitsRenderer renderer;
+        public final int[][] luts;
+        public final Bitmap bitmap;
+        /**
+         * The binning factor of the Bitmap.
+         */
+        public final int scale;
+
+        private Rendering(FitsRenderer renderer, int[][] luts, Bitmap bitmap, int scale) {
+            this.renderer = renderer;
+            this.luts = luts;
+            this.bitmap = bitmap;
+            this.scale = scale;
+        }
+    }
+
+    /**
+     * A serial queue of tasks with a fixed priority.
+     */
+    public final class Lane implements Comparable<Lane> {
+
+        private final String name;
+        private final Priority priority;
+        private Runnable next = null;
+        private boolean queued = false;
+        private boolean running = false;
+        private long sequence;
+
+        private Lane(String name, Priority priority) {
+            this.name = name;
+            this.priority = priority;
+        }
+
+        /**
+         * Schedules a task, replacing the one of this lane that is still waiting, if any.
+         * If a task of this lane is running, the new one will run after it.
+         */
+        public void submit(@NonNull Runnable task) {
+            synchronized (ImagingService.this) {
+                if (next != null) replaced++;
+                next = task;
+                if ((!queued) && (!running)) enqueue(this);
+            }
+        }
+
+        /**
+         * Discards the task that is waiting, if any. The running one is not interrupted.
+         */
+        public void cancel() {
+            synchronized (ImagingService.this) {
+                next = null;
+                if (queued) {
+                    queue.remove(this);
+                    queued = false;
+                }
+            }
+        }
+
+        @Override
+        public int compareTo(Lane other) {
+            int result = priority.compareTo(other.priority);
+            return (result == 0) ? Long.compare(sequence, other.sequence) : result;
+        }
+
+        @NonNull
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+
+    private class Worker extends Thread {
+
+        private Worker(int index) {
+            super("Imaging service thread " + index);
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                Lane lane;
+                Runnable task;
+                synchronized (ImagingService.this) {
+                    while (queue.isEmpty()) {
+                        try {
+                            ImagingService.this.wait();
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                    lane = queue.poll();
+                    lane.queued = false;
+                    lane.running = true;
+                    task = lane.next;
+                    lane.next = null;
+                    executed++;
+                }
+                try {
+                    task.run();
+                } catch (Throwable t) {
+                    Log.e(TAG, "Task of lane " + lane + " failed", t);
+                } finally {
+                    synchronized (ImagingService.this) {
+                        lane.running = false;
+                        if (lane.next != null) enqueue(lane);
+                    }
+                }
+            }
+        }
+    }
+}
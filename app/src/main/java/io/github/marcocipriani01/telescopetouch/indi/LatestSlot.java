@@ -0,0 +1,86 @@
+/*
+ * Copyright 2021 Marco Cipriani (@marcocipriani01)
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package io.github.marcocipriani01.telescopetouch.indi;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * Bounded queue that holds a single element: a new element replaces the one waiting to be consumed,
+ * which is returned to the producer so that it can release its resources.
+ *
+ * @author marcocipriani01
+ */
+public class LatestSlot<T> {
+
+    private T item = null;
+    private boolean closed = false;
+
+    /**
+     * Puts an element in the slot.
+     *
+     * @return the element that was replaced, or {@code null}. If the slot is closed, the given element itself.
+     */
+    @Nullable
+    public synchronized T offer(@NonNull T item) {
+        if (closed) return item;
+        T old = this.item;
+        this.item = item;
+        notifyAll();
+        return old;
+    }
+
+    /**
+     * @return the element in the slot, or {@code null} if empty. Doesn't block.
+     */
+    @Nullable
+    public synchronized T poll() {
+        T item = this.item;
+        this.item = null;
+        return item;
+    }
+
+    /**
+     * Waits for an element.
+     *
+     * @return the element, or {@code null} if the slot has been closed or the thread interrupted.
+     */
+    @Nullable
+    public synchronized T take() {
+        while ((item == null) && (!closed)) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                return null;
+            }
+        }
+        return poll();
+    }
+
+    /**
+     * Closes the slot, waking up the consumer.
+     *
+     * @return the element that was waiting, or {@code null}.
+     */
+    @Nullable
+    public synchronized T close() {
+        closed = true;
+        notifyAll();
+        return poll();
+    }
+}
@@ -0,0 +1,678 @@
+/*
+ * Copyright 2021 Marco Cipriani (@marcocipriani01)
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package io.github.marcocipriani01.telescopetouch.indi;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.nio.ShortBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Live stacking of the frames of a capture loop. Every frame is registered on the first one matching
+ * triangles of stars (which makes the registration independent of shifts, rotations and meridian flips),
+ * then it's resampled and accumulated in parallel tiles into a running mean or a running kappa-sigma
+ * clipped mean. The stack can be rendered through {@link #getDecoder()} like any other FITS image.
+ * <p>
+ * The memory used doesn't depend on the number of frames: the stack is kept in float buffers
+ * that are binned, if needed, to fit the memory budget. Bayer frames are stacked as RGB superpixels.
+ *
+ * @author marcocipriani01
+ */
+public class LiveStacker {
+
+    private static final int TILE_SIZE = 128;
+    private static final int MAX_STARS = 30;
+    private static final int MIN_MATCHES = 3;
+    /**
+     * Maximum difference between the side ratios of two similar triangles.
+     */
+    private static final double TRIANGLE_TOLERANCE = 0.01;
+    /**
+     * Triangles with a side shorter than this, in pixels of the stack, are too sensitive to the centroid errors.
+     */
+    private static final double MIN_TRIANGLE_SIDE = 10.0;
+    /**
+     * Maximum distance, in pixels of the stack, between a registered star and its reference.
+     */
+    private static final double MAX_RESIDUAL = 2.0;
+    /**
+     * Frames needed before the kappa-sigma clipping starts rejecting pixels.
+     */
+    private static final int MIN_CLIPPING_FRAMES = 3;
+    private static final int MAX_LEVEL = ImageStretcher.LEVELS - 1;
+    private static final int MONO = 0, BAYER = 1, RGB = 2;
+    private final Mode mode;
+    private final double kappa;
+    private final long maxBytes;
+    private final int[] cfa = new int[4];
+    private int sourceWidth = 0;
+    private int sourceHeight = 0;
+    private int layout;
+    private int bayerOffsetX;
+    private int bayerOffsetY;
+    private int factor;
+    private int width;
+    private int height;
+    private int channels;
+    private Map<String, String> cards;
+    private float[][] means = null;
+    private float[][] squares = null;
+    private char[][] counts = null;
+    /**
+     * The 16-bit output, stored like unsigned FITS data. Once handed to a decoder, the array is never modified again:
+     * the next frame is accumulated in a copy.
+     */
+    private short[] levels = null;
+    private boolean levelsShared = false;
+    private double[][] referenceStars = null;
+    private Triangle[] referenceTriangles = null;
+    private int stacked = 0;
+    private int rejected = 0;
+
+    /**
+     * @param mode     how frames are combined.
+     * @param kappa    the rejection threshold, in standard deviations, for {@link Mode#KAPPA_SIGMA}.
+     * @param maxBytes the maximum amount of memory used by the stack.
+     */
+    public LiveStacker(@NonNull Mode mode, double kappa, long maxBytes) {
+        this.mode = mode;
+        this.kappa = kappa;
+        this.maxBytes = maxBytes;
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    public synchronized int getStackedFrames() {
+        return stacked;
+    }
+
+    public synchronized int getRejectedFrames() {
+        return rejected;
+    }
+
+    /**
+     * Discards the stack, the next frame becomes the new reference.
+     */
+    public synchronized void reset() {
+        means = squares = null;
+        counts = null;
+        levels = null;
+        levelsShared = false;
+        referenceStars = null;
+        referenceTriangles = null;
+        sourceWidth = sourceHeight = 0;
+        stacked = rejected = 0;
+    }
+
+    /**
+     * @return a decoder that reads the 16-bit levels of the stack, or {@code null} if it's empty.
+     * Its levels don't change when the next frames are added.
+     */
+    @Nullable
+    public synchronized FitsDecoder getDecoder() {
+        if ((levels == null) || (stacked == 0)) return null;
+        levelsShared = true;
+        return new FitsDecoder(cards, ShortBuffer.wrap(levels), width, height, channels);
+    }
+
+    /**
+     * Registers a frame on the reference and adds it to the stack. A frame with a different size resets the stack.
+     *
+     * @param stars the stars of the frame, see {@link StarDetector}.
+     * @return the outcome of the registration.
+     */
+    @NonNull
+    public synchronized Result add(@NonNull FitsDecoder decoder, @NonNull StarDetector.Result stars) {
+        long start = System.nanoTime();
+        if ((decoder.getWidth() != sourceWidth) || (decoder.getHeight() != sourceHeight) ||
+                (getLayout(decoder) != layout) || (means == null)) {
+            reset();
+            allocate(decoder);
+        }
+        double[][] frameStars = toStackCoordinates(stars);
+        if (referenceTriangles == null) {
+            if (frameStars.length < MIN_MATCHES) {
+                reset();
+                return new Result(this, false, Double.NaN, null, start);
+            }
+            referenceStars = frameStars;
+            referenceTriangles = triangles(frameStars);
+            // The reference is stacked as it is
+            double[] identity = {1.0, 0.0, 0.0, 0.0};
+            accumulate(decoder, identity);
+            stacked++;
+            return new Result(this, true, 0.0, identity, start);
+        }
+        double[] transform = null;
+        double rms = Double.NaN;
+        List<int[]> pairs = matchStars(frameStars);
+        if (pairs.size() >= MIN_MATCHES) {
+            double[] fit = fitTransform(referenceStars, frameStars, pairs);
+            if (fit != null) {
+                double scale = Math.hypot(fit[0], fit[1]);
+                // Frames of the same camera have the same scale
+                if ((scale > 0.95) && (scale < 1.05)) {
+                    transform = fit;
+                    rms = residuals(referenceStars, frameStars, pairs, fit, null);
+                }
+            }
+        }
+        if (transform == null) {
+            rejected++;
+            return new Result(this, false, rms, null, start);
+        }
+        accumulate(decoder, transform);
+        stacked++;
+        return new Result(this, true, rms, transform, start);
+    }
+
+    private static int getLayout(FitsDecoder decoder) {
+        if (decoder.getChannels() == 3) return RGB;
+        if ((decoder.getBayerPattern() != null) && (decoder.getWidth() > 1) && (decoder.getHeight() > 1))
+            return BAYER;
+        return MONO;
+    }
+
+    private void allocate(FitsDecoder decoder) {
+        sourceWidth = decoder.getWidth();
+        sourceHeight = decoder.getHeight();
+        layout = getLayout(decoder);
+        channels = (layout == MONO) ? 1 : 3;
+        if (layout == BAYER) {
+            String pattern = decoder.getBayerPattern();
+            for (int i = 0; i < 4; i++) {
+                char c = pattern.charAt(i);
+                cfa[i] = (c == 'R') ? 0 : ((c == 'G') ? 1 : 2);
+            }
+            bayerOffsetX = decoder.getBayerOffsetX();
+            bayerOffsetY = decoder.getBayerOffsetY();
+        }
+        // Mean, squared deviations (only for the clipping), sample count and 16-bit output
+        int bytesPerSample = 4 + ((mode == Mode.KAPPA_SIGMA) ? 4 : 0) + 2 + 2;
+        int step = (layout == BAYER) ? 2 : 1;
+        factor = step;
+        while (((long) (sourceWidth / factor) * (sourceHeight / factor) * channels * bytesPerSample > maxBytes) &&
+                (factor + step <= Math.min(sourceWidth, sourceHeight))) {
+            factor += step;
+        }
+        width = sourceWidth / factor;
+        height = sourceHeight / factor;
+        int pixels = width * height;
+        means = new float[channels][pixels];
+        squares = (mode == Mode.KAPPA_SIGMA) ? new float[channels][pixels] : null;
+        counts = new char[channels][pixels];
+        levels = new short[pixels * channels];
+        levelsShared = false;
+        cards = decoder.getCards();
+        // The stack is made of color planes, not of a Bayer matrix
+        cards.remove("BAYERPAT");
+        cards.remove("XBAYROFF");
+        cards.remove("YBAYROFF");
+    }
+
+    /**
+     * @return the coordinates of the brightest stars in the pixels of the stack.
+     */
+    private double[][] toStackCoordinates(StarDetector.Result stars) {
+        int count = Math.min(MAX_STARS, stars.stars.size());
+        double[][] coordinates = new double[count][];
+        for (int i = 0; i < count; i++) {
+            StarDetector.Star star = stars.stars.get(i);
+            coordinates[i] = new double[]{(star.x + 0.5) / factor - 0.5, (star.y + 0.5) / factor - 0.5};
+        }
+        return coordinates;
+    }
+
+    /**
+     * Builds every triangle of stars, described by the ratios of its sides, which don't change
+     * with translation, rotation and scale. Vertices are ordered by the length of the opposite side.
+     */
+    private static Triangle[] triangles(double[][] stars) {
+        List<Triangle> list = new ArrayList<>();
+        int n = stars.length;
+        for (int i = 0; i < n; i++) {
+            for (int j = i + 1; j < n; j++) {
+                for (int k = j + 1; k < n; k++) {
+                    Triangle triangle = Triangle.create(stars, i, j, k);
+                    if (triangle != null) list.add(triangle);
+                }
+            }
+        }
+        Triangle[] triangles = list.toArray(new Triangle[0]);
+        Arrays.sort(triangles, (a, b) -> Double.compare(a.ratio1, b.ratio1));
+        return triangles;
+    }
+
+    /**
+     * Every pair of similar triangles votes for the correspondence of their vertices.
+     *
+     * @return pairs of indices {reference star, frame star}.
+     */
+    private List<int[]> matchStars(double[][] frameStars) {
+        int referenceCount = referenceStars.length, frameCount = frameStars.length;
+        int[][] votes = new int[referenceCount][frameCount];
+        for (Triangle triangle : triangles(frameStars)) {
+            // First reference triangle with a compatible ratio
+            int low = 0, high = referenceTriangles.length;
+            double min = triangle.ratio1 - TRIANGLE_TOLERANCE;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (referenceTriangles[middle].ratio1 < min) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            double max = triangle.ratio1 + TRIANGLE_TOLERANCE;
+            for (int i = low; (i < referenceTriangles.length) && (referenceTriangles[i].ratio1 <= max); i++) {
+                Triangle reference = referenceTriangles[i];
+                if ((Math.abs(reference.ratio2 - triangle.ratio2) < TRIANGLE_TOLERANCE) &&
+                        (reference.clockwise == triangle.clockwise)) {
+                    for (int v = 0; v < 3; v++) {
+                        votes[reference.vertices[v]][triangle.vertices[v]]++;
+                    }
+                }
+            }
+        }
+        // Greedily take the most voted correspondences, every star at most once
+        List<int[]> pairs = new ArrayList<>();
+        boolean[] usedReference = new boolean[referenceCount], usedFrame = new boolean[frameCount];
+        while (true) {
+            int best = 1, bestI = -1, bestJ = -1;
+            for (int i = 0; i < referenceCount; i++) {
+                if (usedReference[i]) continue;
+                for (int j = 0; j < frameCount; j++) {
+                    if ((!usedFrame[j]) && (votes[i][j] > best)) {
+                        best = votes[i][j];
+                        bestI = i;
+                        bestJ = j;
+                    }
+                }
+            }
+            if (bestI == -1) break;
+            usedReference[bestI] = usedFrame[bestJ] = true;
+            pairs.add(new int[]{bestI, bestJ});
+        }
+        return pairs;
+    }
+
+    /**
+     * Least squares fit of a similarity transform from the reference to the frame.
+     * The outliers are removed from the pairs.
+     *
+     * @return {a, b, tx, ty}, such that {@code x' = a * x - b * y + tx} and {@code y' = b * x + a * y + ty},
+     * or {@code null} if too few stars fit.
+     */
+    private static double[] fitTransform(double[][] reference, double[][] frame, List<int[]> pairs) {
+        double[] residuals = new double[pairs.size()];
+        while (pairs.size() >= MIN_MATCHES) {
+            double px = 0.0, py = 0.0, qx = 0.0, qy = 0.0;
+            for (int[] pair : pairs) {
+                px += reference[pair[0]][0];
+                py += reference[pair[0]][1];
+                qx += frame[pair[1]][0];
+                qy += frame[pair[1]][1];
+            }
+            int n = pairs.size();
+            px /= n;
+            py /= n;
+            qx /= n;
+            qy /= n;
+            double sumA = 0.0, sumB = 0.0, norm = 0.0;
+            for (int[] pair : pairs) {
+                double x = reference[pair[0]][0] - px, y = reference[pair[0]][1] - py,
+                        u = frame[pair[1]][0] - qx, v = frame[pair[1]][1] - qy;
+                sumA += x * u + y * v;
+                sumB += x * v - y * u;
+                norm += x * x + y * y;
+            }
+            if (norm == 0.0) return null;
+            double a = sumA / norm, b = sumB / norm;
+            double[] transform = {a, b, qx - a * px + b * py, qy - b * px - a * py};
+            residuals(reference, frame, pairs, transform, residuals);
+            int worst = 0;
+            for (int i = 1; i < n; i++) {
+                if (residuals[i] > residuals[worst]) worst = i;
+            }
+            if (residuals[worst] <= MAX_RESIDUAL) return transform;
+            pairs.remove(worst);
+        }
+        return null;
+    }
+
+    /**
+     * @param out where to store the distance of every pair, or {@code null}.
+     * @return the RMS distance between the transformed reference stars and the frame stars.
+     */
+    private static double residuals(double[][] reference, double[][] frame, List<int[]> pairs,
+                                    double[] transform, double[] out) {
+        double sum = 0.0;
+        for (int i = 0; i < pairs.size(); i++) {
+            int[] pair = pairs.get(i);
+            double x = reference[pair[0]][0], y = reference[pair[0]][1],
+                    dx = transform[0] * x - transform[1] * y + transform[2] - frame[pair[1]][0],
+                    dy = transform[1] * x + transform[0] * y + transform[3] - frame[pair[1]][1],
+                    distance = Math.hypot(dx, dy);
+            if (out != null) out[i] = distance;
+            sum += distance * distance;
+        }
+        return Math.sqrt(sum / pairs.size());
+    }
+
+    private void accumulate(FitsDecoder decoder, double[] transform) {
+        if (levelsShared) {
+            // The levels are still being read by a renderer or by the image writer
+            levels = levels.clone();
+            levelsShared = false;
+        }
+        int tilesX = (width + TILE_SIZE - 1) / TILE_SIZE, tilesY = (height + TILE_SIZE - 1) / TILE_SIZE;
+        ImagingService.getComputePool().invoke(new TilesTask(decoder, transform, 0, tilesX * tilesY, tilesX));
+    }
+
+    /**
+     * Reads a region of the frame, binned like the stack, one array per channel.
+     *
+     * @param row a buffer for {@code factor * w} levels.
+     */
+    private void readRegion(FitsDecoder decoder, int x, int y, int w, int h, int[][] out, int[] row) {
+        int rowLength = factor * w, blockSize = factor * factor;
+        for (int c = 0; c < channels; c++) {
+            Arrays.fill(out[c], 0, w * h, 0);
+        }
+        for (int r = 0; r < h; r++) {
+            for (int k = 0; k < factor; k++) {
+                int sourceY = (y + r) * factor + k, start = sourceY * sourceWidth + x * factor;
+                if (layout == RGB) {
+                    for (int c = 0; c < 3; c++) {
+                        decoder.readLevels(c * sourceWidth * sourceHeight + start, rowLength, row, 0);
+                        addRow(row, out[c], r * w, w);
+                    }
+                } else {
+                    decoder.readLevels(start, rowLength, row, 0);
+                    if (layout == MONO) {
+                        addRow(row, out[0], r * w, w);
+                    } else {
+                        int rowPhase = ((sourceY + bayerOffsetY) & 1) << 1;
+                        for (int i = 0; i < rowLength; i++) {
+                            out[cfa[rowPhase | ((x * factor + i + bayerOffsetX) & 1)]][r * w + i / factor] += row[i];
+                        }
+                    }
+                }
+            }
+        }
+        if (layout == BAYER) {
+            // Every block contains (factor / 2)^2 Bayer matrices
+            int redBlue = blockSize / 4, green = blockSize / 2;
+            for (int c = 0; c < 3; c++) {
+                int divisor = (c == 1) ? green : redBlue;
+                int[] channel = out[c];
+                for (int i = 0, n = w * h; i < n; i++) {
+                    channel[i] /= divisor;
+                }
+            }
+        } else if (factor > 1) {
+            for (int c = 0; c < channels; c++) {
+                int[] channel = out[c];
+                for (int i = 0, n = w * h; i < n; i++) {
+                    channel[i] /= blockSize;
+                }
+            }
+        }
+    }
+
+    private void addRow(int[] row, int[] out, int offset, int w) {
+        if (factor == 1) {
+            for (int i = 0; i < w; i++) {
+                out[offset + i] += row[i];
+            }
+        } else {
+            for (int i = 0, j = 0; i < w; i++) {
+                int sum = 0;
+                for (int end = j + factor; j < end; j++) {
+                    sum += row[j];
+                }
+                out[offset + i] += sum;
+            }
+        }
+    }
+
+    /**
+     * Resamples a tile of the frame on the reference grid (bilinear interpolation)
+     * and adds it to the accumulators.
+     */
+    private void accumulateTile(FitsDecoder decoder, double[] transform, int tileX, int tileY, TileBuffers buffers) {
+        int x0 = tileX * TILE_SIZE, y0 = tileY * TILE_SIZE,
+                x1 = Math.min(x0 + TILE_SIZE, width), y1 = Math.min(y0 + TILE_SIZE, height);
+        double a = transform[0], b = transform[1], tx = transform[2], ty = transform[3];
+        // Bounding box of the tile in the frame
+        double minX = Double.MAX_VALUE, minY = Double.MAX_VALUE, maxX = -Double.MAX_VALUE, maxY = -Double.MAX_VALUE;
+        for (int corner = 0; corner < 4; corner++) {
+            double x = ((corner & 1) == 0) ? x0 : (x1 - 1), y = ((corner & 2) == 0) ? y0 : (y1 - 1),
+                    sx = a * x - b * y + tx, sy = b * x + a * y + ty;
+            minX = Math.min(minX, sx);
+            maxX = Math.max(maxX, sx);
+            minY = Math.min(minY, sy);
+            maxY = Math.max(maxY, sy);
+        }
+        int rx0 = Math.max(0, (int) Math.floor(minX)), ry0 = Math.max(0, (int) Math.floor(minY)),
+                rx1 = Math.min(width, (int) Math.floor(maxX) + 2), ry1 = Math.min(height, (int) Math.floor(maxY) + 2);
+        if ((rx1 <= rx0) || (ry1 <= ry0)) return;
+        int rw = rx1 - rx0, rh = ry1 - ry0;
+        int[][] region = buffers.region(channels, rw * rh, factor * rw);
+        readRegion(decoder, rx0, ry0, rw, rh, region, buffers.row);
+        boolean clipping = (mode == Mode.KAPPA_SIGMA);
+        int planeSize = width * height;
+        for (int y = y0; y < y1; y++) {
+            for (int x = x0; x < x1; x++) {
+                double sx = a * x - b * y + tx - rx0, sy = b * x + a * y + ty - ry0;
+                if ((sx < 0.0) || (sy < 0.0) || (sx > rw - 1) || (sy > rh - 1)) continue;
+                int ix = Math.min((int) sx, rw - 2), iy = Math.min((int) sy, rh - 2);
+                if ((ix < 0) || (iy < 0)) {
+                    // Regions one pixel wide or high
+                    ix = Math.max(ix, 0);
+                    iy = Math.max(iy, 0);
+                }
+                double fx = sx - ix, fy = sy - iy;
+                int i00 = iy * rw + ix, i01 = Math.min(i00 + 1, rw * rh - 1),
+                        i10 = Math.min(i00 + rw, rw * rh - 1), i11 = Math.min(i10 + 1, rw * rh - 1);
+                int index = y * width + x;
+                for (int c = 0; c < channels; c++) {
+                    int[] channel = region[c];
+                    float value = (float) ((channel[i00] * (1.0 - fx) + channel[i01] * fx) * (1.0 - fy) +
+                            (channel[i10] * (1.0 - fx) + channel[i11] * fx) * fy);
+                    float[] mean = means[c];
+                    char[] count = counts[c];
+                    int n = count[index];
+                    if (clipping) {
+                        float[] square = squares[c];
+                        if (n >= MIN_CLIPPING_FRAMES) {
+                            double sigma = Math.sqrt(square[index] / (n - 1));
+                            if (Math.abs(value - mean[index]) > kappa * sigma) continue;
+                        }
+                        if (n == Character.MAX_VALUE) continue;
+                        // Welford's online algorithm
+                        n++;
+                        float delta = value - mean[index];
+                        mean[index] += delta / n;
+                        square[index] += delta * (value - mean[index]);
+                    } else {
+                        if (n == Character.MAX_VALUE) continue;
+                        n++;
+                        mean[index] += (value - mean[index]) / n;
+                    }
+                    count[index] = (char) n;
+                    int level = (int) (mean[index] + 0.5f);
+                    levels[c * planeSize + index] = (short) (Math.max(0, Math.min(level, MAX_LEVEL)) - 32768);
+                }
+            }
+        }
+    }
+
+    public enum Mode {
+        /**
+         * Average of all the frames.
+         */
+        MEAN,
+        /**
+         * Average of the frames, excluding the pixels too far from the mean of the previous ones (satellites, planes).
+         */
+        KAPPA_SIGMA
+    }
+
+    /**
+     * The outcome of the last frame added to the stack.
+     */
+    public static class Result {
+
+        public final boolean registered;
+        public final int stackedFrames;
+        public final int rejectedFrames;
+        /**
+         * RMS distance of the registered stars from their references, in pixels of the stack.
+         */
+        public final double rms;
+        /**
+         * Offset of the center of the frame from the reference, in pixels of the original image.
+         */
+        public final double shiftX;
+        public final double shiftY;
+        /**
+         * Rotation of the frame relative to the reference, in degrees.
+         */
+        public final double rotation;
+        public final double durationMs;
+
+        private Result(LiveStacker stacker, boolean registered, double rms, double[] transform, long start) {
+            this.registered = registered;
+            this.stackedFrames = stacker.stacked;
+            this.rejectedFrames = stacker.rejected;
+            this.rms = rms;
+            if (transform == null) {
+                shiftX = shiftY = rotation = Double.NaN;
+            } else {
+                double x = (stacker.width - 1) / 2.0, y = (stacker.height - 1) / 2.0;
+                shiftX = (transform[0] * x - transform[1] * y + transform[2] - x) * stacker.factor;
+                shiftY = (transform[1] * x + transform[0] * y + transform[3] - y) * stacker.factor;
+                rotation = Math.toDegrees(Math.atan2(transform[1], transform[0]));
+            }
+            this.durationMs = (System.nanoTime() - start) / 1e6;
+        }
+    }
+
+    private static class Triangle {
+
+        private final int[] vertices;
+        /**
+         * Middle side / longest side.
+         */
+        private final double ratio1;
+        /**
+         * Shortest side / longest side.
+         */
+        private final double ratio2;
+        private final boolean clockwise;
+
+        private Triangle(int[] vertices, double ratio1, double ratio2, boolean clockwise) {
+            this.vertices = vertices;
+            this.ratio1 = ratio1;
+            this.ratio2 = ratio2;
+            this.clockwise = clockwise;
+        }
+
+        private static Triangle create(double[][] stars, int i, int j, int k) {
+            int[] vertices = {i, j, k};
+            // Side opposite to every vertex
+            double[] sides = {distance(stars[j], stars[k]), distance(stars[i], stars[k]), distance(stars[i], stars[j])};
+            // Sort the vertices by decreasing opposite side
+            for (int p = 0; p < 2; p++) {
+                for (int q = 0; q < 2 - p; q++) {
+                    if (sides[q] < sides[q + 1]) {
+                        double side = sides[q];
+                        sides[q] = sides[q + 1];
+                        sides[q + 1] = side;
+                        int vertex = vertices[q];
+                        vertices[q] = vertices[q + 1];
+                        vertices[q + 1] = vertex;
+                    }
+                }
+            }
+            if (sides[2] < MIN_TRIANGLE_SIDE) return null;
+            double[] a = stars[vertices[0]], b = stars[vertices[1]], c = stars[vertices[2]];
+            double cross = (b[0] - a[0]) * (c[1] - a[1]) - (b[1] - a[1]) * (c[0] - a[0]);
+            return new Triangle(vertices, sides[1] / sides[0], sides[2] / sides[0], cross > 0.0);
+        }
+
+        private static double distance(double[] a, double[] b) {
+            return Math.hypot(a[0] - b[0], a[1] - b[1]);
+        }
+    }
+
+    /**
+     * Buffers of a worker thread, reused across the tiles it processes.
+     */
+    private static class TileBuffers {
+
+        private int[][] region = null;
+        private int[] row = null;
+
+        private int[][] region(int channels, int size, int rowLength) {
+            if ((region == null) || (region[0].length < size)) region = new int[channels][size];
+            if ((row == null) || (row.length < rowLength)) row = new int[rowLength];
+            return region;
+        }
+    }
+
+    private class TilesTask extends RecursiveAction {
+
+        private static final int TILES_PER_TASK = 4;
+        private final FitsDecoder decoder;
+        private final double[] transform;
+        private final int from;
+        private final int to;
+        private final int tilesX;
+
+        private TilesTask(FitsDecoder decoder, double[] transform, int from, int to, int tilesX) {
+            this.decoder = decoder;
+            this.transform = transform;
+            this.from = from;
+            this.to = to;
+            this.tilesX = tilesX;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= TILES_PER_TASK) {
+                TileBuffers buffers = new TileBuffers();
+                for (int i = from; i < to; i++) {
+                    accumulateTile(decoder, transform, i % tilesX, i / tilesX, buffers);
+                }
+            } else {
+                int middle = (from + to) >>> 1;
+                invokeAll(new TilesTask(decoder, transform, from, middle, tilesX),
+                        new TilesTask(decoder, transform, middle, to, tilesX));
+            }
+        }
+    }
+}
@@ -0,0 +1,244 @@
+/*
+ * Copyright 2021 Marco Cipriani (@marcocipriani01)
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package io.github.marcocipriani01.telescopetouch.indi;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.indilib.i4j.client.INDIDevice;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+import io.github.marcocipriani01.telescopetouch.TelescopeTouchApp;
+
+/**
+ * Fixed-capacity store of the logs of {@link ConnectionManager}, kept in a ring buffer: when it's full,
+ * the oldest log is dropped or, if a spill file is set, written to disk. Only the last message of every device
+ * is kept, and an index from the devices to their last message makes replacing it O(1): the old message leaves
+ * a hole, which is removed the next time the logs are read. When the store is full, holes at the head are skipped,
+ * and the others are compacted only once they fill {@link #COMPACTION_RATIO} of the capacity, so adding a log
+ * stays O(1) on average.
+ * Not thread-safe: the logs must be read and written on the UI thread.
+ *
+ * @author marcocipriani01
+ */
+public class LogStore {
+
+    private static final String TAG = TelescopeTouchApp.getTag(LogStore.class);
+    /**
+     * Evicted logs are written to the spill file in chunks of about this many characters.
+     */
+    private static final int SPILL_CHUNK = 4096;
+    /**
+     * A full store is compacted instead of evicting its oldest log when at least this fraction of its slots are holes.
+     */
+    private static final double COMPACTION_RATIO = 0.25;
+    private final ConnectionManager.LogItem[] ring;
+    private final Map<INDIDevice, ConnectionManager.LogItem> deviceLogs = new HashMap<>();
+    private final StringBuilder spillBuffer = new StringBuilder();
+    /**
+     * Sequence number of the oldest slot and of the next log. The slot of a log is its sequence number modulo the capacity.
+     */
+    private long first = 0, next = 0;
+    private int holes = 0;
+    private long evicted = 0;
+    private File spillFile = null;
+    private Executor spillExecutor = null;
+
+    public LogStore(int capacity) {
+        if (capacity <= 0) throw new IllegalArgumentException("Invalid capacity!");
+        ring = new ConnectionManager.LogItem[capacity];
+    }
+
+    /**
+     * Writes the evicted logs to the given file instead of dropping them.
+     *
+     * @param file     the file, truncated by this call, or {@code null} to drop the evicted logs.
+     * @param executor the executor that writes to the file, to keep the disk off the UI thread.
+     */
+    public void setSpillFile(@Nullable File file, @NonNull Executor executor) {
+        flushSpill();
+        spillFile = file;
+        spillExecutor = executor;
+        if (file != null) executor.execute(() -> write(file, "", false));
+    }
+
+    /**
+     * Appends a log. If it belongs to a device, the previous message of the device is removed.
+     */
+    public void add(@NonNull ConnectionManager.LogItem item) {
+        INDIDevice device = item.getDevice();
+        if (device != null) {
+            ConnectionManager.LogItem old = deviceLogs.put(device, item);
+            if ((old != null) && (slotOf(old) >= 0)) {
+                ring[slotOf(old)] = null;
+                holes++;
+            }
+        }
+        if (next - first == ring.length) {
+            skipHoles();
+            if (next - first == ring.length) {
+                if (holes >= ring.length * COMPACTION_RATIO) {
+                    compact();
+                } else {
+                    evictOldest();
+                }
+            }
+        }
+        item.sequence = next;
+        ring[(int) (next % ring.length)] = item;
+        next++;
+    }
+
+    /**
+     * Moves the head of the ring past the holes left by replaced device messages.
+     */
+    private void skipHoles() {
+        while ((holes > 0) && (first < next) && (ring[(int) (first % ring.length)] == null)) {
+            first++;
+            holes--;
+        }
+    }
+
+    private void evictOldest() {
+        int slot = (int) (first % ring.length);
+        ConnectionManager.LogItem item = ring[slot];
+        ring[slot] = null;
+        first++;
+        evicted++;
+        skipHoles();
+        INDIDevice device = item.getDevice();
+        if ((device != null) && (deviceLogs.get(device) == item)) deviceLogs.remove(device);
+        if (spillFile != null) {
+            spillBuffer.append(item.getTimestamp()).append('\t').append(item.getLog().replace('\n', ' ')).append('\n');
+            if (spillBuffer.length() >= SPILL_CHUNK) flushSpill();
+        }
+    }
+
+    /**
+     * Hands the pending evicted logs to the spill executor.
+     */
+    public void flushSpill() {
+        if ((spillFile == null) || (spillBuffer.length() == 0)) return;
+        File file = spillFile;
+        String chunk = spillBuffer.toString();
+        spillBuffer.setLength(0);
+        spillExecutor.execute(() -> write(file, chunk, true));
+    }
+
+    private static void write(File file, String text, boolean append) {
+        try (OutputStream stream = new FileOutputStream(file, append)) {
+            stream.write(text.getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to write the logs to disk", e);
+        }
+    }
+
+    /**
+     * Moves the logs next to each other, removing the holes left by replaced device messages.
+     */
+    private void compact() {
+        if (holes == 0) return;
+        long target = next;
+        for (long seq = next - 1; seq >= first; seq--) {
+            int slot = (int) (seq % ring.length);
+            ConnectionManager.LogItem item = ring[slot];
+            if (item == null) continue;
+            ring[slot] = null;
+            target--;
+            item.sequence = target;
+            ring[(int) (target % ring.length)] = item;
+        }
+        first = target;
+        holes = 0;
+    }
+
+    /**
+     * @return the slot of the given log, or {@code -1} if it isn't in the store.
+     */
+    private int slotOf(ConnectionManager.LogItem item) {
+        long seq = item.sequence;
+        if ((seq < first) || (seq >= next)) return -1;
+        int slot = (int) (seq % ring.length);
+        return (ring[slot] == item) ? slot : -1;
+    }
+
+    public int size() {
+        return (int) (next - first) - holes;
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    public int getCapacity() {
+        return ring.length;
+    }
+
+    /**
+     * @return how many logs have been dropped or spilled to disk because the store was full.
+     */
+    public long getEvictedCount() {
+        return evicted;
+    }
+
+    /**
+     * @param position the position of the log, from the oldest one.
+     */
+    @NonNull
+    public ConnectionManager.LogItem get(int position) {
+        compact();
+        if ((position < 0) || (position >= size()))
+            throw new IndexOutOfBoundsException("Position " + position + ", size " + size());
+        return ring[(int) ((first + position) % ring.length)];
+    }
+
+    /**
+     * @return the position of the given log, or {@code -1} if it isn't in the store.
+     */
+    public int indexOf(@NonNull ConnectionManager.LogItem item) {
+        compact();
+        return (slotOf(item) < 0) ? -1 : (int) (item.sequence - first);
+    }
+
+    /**
+     * @return the last message of the given device, or {@code null}.
+     */
+    @Nullable
+    public ConnectionManager.LogItem getDeviceLog(@NonNull INDIDevice device) {
+        return deviceLogs.get(device);
+    }
+
+    public void clear() {
+        flushSpill();
+        Arrays.fill(ring, null);
+        first = next;
+        holes = 0;
+        deviceLogs.clear();
+    }
+}
@@ -0,0 +1,183 @@
+/*
+ * Copyright 2021 Marco Cipriani (@marcocipriani01)
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package io.github.marcocipriani01.telescopetouch.indi;
+
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import org.indilib.i4j.client.INDIProperty;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import io.github.marcocipriani01.telescopetouch.TelescopeTouchApp;
+
+/**
+ * Sends property changes to the INDI drivers on the INDI thread. A property is sent right away, unless it was sent
+ * less than {@link #COALESCING_WINDOW_MS} ago: then it waits for the end of the window, and if it's requested again
+ * in the meantime it's sent only once, with its latest desired values. A property keeps the position of its first
+ * pending request, so properties are always sent in the order they were requested.
+ * Commands that must never be merged (aborts, relative movements) can be sent immediately instead.
+ *
+ * @author marcocipriani01
+ */
+class PropertyDispatcher {
+
+    private static final String TAG = TelescopeTouchApp.getTag(PropertyDispatcher.class);
+    /**
+     * Updates of a property requested within this time after it was sent are sent together.
+     */
+    private static final long COALESCING_WINDOW_MS = 50;
+    private final Handler handler;
+    private final List<Update> queue = new ArrayList<>();
+    private final Map<INDIProperty<?>, Update> coalescible = new HashMap<>();
+    /**
+     * When every property was last sent, in {@link SystemClock#uptimeMillis()}.
+     */
+    private final Map<INDIProperty<?>, Long> lastSent = new HashMap<>();
+    private final Runnable flush = this::flush;
+    private boolean flushScheduled = false;
+    private boolean flushImmediate = false;
+    private int queueDepth = 0;
+    private int maxQueueDepth = 0;
+    private long requested = 0;
+    private long sent = 0;
+
+    /**
+     * @param handler the handler of the thread that talks to the INDI server.
+     */
+    PropertyDispatcher(@NonNull Handler handler) {
+        this.handler = handler;
+    }
+
+    /**
+     * Queues the given properties, merging them with the pending updates of the same properties.
+     */
+    synchronized void update(INDIProperty<?>... properties) {
+        long now = SystemClock.uptimeMillis();
+        long delay = 0;
+        boolean added = false;
+        for (INDIProperty<?> property : properties) {
+            requested++;
+            // The desired values are stored in the property, the pending update will send the latest ones
+            if (coalescible.containsKey(property)) continue;
+            Update update = new Update(property);
+            queue.add(update);
+            queueDepth++;
+            coalescible.put(property, update);
+            added = true;
+            Long sentTime = lastSent.get(property);
+            if (sentTime != null) delay = Math.max(delay, sentTime + COALESCING_WINDOW_MS - now);
+        }
+        maxQueueDepth = Math.max(maxQueueDepth, queueDepth);
+        if (!added) return;
+        if (delay <= 0) {
+            scheduleFlushNow();
+        } else if (!flushScheduled) {
+            // The window starts with the first delayed update, continuous updates can't delay the sending forever
+            handler.postDelayed(flush, delay);
+            flushScheduled = true;
+        }
+    }
+
+    /**
+     * Sends the given properties as soon as possible, after the updates already in the queue.
+     * They are never merged with later updates.
+     */
+    synchronized void send(INDIProperty<?>... properties) {
+        for (INDIProperty<?> property : properties) {
+            requested++;
+            queue.add(new Update(property));
+            queueDepth++;
+        }
+        maxQueueDepth = Math.max(maxQueueDepth, queueDepth);
+        scheduleFlushNow();
+    }
+
+    private void scheduleFlushNow() {
+        if (flushImmediate) return;
+        handler.removeCallbacks(flush);
+        handler.post(flush);
+        flushScheduled = flushImmediate = true;
+    }
+
+    /**
+     * Discards the pending updates.
+     */
+    synchronized void clear() {
+        handler.removeCallbacks(flush);
+        flushScheduled = flushImmediate = false;
+        queue.clear();
+        coalescible.clear();
+        lastSent.clear();
+        queueDepth = 0;
+    }
+
+    private void flush() {
+        Update[] updates;
+        synchronized (this) {
+            flushScheduled = flushImmediate = false;
+            updates = queue.toArray(new Update[0]);
+            queue.clear();
+            coalescible.clear();
+            queueDepth = 0;
+        }
+        for (Update update : updates) {
+            INDIProperty<?> property = update.property;
+            try {
+                property.sendChangesToDriver();
+                synchronized (this) {
+                    sent++;
+                    lastSent.put(property, SystemClock.uptimeMillis());
+                }
+            } catch (Exception e) {
+                Log.e(TAG, "Property update error!", e);
+                TelescopeTouchApp.connectionManager.log(e);
+            }
+        }
+    }
+
+    /**
+     * @return the number of requested updates, of properties sent to the drivers,
+     * of updates waiting to be sent, and the maximum number of updates ever waiting.
+     */
+    synchronized long[] getCounters() {
+        return new long[]{requested, sent, queueDepth, maxQueueDepth};
+    }
+
+    /**
+     * @return how many updates were requested for each property sent, {@code 1} meaning no coalescing.
+     */
+    synchronized double getCoalescingRatio() {
+        return (sent == 0) ? 1.0 : ((double) (requested - queueDepth) / sent);
+    }
+
+    private static class Update {
+
+        private final INDIProperty<?> property;
+
+        private Update(INDIProperty<?> property) {
+            this.property = property;
+        }
+    }
+}
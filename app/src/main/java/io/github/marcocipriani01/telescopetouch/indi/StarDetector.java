@@ -0,0 +1,348 @@
+/*
+ * Copyright 2021 Marco Cipriani (@marcocipriani01)
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package io.github.marcocipriani01.telescopetouch.indi;
+
+import androidx.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Finds the stars in a FITS image and measures their half flux radius and FWHM.
+ * The image is split in tiles that are processed in parallel: every tile estimates its own background
+ * and noise, thresholds the pixels and groups them in connected components. Tiles overlap by a margin,
+ * and a star belongs to the tile that contains its centroid, so that stars on the borders are measured once.
+ * Bayer images are binned 2x2 before the detection, RGB images use the green plane.
+ *
+ * @author marcocipriani01
+ */
+public class StarDetector {
+
+    private static final int TILE_SIZE = 256;
+    private static final int MARGIN = 16;
+    /**
+     * Detection threshold, in units of background noise.
+     */
+    private static final double THRESHOLD_SIGMA = 5.0;
+    private static final double MAD_TO_SIGMA = 1.4826;
+    private static final double SIGMA_TO_FWHM = 2.35482;
+    private static final int MIN_PIXELS = 4;
+    private static final int MAX_PIXELS = 2500;
+    /**
+     * The background is estimated from one pixel every SAMPLING, in both directions.
+     */
+    private static final int SAMPLING = 3;
+    private static final int SATURATION = 65000;
+    private final FitsDecoder decoder;
+    private final int binning;
+    private final int plane;
+    private final int width;
+    private final int height;
+
+    public StarDetector(@NonNull FitsDecoder decoder) {
+        this.decoder = decoder;
+        if (decoder.getChannels() == 3) {
+            binning = 1;
+            plane = 1;
+        } else {
+            binning = ((decoder.getBayerPattern() != null) && (decoder.getWidth() > 1) && (decoder.getHeight() > 1)) ? 2 : 1;
+            plane = 0;
+        }
+        width = decoder.getWidth() / binning;
+        height = decoder.getHeight() / binning;
+    }
+
+    private static double median(double[] values, int count) {
+        if (count == 0) return Double.NaN;
+        Arrays.sort(values, 0, count);
+        return ((count & 1) == 1) ? values[count / 2] : ((values[count / 2 - 1] + values[count / 2]) / 2.0);
+    }
+
+    private static double median(int[] values, int count) {
+        if (count == 0) return Double.NaN;
+        Arrays.sort(values, 0, count);
+        return ((count & 1) == 1) ? values[count / 2] : ((values[count / 2 - 1] + values[count / 2]) / 2.0);
+    }
+
+    /**
+     * Runs the detection.
+     */
+    @NonNull
+    public Result detect() {
+        long start = System.nanoTime();
+        int tilesX = (width + TILE_SIZE - 1) / TILE_SIZE, tilesY = (height + TILE_SIZE - 1) / TILE_SIZE;
+        Tile[] tiles = new Tile[tilesX * tilesY];
+        for (int ty = 0; ty < tilesY; ty++) {
+            for (int tx = 0; tx < tilesX; tx++) {
+                tiles[ty * tilesX + tx] = new Tile(tx * TILE_SIZE, ty * TILE_SIZE,
+                        Math.min(TILE_SIZE, width - tx * TILE_SIZE), Math.min(TILE_SIZE, height - ty * TILE_SIZE));
+            }
+        }
+        ImagingService.getComputePool().invoke(new TilesTask(tiles, 0, tiles.length));
+        List<Star> stars = new ArrayList<>();
+        double[] backgrounds = new double[tiles.length], noises = new double[tiles.length];
+        for (int i = 0; i < tiles.length; i++) {
+            stars.addAll(tiles[i].stars);
+            backgrounds[i] = tiles[i].background;
+            noises[i] = tiles[i].noise;
+        }
+        double[] hfrs = new double[stars.size()], fwhms = new double[stars.size()];
+        int count = 0;
+        for (Star star : stars) {
+            if (!star.saturated) {
+                hfrs[count] = star.hfr;
+                fwhms[count++] = star.fwhm;
+            }
+        }
+        Collections.sort(stars, (a, b) -> Double.compare(b.flux, a.flux));
+        return new Result(stars, median(backgrounds, tiles.length) / binning / binning, median(noises, tiles.length) / binning,
+                median(hfrs, count), median(fwhms, count), (System.nanoTime() - start) / 1000000L);
+    }
+
+    /**
+     * Reads a region of the detection image, in the binned coordinate system.
+     */
+    private void readRegion(int x, int y, int w, int h, int[] levels, int[] row) {
+        int fullWidth = decoder.getWidth(), planeOffset = plane * fullWidth * decoder.getHeight();
+        if (binning == 1) {
+            for (int r = 0; r < h; r++) {
+                decoder.readLevels(planeOffset + (y + r) * fullWidth + x, w, levels, r * w);
+            }
+        } else {
+            int rowLength = w * binning;
+            for (int r = 0; r < h; r++) {
+                int out = r * w, start = planeOffset + (y + r) * binning * fullWidth + x * binning;
+                decoder.readLevels(start, rowLength, row, 0);
+                for (int i = 0; i < w; i++) {
+                    levels[out + i] = row[2 * i] + row[2 * i + 1];
+                }
+                decoder.readLevels(start + fullWidth, rowLength, row, 0);
+                for (int i = 0; i < w; i++) {
+                    levels[out + i] += row[2 * i] + row[2 * i + 1];
+                }
+            }
+        }
+    }
+
+    /**
+     * A star. Coordinates and sizes are in pixels of the original image.
+     */
+    public static class Star {
+
+        public final double x;
+        public final double y;
+        /**
+         * Sum of the background-subtracted levels.
+         */
+        public final double flux;
+        public final int peak;
+        public final double hfr;
+        public final double fwhm;
+        public final boolean saturated;
+
+        private Star(double x, double y, double flux, int peak, double hfr, double fwhm, boolean saturated) {
+            this.x = x;
+            this.y = y;
+            this.flux = flux;
+            this.peak = peak;
+            this.hfr = hfr;
+            this.fwhm = fwhm;
+            this.saturated = saturated;
+        }
+    }
+
+    /**
+     * Statistics of a frame. Medians exclude saturated stars.
+     */
+    public static class Result {
+
+        /**
+         * The stars, brightest first.
+         */
+        public final List<Star> stars;
+        public final double background;
+        public final double noise;
+        public final double medianHfr;
+        public final double medianFwhm;
+        public final long durationMs;
+
+        private Result(List<Star> stars, double background, double noise,
+                       double medianHfr, double medianFwhm, long durationMs) {
+            this.stars = Collections.unmodifiableList(stars);
+            this.background = background;
+            this.noise = noise;
+            this.medianHfr = medianHfr;
+            this.medianFwhm = medianFwhm;
+            this.durationMs = durationMs;
+        }
+    }
+
+    private class Tile {
+
+        private final int x;
+        private final int y;
+        private final int w;
+        private final int h;
+        private final List<Star> stars = new ArrayList<>();
+        private double background = 0.0;
+        private double noise = 0.0;
+
+        private Tile(int x, int y, int w, int h) {
+            this.x = x;
+            this.y = y;
+            this.w = w;
+            this.h = h;
+        }
+
+        private void process() {
+            // Tile plus margins
+            int left = Math.max(0, x - MARGIN), top = Math.max(0, y - MARGIN),
+                    right = Math.min(width, x + w + MARGIN), bottom = Math.min(height, y + h + MARGIN),
+                    regionW = right - left, regionH = bottom - top;
+            int[] levels = new int[regionW * regionH];
+            readRegion(left, top, regionW, regionH, levels, new int[regionW * binning]);
+            int[] samples = new int[((w + SAMPLING - 1) / SAMPLING) * ((h + SAMPLING - 1) / SAMPLING)];
+            int count = 0;
+            for (int r = 0; r < h; r += SAMPLING) {
+                int offset = (y - top + r) * regionW + (x - left);
+                for (int c = 0; c < w; c += SAMPLING) {
+                    samples[count++] = levels[offset + c];
+                }
+            }
+            background = median(samples, count);
+            int roundedBackground = (int) Math.round(background);
+            for (int i = 0; i < count; i++) {
+                samples[i] = Math.abs(samples[i] - roundedBackground);
+            }
+            noise = Math.max(1.0, MAD_TO_SIGMA * median(samples, count));
+            int threshold = (int) Math.ceil(background + THRESHOLD_SIGMA * noise),
+                    saturation = SATURATION * binning * binning;
+            boolean[] visited = new boolean[levels.length];
+            int[] stack = new int[MAX_PIXELS + 1], component = new int[MAX_PIXELS + 1];
+            for (int i = 0; i < levels.length; i++) {
+                if (visited[i] || (levels[i] < threshold)) continue;
+                // 8-connected flood fill
+                int size = 0, stackSize = 0;
+                boolean touchesBorder = false, tooLarge = false;
+                visited[i] = true;
+                stack[stackSize++] = i;
+                while (stackSize > 0) {
+                    int p = stack[--stackSize], px = p % regionW, py = p / regionW;
+                    if (size < MAX_PIXELS) {
+                        component[size++] = p;
+                    } else {
+                        tooLarge = true;
+                    }
+                    if ((px == 0) || (py == 0) || (px == regionW - 1) || (py == regionH - 1)) touchesBorder = true;
+                    for (int dy = -1; dy <= 1; dy++) {
+                        int ny = py + dy;
+                        if ((ny < 0) || (ny >= regionH)) continue;
+                        for (int dx = -1; dx <= 1; dx++) {
+                            int nx = px + dx;
+                            if ((nx < 0) || (nx >= regionW)) continue;
+                            int n = ny * regionW + nx;
+                            if ((!visited[n]) && (levels[n] >= threshold)) {
+                                visited[n] = true;
+                                if (stackSize < stack.length) {
+                                    stack[stackSize++] = n;
+                                } else {
+                                    tooLarge = true;
+                                }
+                            }
+                        }
+                    }
+                }
+                // Stars cut by the border of the image or larger than the margins can't be measured
+                if (tooLarge || touchesBorder || (size < MIN_PIXELS)) continue;
+                measure(levels, regionW, regionH, left, top, component, size, saturation);
+            }
+        }
+
+        private void measure(int[] levels, int regionW, int regionH, int left, int top,
+                             int[] component, int size, int saturation) {
+            double sum = 0.0, sumX = 0.0, sumY = 0.0;
+            int peak = 0, maxRadius2 = 0;
+            for (int k = 0; k < size; k++) {
+                int p = component[k], v = levels[p];
+                double f = v - background;
+                sum += f;
+                sumX += f * (p % regionW);
+                sumY += f * (p / regionW);
+                if (v > peak) peak = v;
+            }
+            if (sum <= 0.0) return;
+            double cx = sumX / sum, cy = sumY / sum;
+            // The centroid must be in the core of this tile
+            double absX = cx + left, absY = cy + top;
+            if ((absX < x) || (absX >= x + w) || (absY < y) || (absY >= y + h)) return;
+            for (int k = 0; k < size; k++) {
+                int p = component[k];
+                double dx = (p % regionW) - cx, dy = (p / regionW) - cy;
+                maxRadius2 = Math.max(maxRadius2, (int) Math.ceil(dx * dx + dy * dy));
+            }
+            // Measure in a circular aperture that includes the faint wings of the star
+            double radius = Math.sqrt(maxRadius2) + 2.0, radius2 = radius * radius;
+            int x0 = Math.max(0, (int) Math.floor(cx - radius)), x1 = Math.min(regionW - 1, (int) Math.ceil(cx + radius)),
+                    y0 = Math.max(0, (int) Math.floor(cy - radius)), y1 = Math.min(regionH - 1, (int) Math.ceil(cy + radius));
+            double flux = 0.0, sumR = 0.0, sumR2 = 0.0;
+            for (int py = y0; py <= y1; py++) {
+                double dy = py - cy;
+                for (int px = x0; px <= x1; px++) {
+                    double dx = px - cx, r2 = dx * dx + dy * dy;
+                    if (r2 > radius2) continue;
+                    double f = levels[py * regionW + px] - background;
+                    if (f <= 0.0) continue;
+                    flux += f;
+                    sumR += f * Math.sqrt(r2);
+                    sumR2 += f * r2;
+                }
+            }
+            if (flux <= 0.0) return;
+            // For a 2D Gaussian, the mean squared radius is twice the variance
+            double hfr = sumR / flux, fwhm = SIGMA_TO_FWHM * Math.sqrt(sumR2 / flux / 2.0);
+            stars.add(new Star((absX + 0.5) * binning - 0.5, (absY + 0.5) * binning - 0.5,
+                    flux, peak / (binning * binning), hfr * binning, fwhm * binning, peak >= saturation));
+        }
+    }
+
+    private class TilesTask extends RecursiveAction {
+
+        private final Tile[] tiles;
+        private final int from;
+        private final int to;
+
+        private TilesTask(Tile[] tiles, int from, int to) {
+            this.tiles = tiles;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= 1) {
+                if (to > from) tiles[from].process();
+            } else {
+                int middle = (from + to) >>> 1;
+                invokeAll(new TilesTask(tiles, from, middle), new TilesTask(tiles, middle, to));
+            }
+        }
+    }
+}
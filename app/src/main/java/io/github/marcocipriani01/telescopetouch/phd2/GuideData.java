@@ -0,0 +1,291 @@
+/*
+ * Copyright 2021 Marco Cipriani (@marcocipriani01)
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package io.github.marcocipriani01.telescopetouch.phd2;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Fixed-capacity history of guide steps, stored in primitive ring buffers so that hours of guiding take
+ * constant memory and no allocation. Statistics are kept incrementally over sliding time windows:
+ * every window updates its mean and sum of squared deviations (Welford's algorithm) as steps enter and leave it.
+ * The UI reads {@link Snapshot}s at its own rate instead of being notified of every step.
+ *
+ * @author marcocipriani01
+ */
+public class GuideData {
+
+    private final int capacity;
+    private final double[] timestamps;
+    private final double[] ra;
+    private final double[] dec;
+    private final double[] raCorrections;
+    private final double[] decCorrections;
+    private final double[] snr;
+    private final Window[] windows;
+    /**
+     * How many steps have been added since the last {@link #clear()}. The step {@code n} is at index {@code n % capacity}.
+     */
+    private long count = 0;
+    private int size = 0;
+    private double timeOrigin = 0;
+
+    /**
+     * @param capacity       how many steps to keep.
+     * @param windowsSeconds the length of the statistics windows, in seconds. {@code 0} means the whole history.
+     */
+    public GuideData(int capacity, double... windowsSeconds) {
+        this.capacity = capacity;
+        timestamps = new double[capacity];
+        ra = new double[capacity];
+        dec = new double[capacity];
+        raCorrections = new double[capacity];
+        decCorrections = new double[capacity];
+        snr = new double[capacity];
+        windows = new Window[windowsSeconds.length];
+        for (int i = 0; i < windowsSeconds.length; i++) {
+            windows[i] = new Window(windowsSeconds[i]);
+        }
+    }
+
+    /**
+     * Adds a guide step, replacing the oldest one if the history is full.
+     *
+     * @param timestamp     the time of the step, in seconds.
+     * @param ra            the RA distance from the lock position, in pixels.
+     * @param dec           the Dec distance from the lock position, in pixels.
+     * @param raCorrection  the RA correction, in milliseconds, positive towards East.
+     * @param decCorrection the Dec correction, in milliseconds, positive towards North.
+     */
+    public synchronized void add(double timestamp, double ra, double dec,
+                                 double raCorrection, double decCorrection, double snr) {
+        if (count == 0) timeOrigin = timestamp;
+        if (size == capacity) {
+            long oldest = count - capacity;
+            for (Window window : windows) {
+                if (window.start == oldest) window.removeFirst();
+            }
+        } else {
+            size++;
+        }
+        int i = (int) (count % capacity);
+        this.timestamps[i] = timestamp;
+        this.ra[i] = ra;
+        this.dec[i] = dec;
+        this.raCorrections[i] = raCorrection;
+        this.decCorrections[i] = decCorrection;
+        this.snr[i] = snr;
+        count++;
+        for (Window window : windows) {
+            window.add(i);
+            if (window.seconds > 0) {
+                while ((window.n > 1) && (timestamp - timestamps[(int) (window.start % capacity)] > window.seconds)) {
+                    window.removeFirst();
+                }
+            }
+        }
+    }
+
+    public synchronized void clear() {
+        count = 0;
+        size = 0;
+        for (Window window : windows) {
+            window.reset(0);
+        }
+    }
+
+    /**
+     * @return how many steps have been added since the last {@link #clear()}. Can be used to know if there's new data.
+     */
+    public synchronized long getCount() {
+        return count;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Copies the last steps of the history.
+     *
+     * @param maxSteps how many steps to copy, at most. Must not exceed the capacity of the snapshot.
+     */
+    public synchronized void read(int maxSteps, @NonNull Snapshot out) {
+        int n = Math.min(Math.min(maxSteps, size), out.timestamps.length);
+        long first = count - n;
+        out.firstStep = first;
+        out.size = n;
+        for (int j = 0; j < n; j++) {
+            int i = (int) ((first + j) % capacity);
+            out.timestamps[j] = timestamps[i];
+            out.ra[j] = ra[i];
+            out.dec[j] = dec[i];
+            out.raCorrections[j] = raCorrections[i];
+            out.decCorrections[j] = decCorrections[i];
+            out.snr[j] = snr[i];
+        }
+    }
+
+    /**
+     * Reads the statistics of a window.
+     *
+     * @param window the index of the window, in the order given to the constructor.
+     */
+    public synchronized void getStatistics(int window, @NonNull Statistics out) {
+        Window w = windows[window];
+        int n = w.n;
+        out.steps = n;
+        if (n == 0) {
+            out.rmsRA = out.rmsDec = out.rmsTotal = out.peakRA = out.peakDec = out.driftRA = out.driftDec = out.meanSNR = 0;
+            return;
+        }
+        out.rmsRA = Math.sqrt(Math.max(w.m2RA, 0) / n);
+        out.rmsDec = Math.sqrt(Math.max(w.m2Dec, 0) / n);
+        out.rmsTotal = Math.sqrt(out.rmsRA * out.rmsRA + out.rmsDec * out.rmsDec);
+        out.meanSNR = w.sumSNR / n;
+        // Least squares slope of the distances over time, converted to pixels per minute
+        double denominator = n * w.sumTT - w.sumT * w.sumT;
+        if ((n > 1) && (denominator > 0)) {
+            out.driftRA = 60.0 * (n * w.sumTRA - w.sumT * w.sumRA) / denominator;
+            out.driftDec = 60.0 * (n * w.sumTDec - w.sumT * w.sumDec) / denominator;
+        } else {
+            out.driftRA = out.driftDec = 0;
+        }
+        // Peaks can't be removed incrementally, scan the window
+        double peakRA = 0, peakDec = 0;
+        for (long s = w.start, end = w.start + n; s < end; s++) {
+            int i = (int) (s % capacity);
+            peakRA = Math.max(peakRA, Math.abs(ra[i]));
+            peakDec = Math.max(peakDec, Math.abs(dec[i]));
+        }
+        out.peakRA = peakRA;
+        out.peakDec = peakDec;
+    }
+
+    /**
+     * The last steps of the history, copied by {@link #read(int, Snapshot)}.
+     */
+    public static class Snapshot {
+
+        public final double[] timestamps;
+        public final double[] ra;
+        public final double[] dec;
+        public final double[] raCorrections;
+        public final double[] decCorrections;
+        public final double[] snr;
+        /**
+         * The number of the first step in the snapshot, counted since the history was cleared.
+         */
+        public long firstStep;
+        public int size;
+
+        public Snapshot(int capacity) {
+            timestamps = new double[capacity];
+            ra = new double[capacity];
+            dec = new double[capacity];
+            raCorrections = new double[capacity];
+            decCorrections = new double[capacity];
+            snr = new double[capacity];
+        }
+    }
+
+    /**
+     * Statistics of a window, in pixels. Drifts are in pixels per minute.
+     */
+    public static class Statistics {
+
+        public int steps;
+        public double rmsRA;
+        public double rmsDec;
+        public double rmsTotal;
+        public double peakRA;
+        public double peakDec;
+        public double driftRA;
+        public double driftDec;
+        public double meanSNR;
+    }
+
+    private class Window {
+
+        private final double seconds;
+        /**
+         * The number of the first step in the window.
+         */
+        private long start = 0;
+        private int n = 0;
+        private int removals = 0;
+        private double meanRA, m2RA, meanDec, m2Dec;
+        private double sumT, sumTT, sumRA, sumDec, sumTRA, sumTDec, sumSNR;
+
+        private Window(double seconds) {
+            this.seconds = seconds;
+        }
+
+        private void add(int i) {
+            double t = timestamps[i] - timeOrigin, x = ra[i], y = dec[i];
+            n++;
+            double delta = x - meanRA;
+            meanRA += delta / n;
+            m2RA += delta * (x - meanRA);
+            delta = y - meanDec;
+            meanDec += delta / n;
+            m2Dec += delta * (y - meanDec);
+            sumT += t;
+            sumTT += t * t;
+            sumRA += x;
+            sumDec += y;
+            sumTRA += t * x;
+            sumTDec += t * y;
+            sumSNR += snr[i];
+        }
+
+        private void removeFirst() {
+            int i = (int) (start % capacity);
+            start++;
+            // Removing values accumulates rounding errors, start over from the buffer once in a while
+            if ((++removals >= capacity) || (n == 1)) {
+                reset(start);
+                for (long s = start, end = count; s < end; s++) {
+                    add((int) (s % capacity));
+                }
+                return;
+            }
+            double t = timestamps[i] - timeOrigin, x = ra[i], y = dec[i];
+            n--;
+            double delta = x - meanRA;
+            meanRA -= delta / n;
+            m2RA -= delta * (x - meanRA);
+            delta = y - meanDec;
+            meanDec -= delta / n;
+            m2Dec -= delta * (y - meanDec);
+            sumT -= t;
+            sumTT -= t * t;
+            sumRA -= x;
+            sumDec -= y;
+            sumTRA -= t * x;
+            sumTDec -= t * y;
+            sumSNR -= snr[i];
+        }
+
+        private void reset(long start) {
+            this.start = start;
+            n = removals = 0;
+            meanRA = m2RA = meanDec = m2Dec = 0;
+            sumT = sumTT = sumRA = sumDec = sumTRA = sumTDec = sumSNR = 0;
+        }
+    }
+}
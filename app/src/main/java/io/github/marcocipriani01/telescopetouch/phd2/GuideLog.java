@@ -0,0 +1,277 @@
+/*
+ * Copyright 2021 Marco Cipriani (@marcocipriani01)
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package io.github.marcocipriani01.telescopetouch.phd2;
+
+import androidx.annotation.NonNull;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Locale;
+
+/**
+ * Binary log of a guiding session: guide steps, settling, lost stars and state changes are stored as
+ * fixed-width records, so that any record can be reached with a binary search on its timestamp and
+ * hours of guiding can be scrubbed instantly. The file is memory-mapped both to write and to read.
+ *
+ * @author marcocipriani01
+ */
+public class GuideLog implements Closeable {
+
+    public static final int TYPE_STEP = 0;
+    public static final int TYPE_SETTLE_DONE = 1;
+    public static final int TYPE_STAR_LOST = 2;
+    public static final int TYPE_STATE = 3;
+    public static final String EXTENSION = ".phd2log";
+    private static final int MAGIC = 0x50484432; // "PHD2"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+    private static final int RECORD_SIZE = 64;
+    /**
+     * The file grows by this many records at a time.
+     */
+    private static final int GROWTH_RECORDS = 16384;
+    /**
+     * How many session logs to keep in a directory.
+     */
+    private static final int MAX_LOGS = 10;
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final boolean writable;
+    private MappedByteBuffer buffer;
+    private long count;
+    private boolean closed = false;
+
+    private GuideLog(File file, boolean writable) throws IOException {
+        this.writable = writable;
+        this.file = new RandomAccessFile(file, writable ? "rw" : "r");
+        this.channel = this.file.getChannel();
+        try {
+            long size = channel.size();
+            if (writable && (size == 0)) {
+                map(HEADER_SIZE + (long) GROWTH_RECORDS * RECORD_SIZE);
+                buffer.putInt(0, MAGIC);
+                buffer.putInt(4, VERSION);
+                buffer.putLong(8, 0);
+                count = 0;
+            } else {
+                if (size < HEADER_SIZE) throw new IOException("Not a guide log: " + file);
+                map(size);
+                if ((buffer.getInt(0) != MAGIC) || (buffer.getInt(4) != VERSION))
+                    throw new IOException("Unsupported guide log: " + file);
+                count = Math.min(buffer.getLong(8), (size - HEADER_SIZE) / RECORD_SIZE);
+            }
+        } catch (IOException e) {
+            this.file.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Opens a log to replay it.
+     */
+    public static GuideLog open(@NonNull File file) throws IOException {
+        return new GuideLog(file, false);
+    }
+
+    /**
+     * Creates a new log in the given directory, named after the current date, deleting the oldest logs
+     * and trimming the others to their content. Don't call it on the UI thread.
+     */
+    public static GuideLog create(@NonNull File directory) throws IOException {
+        if ((!directory.isDirectory()) && (!directory.mkdirs()))
+            throw new IOException("Unable to create " + directory);
+        File[] logs = directory.listFiles((dir, name) -> name.endsWith(EXTENSION));
+        if (logs != null) {
+            // Names start with the date, alphabetical order is chronological
+            Arrays.sort(logs);
+            int deleted = Math.max(0, logs.length - MAX_LOGS + 1);
+            for (int i = 0; i < deleted; i++) {
+                if (!logs[i].delete()) throw new IOException("Unable to delete " + logs[i]);
+            }
+            for (int i = deleted; i < logs.length; i++) {
+                trim(logs[i]);
+            }
+        }
+        String name = new SimpleDateFormat("yyyy-MM-dd_HH-mm-ss", Locale.US).format(new Date());
+        return new GuideLog(new File(directory, name + EXTENSION), true);
+    }
+
+    /**
+     * Removes the space reserved for the records that were never written. Logs are trimmed here rather than when
+     * they are closed, since a file must not be truncated while it's still memory-mapped.
+     */
+    private static void trim(File log) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(log, "rw");
+             FileChannel channel = file.getChannel()) {
+            long size = channel.size();
+            if (size < HEADER_SIZE) return;
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            while (header.hasRemaining()) {
+                if (channel.read(header, header.position()) < 0) return;
+            }
+            if ((header.getInt(0) != MAGIC) || (header.getInt(4) != VERSION)) return;
+            long length = HEADER_SIZE + header.getLong(8) * RECORD_SIZE;
+            if ((length >= HEADER_SIZE) && (length < size)) channel.truncate(length);
+        }
+    }
+
+    private void map(long size) throws IOException {
+        buffer = channel.map(writable ? FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY, 0, size);
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Appends a record.
+     *
+     * @param type      one of the {@code TYPE_} constants.
+     * @param value     the new {@link PHD2Client.AppState} for {@link #TYPE_STATE}, the status for {@link #TYPE_SETTLE_DONE}.
+     * @param timestamp the time of the event, in seconds.
+     */
+    public synchronized void append(int type, int value, double timestamp, double ra, double dec,
+                                    double raCorrection, double decCorrection, double snr, double hfd) throws IOException {
+        if ((!writable) || closed) throw new IllegalStateException("Read-only or closed guide log!");
+        long offset = HEADER_SIZE + count * RECORD_SIZE;
+        if (offset + RECORD_SIZE > buffer.capacity())
+            map(buffer.capacity() + (long) GROWTH_RECORDS * RECORD_SIZE);
+        int i = (int) offset;
+        buffer.putInt(i, type);
+        buffer.putInt(i + 4, value);
+        buffer.putDouble(i + 8, timestamp);
+        buffer.putDouble(i + 16, ra);
+        buffer.putDouble(i + 24, dec);
+        buffer.putDouble(i + 32, raCorrection);
+        buffer.putDouble(i + 40, decCorrection);
+        buffer.putDouble(i + 48, snr);
+        buffer.putDouble(i + 56, hfd);
+        // The count is written last, a crash never exposes a partial record
+        buffer.putLong(8, ++count);
+    }
+
+    public synchronized long getCount() {
+        return count;
+    }
+
+    public synchronized double getTimestamp(long index) {
+        if (closed) throw new IllegalStateException("Closed guide log!");
+        return buffer.getDouble((int) (HEADER_SIZE + index * RECORD_SIZE + 8));
+    }
+
+    /**
+     * Reads a record.
+     */
+    public synchronized void read(long index, @NonNull Record out) {
+        if (closed) throw new IllegalStateException("Closed guide log!");
+        if ((index < 0) || (index >= count)) throw new IndexOutOfBoundsException("No record " + index);
+        int i = (int) (HEADER_SIZE + index * RECORD_SIZE);
+        out.type = buffer.getInt(i);
+        out.value = buffer.getInt(i + 4);
+        out.timestamp = buffer.getDouble(i + 8);
+        out.ra = buffer.getDouble(i + 16);
+        out.dec = buffer.getDouble(i + 24);
+        out.raCorrection = buffer.getDouble(i + 32);
+        out.decCorrection = buffer.getDouble(i + 40);
+        out.snr = buffer.getDouble(i + 48);
+        out.hfd = buffer.getDouble(i + 56);
+    }
+
+    /**
+     * @return the index of the first record at or after the given time.
+     */
+    public synchronized long find(double timestamp) {
+        long low = 0, high = count;
+        while (low < high) {
+            long mid = (low + high) >>> 1;
+            if (getTimestamp(mid) < timestamp) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Passes the records of a time window to the given consumer, in order.
+     */
+    public void replay(double from, double to, @NonNull Consumer consumer) {
+        Record record = new Record();
+        for (long i = find(from), count = getCount(); i < count; i++) {
+            read(i, record);
+            if (record.timestamp > to) break;
+            consumer.onRecord(record);
+        }
+    }
+
+    /**
+     * Loads the guide steps of a time window in the given history, for example to redraw the graph
+     * or to read the statistics of the window.
+     */
+    public void load(double from, double to, @NonNull GuideData target) {
+        target.clear();
+        replay(from, to, record -> {
+            if (record.type == TYPE_STEP)
+                target.add(record.timestamp, record.ra, record.dec, record.raCorrection, record.decCorrection, record.snr);
+        });
+    }
+
+    /**
+     * Writes the pending records to disk and releases the file. The space reserved for new records
+     * is removed when the next log is created, see {@link #create(File)}.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) return;
+        closed = true;
+        try {
+            if (writable) buffer.force();
+        } finally {
+            // The mapping is released by the garbage collector, it must not be accessed anymore
+            buffer = null;
+            file.close();
+        }
+    }
+
+    public interface Consumer {
+        void onRecord(@NonNull Record record);
+    }
+
+    /**
+     * A record of the log. Instances are reused while replaying.
+     */
+    public static class Record {
+
+        public int type;
+        public int value;
+        public double timestamp;
+        public double ra;
+        public double dec;
+        public double raCorrection;
+        public double decCorrection;
+        public double snr;
+        public double hfd;
+    }
+}
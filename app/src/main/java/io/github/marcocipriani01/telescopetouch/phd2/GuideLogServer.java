@@ -0,0 +1,194 @@
+/*
+ * Copyright 2021 Marco Cipriani (@marcocipriani01)
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package io.github.marcocipriani01.telescopetouch.phd2;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import io.github.marcocipriani01.telescopetouch.TelescopeTouchApp;
+
+/**
+ * Stand-in for the PHD2 event server that replays a {@link GuideLog} to a single client, for deterministic
+ * benchmarks of {@link PHD2Client}. The events are sent as PHD2 would, either with their original timing
+ * or as fast as possible; requests get fixed answers.
+ *
+ * @author marcocipriani01
+ */
+public class GuideLogServer {
+
+    private static final String TAG = TelescopeTouchApp.getTag(GuideLogServer.class);
+    private static final Pattern REQUEST = Pattern.compile("\"method\"\\s*:\\s*\"(\\w+)\".*\"id\"\\s*:\\s*(\\d+)");
+    private final GuideLog log;
+    private final double speed;
+    private volatile ServerSocket serverSocket = null;
+    private volatile Socket client = null;
+    private volatile long sentEvents = 0;
+
+    /**
+     * @param speed how many times faster than real time to replay the log, or {@code 0} to send events without waiting.
+     */
+    public GuideLogServer(@NonNull GuideLog log, double speed) {
+        this.log = log;
+        this.speed = speed;
+    }
+
+    /**
+     * Starts listening on the loopback interface.
+     *
+     * @return the port to connect to.
+     */
+    public synchronized int start() throws IOException {
+        if (serverSocket != null) throw new IllegalStateException("Already started!");
+        serverSocket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        new Thread(this::serve, "Guide log server").start();
+        return serverSocket.getLocalPort();
+    }
+
+    public synchronized void stop() {
+        if (serverSocket == null) return;
+        try {
+            serverSocket.close();
+            if (client != null) client.close();
+        } catch (IOException e) {
+            Log.e(TAG, e.getLocalizedMessage(), e);
+        }
+        serverSocket = null;
+        client = null;
+    }
+
+    /**
+     * @return how many events have been sent to the client.
+     */
+    public long getSentEvents() {
+        return sentEvents;
+    }
+
+    private void serve() {
+        ServerSocket serverSocket = this.serverSocket;
+        if (serverSocket == null) return;
+        try (Socket socket = serverSocket.accept()) {
+            client = socket;
+            Writer writer = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8);
+            Thread responder = new Thread(() -> respond(socket, writer), "Guide log server responder");
+            responder.start();
+            send(writer, "{\"Event\":\"Version\",\"PHDVersion\":\"replay\",\"MsgVersion\":1}");
+            GuideLog.Record record = new GuideLog.Record();
+            long start = System.nanoTime();
+            double firstTimestamp = Double.NaN;
+            for (long i = 0, count = log.getCount(); (i < count) && (this.serverSocket != null); i++) {
+                log.read(i, record);
+                if (speed > 0) {
+                    if (Double.isNaN(firstTimestamp)) firstTimestamp = record.timestamp;
+                    long wait = (long) ((record.timestamp - firstTimestamp) / speed * 1e3) - (System.nanoTime() - start) / 1000000;
+                    if (wait > 0) Thread.sleep(wait);
+                }
+                send(writer, toEvent(record));
+                sentEvents++;
+            }
+            responder.join();
+        } catch (IOException | InterruptedException e) {
+            if (this.serverSocket != null) Log.e(TAG, e.getLocalizedMessage(), e);
+        } finally {
+            stop();
+        }
+    }
+
+    private void respond(Socket socket, Writer writer) {
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                Matcher matcher = REQUEST.matcher(line);
+                if (matcher.find())
+                    send(writer, "{\"jsonrpc\":\"2.0\",\"result\":" + getResult(matcher.group(1)) + ",\"id\":" + matcher.group(2) + "}");
+            }
+        } catch (IOException e) {
+            if (serverSocket != null) Log.e(TAG, e.getLocalizedMessage(), e);
+        }
+    }
+
+    private static String getResult(String method) {
+        switch (method) {
+            case "get_connected":
+                return "true";
+            case "get_exposure_durations":
+                return "[1000,2000,3000]";
+            case "get_exposure":
+                return "2000";
+            case "get_profiles":
+                return "[{\"id\":1,\"name\":\"Replay\"}]";
+            case "get_profile":
+                return "{\"id\":1,\"name\":\"Replay\"}";
+            case "get_dec_guide_mode":
+                return "\"Auto\"";
+            default:
+                return "0";
+        }
+    }
+
+    private static String toEvent(GuideLog.Record record) {
+        switch (record.type) {
+            case GuideLog.TYPE_STEP:
+                StringBuilder builder = new StringBuilder(256);
+                builder.append(String.format(Locale.US,
+                        "{\"Event\":\"GuideStep\",\"Timestamp\":%.3f,\"RADistanceRaw\":%.4f,\"DECDistanceRaw\":%.4f",
+                        record.timestamp, record.ra, record.dec));
+                if (record.raCorrection != 0)
+                    builder.append(String.format(Locale.US, ",\"RADuration\":%d,\"RADirection\":\"%s\"",
+                            (int) Math.abs(record.raCorrection), (record.raCorrection > 0) ? "East" : "West"));
+                if (record.decCorrection != 0)
+                    builder.append(String.format(Locale.US, ",\"DECDuration\":%d,\"DECDirection\":\"%s\"",
+                            (int) Math.abs(record.decCorrection), (record.decCorrection > 0) ? "North" : "South"));
+                return builder.append(String.format(Locale.US, ",\"SNR\":%.2f,\"HFD\":%.2f}", record.snr, record.hfd)).toString();
+            case GuideLog.TYPE_SETTLE_DONE:
+                return String.format(Locale.US, "{\"Event\":\"SettleDone\",\"Timestamp\":%.3f,\"Status\":%d}",
+                        record.timestamp, record.value);
+            case GuideLog.TYPE_STAR_LOST:
+                return String.format(Locale.US, "{\"Event\":\"StarLost\",\"Timestamp\":%.3f}", record.timestamp);
+            case GuideLog.TYPE_STATE:
+                PHD2Client.AppState[] states = PHD2Client.AppState.values();
+                String state = ((record.value >= 0) && (record.value < states.length)) ? states[record.value].name() : "Stopped";
+                return String.format(Locale.US, "{\"Event\":\"AppState\",\"Timestamp\":%.3f,\"State\":\"%s\"}",
+                        record.timestamp, state);
+            default:
+                throw new IllegalArgumentException("Unknown record type " + record.type);
+        }
+    }
+
+    private static void send(Writer writer, String line) throws IOException {
+        synchronized (writer) {
+            writer.write(line);
+            writer.write("\r\n");
+            writer.flush();
+        }
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright 2021 Marco Cipriani (@marcocipriani01)
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package io.github.marcocipriani01.telescopetouch.phd2;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A JSON-RPC request sent to PHD2, completed when its response has been handled, when it fails or times out,
+ * or when it's cancelled. Many calls can be in flight at the same time, responses are matched by id.
+ *
+ * @author marcocipriani01
+ */
+public class PHD2Call {
+
+    /**
+     * The id of the JSON-RPC request, or {@code -1} for calls that group other calls.
+     */
+    public final long id;
+    @Nullable
+    public final PHD2Client.PHD2Command command;
+    private final PHD2Client client;
+    private final List<Callback> callbacks = new ArrayList<>();
+    private final long startTime = System.nanoTime();
+    private State state = State.PENDING;
+    private Exception error = null;
+    private long endTime = 0;
+
+    PHD2Call(@Nullable PHD2Client client, long id, @Nullable PHD2Client.PHD2Command command) {
+        this.client = client;
+        this.id = id;
+        this.command = command;
+    }
+
+    /**
+     * @return a call that completes when all the given ones are completed, failed or cancelled.
+     */
+    public static PHD2Call allOf(@NonNull PHD2Call... calls) {
+        PHD2Call group = new PHD2Call(null, -1, null);
+        int[] remaining = {calls.length};
+        if (calls.length == 0) {
+            group.complete();
+            return group;
+        }
+        Callback callback = call -> {
+            boolean done;
+            synchronized (remaining) {
+                done = (--remaining[0] == 0);
+            }
+            if (done) group.complete();
+        };
+        for (PHD2Call call : calls) {
+            call.addCallback(callback);
+        }
+        return group;
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    public synchronized boolean isDone() {
+        return state != State.PENDING;
+    }
+
+    /**
+     * @return the reason why the call failed, or {@code null}.
+     */
+    @Nullable
+    public synchronized Exception getError() {
+        return error;
+    }
+
+    /**
+     * @return the time between the request and its completion, in nanoseconds, or {@code -1} if still pending.
+     */
+    public synchronized long getRoundTripNanos() {
+        return (state == State.PENDING) ? -1 : (endTime - startTime);
+    }
+
+    /**
+     * Cancels the call: its response, if it ever arrives, will be ignored.
+     *
+     * @return {@code false} if the call was already completed.
+     */
+    public boolean cancel() {
+        if (!finish(State.CANCELLED, null)) return false;
+        if (client != null) client.forgetCall(id);
+        return true;
+    }
+
+    /**
+     * Waits for the call to be completed. Must not be called on the thread that receives messages from PHD2.
+     *
+     * @throws ExecutionException    if the call failed.
+     * @throws CancellationException if the call was cancelled.
+     * @throws TimeoutException      if the call didn't complete in time.
+     */
+    public synchronized void await(long timeout, @NonNull TimeUnit unit)
+            throws InterruptedException, ExecutionException, TimeoutException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (state == State.PENDING) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) throw new TimeoutException("PHD2 call " + id + " timed out");
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        if (state == State.FAILED) throw new ExecutionException(error);
+        if (state == State.CANCELLED) throw new CancellationException();
+    }
+
+    /**
+     * Adds a callback, invoked on the thread that completes the call, or immediately if it's already completed.
+     */
+    public void addCallback(@NonNull Callback callback) {
+        synchronized (this) {
+            if (state == State.PENDING) {
+                callbacks.add(callback);
+                return;
+            }
+        }
+        callback.onCallCompleted(this);
+    }
+
+    boolean complete() {
+        return finish(State.COMPLETED, null);
+    }
+
+    boolean fail(@NonNull Exception e) {
+        return finish(State.FAILED, e);
+    }
+
+    private boolean finish(State state, Exception error) {
+        Callback[] toRun;
+        synchronized (this) {
+            if (this.state != State.PENDING) return false;
+            this.state = state;
+            this.error = error;
+            this.endTime = System.nanoTime();
+            notifyAll();
+            toRun = callbacks.toArray(new Callback[0]);
+            callbacks.clear();
+        }
+        for (Callback callback : toRun) {
+            callback.onCallCompleted(this);
+        }
+        return true;
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return ((command == null) ? "group" : command.name()) + "#" + id;
+    }
+
+    public enum State {
+        PENDING, COMPLETED, FAILED, CANCELLED
+    }
+
+    public interface Callback {
+        void onCallCompleted(@NonNull PHD2Call call);
+    }
+}
@@ -19,49 +19,91 @@ package io.github.marcocipriani01.telescopetouch.phd2;
 
 import android.content.res.Resources;
 import android.graphics.Bitmap;
-import android.graphics.Canvas;
 import android.graphics.Color;
-import android.graphics.Paint;
 import android.os.Handler;
 import android.os.Looper;
-import android.util.Base64;
+import android.os.SystemClock;
 import android.util.Log;
 
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import java.io.ByteArrayInputStream;
-import java.io.InputStream;
+import java.io.File;
+import java.io.IOException;
 import java.net.Socket;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.Map;
-import java.util.Set;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
 
-import io.github.marcocipriani01.graphview.GraphView;
-import io.github.marcocipriani01.graphview.series.DataPoint;
-import io.github.marcocipriani01.graphview.series.LineGraphSeries;
 import io.github.marcocipriani01.simplesocket.SimpleClient;
 import io.github.marcocipriani01.telescopetouch.R;
 import io.github.marcocipriani01.telescopetouch.TelescopeTouchApp;
+import io.github.marcocipriani01.telescopetouch.UIEventBus;
+import io.github.marcocipriani01.telescopetouch.indi.FitsDecoder;
+import io.github.marcocipriani01.telescopetouch.indi.ImagePool;
+import io.github.marcocipriani01.telescopetouch.indi.ImageStretcher;
+import io.github.marcocipriani01.telescopetouch.indi.ImagingService;
 
 public class PHD2Client extends SimpleClient {
 
     public static final String[] DEC_GUIDE_MODES = new String[]{
             "Off", "Auto", "North", "South"
     };
+    /**
+     * Index of the statistics window of the last five minutes, see {@link GuideData#getStatistics(int, GuideData.Statistics)}.
+     */
+    public static final int STATS_RECENT = 0;
+    /**
+     * Index of the statistics window of the whole history.
+     */
+    public static final int STATS_ALL = 1;
     private static final String TAG = TelescopeTouchApp.getTag(PHD2Client.class);
     private static final int SUPPORTED_MSG_VERSION = 1;
-    private static final int RA_COLOR = Color.parseColor("#448AFF");
-    private static final int DEC_COLOR = Color.parseColor("#FF1744");
-    public final LineGraphSeries<DataPoint> guidingDataRA = new LineGraphSeries<>();
-    public final LineGraphSeries<DataPoint> guidingDataDec = new LineGraphSeries<>();
+    /**
+     * Star images are small, a few of them are enough to avoid allocations while guiding.
+     */
+    private static final long IMAGE_POOL_BYTES = 16 * 1024 * 1024;
+    private static final int STAR_BOX_SIZE = 40;
+    private static final int STAR_IMAGE_SIZE = 500;
+    private static final long LOG_INTERVAL_MS = 1000;
+    /**
+     * About nine hours of guiding at a step every two seconds.
+     */
+    private static final int GUIDE_DATA_CAPACITY = 16384;
+    private static final double RECENT_STATS_SECONDS = 300.0;
+    private static final long CALL_TIMEOUT_MS = 10000;
     public final Map<String, Integer> profiles = new HashMap<>();
     private final Handler uiHandler = new Handler(Looper.getMainLooper());
-    private final Set<PHD2Listener> listeners = new HashSet<>();
-    private final AtomicInteger graphIndex = new AtomicInteger();
+    private final UIEventBus.Channel<PHD2Listener> events = UIEventBus.getInstance().newChannel();
+    private final ConcurrentHashMap<Long, PHD2Call> pendingCalls = new ConcurrentHashMap<>();
+    private final AtomicLong nextCallId = new AtomicLong(1);
+    private final GuideData guideData = new GuideData(GUIDE_DATA_CAPACITY, RECENT_STATS_SECONDS, 0);
+    private final ImageStretcher[] stretchers = {new ImageStretcher()};
+    private final ImagePool imagePool = new ImagePool(IMAGE_POOL_BYTES);
+    private final ImagingService.Lane imageLane =
+            ImagingService.getInstance().newLane("PHD2 star images", ImagingService.Priority.GUIDER);
+    private final StarImageDecoder starImageDecoder = new StarImageDecoder();
+    private final StarImagePoller imagePoller = new StarImagePoller();
+    private volatile GuideLog guideLog = null;
+    /**
+     * Creates and closes the guide logs, to keep the disk off the UI thread.
+     */
+    private final ExecutorService guideLogExecutor =
+            Executors.newSingleThreadExecutor(r -> new Thread(r, "PHD2 guide log"));
+    /**
+     * Incremented every time the recording starts or stops, to discard logs created after the recording stopped.
+     */
+    private long recordingId = 0;
+    private final PHD2Message message = new PHD2Message();
+    private long lastLogTime = 0;
+    private int skippedLogs = 0;
+    private long parsedMessages = 0;
+    private long parseNanos = 0;
     public String currentProfile = null;
     public int raCorrection = 0;
     public boolean raCorrectionSign = false;
@@ -81,73 +123,92 @@ public class PHD2Client extends SimpleClient {
 
     public PHD2Client() {
         super();
-        guidingDataRA.setColor(RA_COLOR);
-        guidingDataDec.setColor(DEC_COLOR);
     }
 
-    public int getGraphIndex() {
-        return graphIndex.get();
+    /**
+     * @return the pool of the star image bitmaps and buffers.
+     */
+    public ImagePool getImagePool() {
+        return imagePool;
+    }
+
+    /**
+     * @return the history of the guide steps, with statistics over the last five minutes ({@link #STATS_RECENT})
+     * and over the whole history ({@link #STATS_ALL}).
+     */
+    public GuideData getGuideData() {
+        return guideData;
     }
 
     public void addListener(PHD2Listener listener) {
-        synchronized (listeners) {
-            listeners.add(listener);
-        }
+        events.addListener(listener);
     }
 
     public void removeListener(PHD2Listener listener) {
-        synchronized (listeners) {
-            listeners.remove(listener);
-        }
+        events.removeListener(listener);
     }
 
     private void notifyParamUpdate(PHD2Param... params) {
-        synchronized (listeners) {
-            for (PHD2Listener l : listeners) {
-                uiHandler.post(() -> {
-                    for (PHD2Param p : params) {
-                        l.onPHD2ParamUpdate(p);
-                    }
-                });
-            }
+        for (PHD2Param p : params) {
+            events.post(p, l -> l.onPHD2ParamUpdate(p));
         }
     }
 
-    public void clearGraphReference(GraphView graph) {
-        guidingDataRA.clearReference(graph);
-        guidingDataDec.clearReference(graph);
-    }
-
     public void clearData() {
-        graphIndex.set(0);
-        guidingDataRA.resetData(new DataPoint[0]);
-        guidingDataDec.resetData(new DataPoint[0]);
+        guideData.clear();
     }
 
     @Override
     protected void onConnected() {
-        PHD2Command.get_connected.run(this);
-        PHD2Command.get_exposure_durations.run(this);
-        PHD2Command.get_profiles.run(this);
-        PHD2Command.get_profile.run(this);
-        PHD2Command.get_dec_guide_mode.run(this);
+        // Pipelined: the listeners are notified once every response has been handled, or the calls have timed out
+        PHD2Call.allOf(PHD2Command.get_connected.run(this),
+                PHD2Command.get_exposure_durations.run(this),
+                PHD2Command.get_profiles.run(this),
+                PHD2Command.get_profile.run(this),
+                PHD2Command.get_dec_guide_mode.run(this)).addCallback(call -> events.post(PHD2Listener::onPHD2Connected));
+    }
+
+    /**
+     * Sends a JSON-RPC request with a new id.
+     */
+    private PHD2Call call(PHD2Command command, Object... params) {
+        long id = nextCallId.getAndIncrement();
+        PHD2Call call = new PHD2Call(this, id, command);
+        pendingCalls.put(id, call);
         uiHandler.postDelayed(() -> {
-            synchronized (listeners) {
-                for (PHD2Listener l : listeners) {
-                    l.onPHD2Connected();
-                }
+            if (pendingCalls.remove(id) != null)
+                call.fail(new TimeoutException("No response from PHD2 to " + call));
+        }, CALL_TIMEOUT_MS);
+        try {
+            if (command.paramsFormat == null) {
+                println("{\"method\": \"" + command.name() + "\", \"id\": " + id + "}");
+            } else {
+                println("{\"method\": \"" + command.name() + "\", \"params\": " +
+                        String.format(command.paramsFormat, params) + ", \"id\": " + id + "}");
             }
-        }, 100);
+        } catch (IllegalStateException e) {
+            pendingCalls.remove(id);
+            call.fail(e);
+            onError(e);
+        }
+        return call;
+    }
+
+    void forgetCall(long id) {
+        pendingCalls.remove(id);
+    }
+
+    /**
+     * @return how many requests are waiting for a response.
+     */
+    public int getPendingCallsCount() {
+        return pendingCalls.size();
     }
 
     @Override
     public void disconnect() {
-        uiHandler.post(() -> {
-            synchronized (listeners) {
-                for (PHD2Listener l : listeners) {
-                    l.onPHD2Disconnected();
-                }
-            }
+        events.run(null, () -> {
+            events.deliver(PHD2Listener::onPHD2Disconnected);
             appState = null;
             connectionState = null;
             synchronized (profiles) {
@@ -157,49 +218,196 @@ public class PHD2Client extends SimpleClient {
                 bitmap.recycle();
                 bitmap = null;
             }
+            imagePool.clear();
         });
+        imageLane.cancel();
+        for (PHD2Call call : pendingCalls.values()) {
+            call.cancel();
+        }
+        imagePoller.reset();
+        stopRecording();
         super.disconnect();
     }
 
+    /**
+     * @return how many messages have been parsed and the total time spent parsing and handling them, in nanoseconds.
+     */
+    public synchronized long[] getMessageStatistics() {
+        return new long[]{parsedMessages, parseNanos};
+    }
+
     @Override
     public void onMessage(Socket from, String msg) {
-        Log.i(TAG, msg.replace("\n", " | "));
+        if (StarImageDecoder.isStarImage(msg)) {
+            long id = StarImageDecoder.readId(msg);
+            PHD2Call call = (id < 0) ? null : pendingCalls.remove(id);
+            if (call != null) call.complete();
+            loadImage(msg);
+            return;
+        }
+        logMessage(msg);
+        long start = System.nanoTime();
         try {
-            JSONObject block = new JSONObject(msg);
-            if (block.has("Event")) {
-                Event event = Event.get(block.getString("Event"));
-                if (event != null) event.parse(this, block);
-            } else if (block.has("jsonrpc")) {
-                PHD2Command.parseResponse(this, block);
+            // Messages arrive one at a time on the socket thread, the same view can be reused
+            message.parse(msg);
+            int field;
+            if ((field = message.find("Event")) >= 0) {
+                Event event = Event.get(message, field);
+                if (event != null) event.parse(this, message);
+            } else if (message.has("jsonrpc")) {
+                PHD2Command.parseResponse(this, message);
             }
         } catch (Exception e) {
             Log.e(TAG, e.getMessage(), e);
         }
+        long time = System.nanoTime() - start;
+        synchronized (this) {
+            parsedMessages++;
+            parseNanos += time;
+        }
+    }
+
+    /**
+     * Logs a message received from PHD2, at most once every {@link #LOG_INTERVAL_MS}.
+     */
+    private void logMessage(String msg) {
+        long now = SystemClock.elapsedRealtime();
+        if (now - lastLogTime < LOG_INTERVAL_MS) {
+            skippedLogs++;
+            return;
+        }
+        Log.d(TAG, (skippedLogs == 0) ? msg : (msg + " (" + skippedLogs + " messages not logged)"));
+        lastLogTime = now;
+        skippedLogs = 0;
     }
 
     @Override
     protected void onError(Exception e) {
         Log.e(TAG, e.getMessage(), e);
-        uiHandler.post(() -> {
-            synchronized (listeners) {
-                for (PHD2Listener l : listeners) {
-                    l.onPHD2Error(e);
-                }
+        events.post(l -> l.onPHD2Error(e));
+    }
+
+    /**
+     * Decodes a star image on the imaging service, replacing the one still waiting, if any.
+     * The listeners are notified once the new Bitmap is ready.
+     *
+     * @param msg the response to {@link PHD2Command#get_star_image}, decoded without building a JSON object.
+     */
+    private void loadImage(String msg) {
+        long start = System.nanoTime();
+        imageLane.submit(() -> {
+            try {
+                // The lane is serial, so the decoder's buffer is never shared
+                FitsDecoder decoder = starImageDecoder.decode(msg);
+                Bitmap bitmap = ImagingService.render(decoder, stretchImages ? stretchers : null, 0, imagePool).bitmap;
+                ImagingService.drawStarBox(bitmap, starImageDecoder.getStarX(), starImageDecoder.getStarY(),
+                        STAR_BOX_SIZE, Color.GREEN);
+                events.run(null, () -> {
+                    Bitmap lastBitmap = this.bitmap;
+                    this.bitmap = bitmap;
+                    events.deliver(l -> l.onPHD2ParamUpdate(PHD2Param.IMAGE));
+                    imagePool.release(lastBitmap);
+                });
+            } catch (Exception e) {
+                onError(e);
+            } finally {
+                imagePoller.imageDecoded(System.nanoTime() - start);
             }
         });
     }
 
-    private void noStarSelected() {
-        receiveImages = false;
-        uiHandler.post(() -> {
-            synchronized (listeners) {
-                for (PHD2Listener l : listeners) {
-                    l.onPHD2NoStarSelected();
+    /**
+     * Asks PHD2 for a new star image, unless the previous one is still being transferred or decoded,
+     * or the minimum interval between two images hasn't elapsed yet. Listeners are only registered while
+     * their UI is visible, so no image is requested in background.
+     */
+    private void requestStarImage() {
+        if (!receiveImages) return;
+        if (!events.hasListeners()) return;
+        long now = SystemClock.elapsedRealtime();
+        synchronized (imagePoller) {
+            if (imagePoller.canRequest(now))
+                imagePoller.requestSent(PHD2Command.get_star_image.run(this, STAR_IMAGE_SIZE), now);
+        }
+    }
+
+    /**
+     * @return the average round-trip and decoding times of star images and the current minimum interval
+     * between two requests, in milliseconds.
+     */
+    public double[] getStarImageTimings() {
+        return imagePoller.getTimings();
+    }
+
+    /**
+     * Starts recording the guiding session in a new {@link GuideLog}, replacing the current one.
+     * The log is created on a background thread, errors are delivered to {@link PHD2Listener#onPHD2Error(Exception)}.
+     *
+     * @param directory where to store the logs. Only the last ones are kept.
+     */
+    public synchronized void startRecording(File directory) {
+        stopRecording();
+        long id = recordingId;
+        guideLogExecutor.execute(() -> {
+            GuideLog log;
+            try {
+                log = GuideLog.create(directory);
+            } catch (IOException e) {
+                Log.e(TAG, "Unable to create the guide log", e);
+                events.post(l -> l.onPHD2Error(e));
+                return;
+            }
+            synchronized (this) {
+                if (recordingId == id) {
+                    guideLog = log;
+                    return;
                 }
             }
+            closeGuideLog(log);
         });
     }
 
+    public synchronized void stopRecording() {
+        recordingId++;
+        GuideLog log = guideLog;
+        if (log == null) return;
+        guideLog = null;
+        guideLogExecutor.execute(() -> closeGuideLog(log));
+    }
+
+    private static void closeGuideLog(GuideLog log) {
+        try {
+            log.close();
+        } catch (IOException e) {
+            Log.e(TAG, e.getLocalizedMessage(), e);
+        }
+    }
+
+    private synchronized void stopRecording(GuideLog log) {
+        if (guideLog == log) stopRecording();
+    }
+
+    public boolean isRecording() {
+        return guideLog != null;
+    }
+
+    private void record(int type, int value, double timestamp, double ra, double dec,
+                        double raCorrection, double decCorrection, double snr, double hfd) {
+        GuideLog log = guideLog;
+        if (log == null) return;
+        try {
+            log.append(type, value, timestamp, ra, dec, raCorrection, decCorrection, snr, hfd);
+        } catch (IOException | IllegalStateException e) {
+            Log.e(TAG, "Unable to record the guide log", e);
+            stopRecording(log);
+        }
+    }
+
+    private void noStarSelected() {
+        receiveImages = false;
+        events.post("noStarSelected", PHD2Listener::onPHD2NoStarSelected);
+    }
+
     public enum PHD2Command {
         loop,
         find_star,
@@ -221,14 +429,8 @@ public class PHD2Client extends SimpleClient {
         get_connected(null, (phd, msg) -> {
             phd.connectionState = msg.getBoolean("result") ? ConnectionState.CONNECTED : ConnectionState.DISCONNECTED;
         }, PHD2Param.CONNECTION),
-        get_star_image("[%d]", (phd, msg) -> {
-            JSONObject result = msg.getJSONObject("result");
-            JSONArray star_pos = result.getJSONArray("star_pos");
-            ImageLoadingThread thread = phd.new ImageLoadingThread(result.getInt("width"),
-                    result.getInt("height"), result.getString("pixels"),
-                    star_pos.getDouble(0), star_pos.getDouble(1));
-            thread.start();
-        }, PHD2Param.IMAGE),
+        // Responses are read by StarImageDecoder, see onMessage
+        get_star_image("[%d]"),
         set_connected("[%b]", PHD2Command.get_connected::run),
         set_profile("[%d]"),
         get_profile(null, (phd, msg) -> {
@@ -271,35 +473,44 @@ public class PHD2Client extends SimpleClient {
             this.updatedParams = updatedParams;
         }
 
-        public static void parseResponse(PHD2Client phd, JSONObject msg) throws JSONException {
+        /**
+         * Handles a response, completing the call with the same id. Responses of calls that have
+         * been cancelled or have timed out are ignored.
+         */
+        public static void parseResponse(PHD2Client phd, PHD2Message msg) throws JSONException {
+            PHD2Call call = msg.has("id") ? phd.pendingCalls.remove(msg.getLong("id")) : null;
             if (msg.has("error")) {
                 String message = msg.getJSONObject("error").getString("message");
+                RuntimeException e = new RuntimeException("PHD2 returned " + message);
+                if (call != null) call.fail(e);
                 if (message.equals("no star selected")) {
                     phd.noStarSelected();
                 } else {
-                    phd.onError(new RuntimeException("PHD2 returned " + message));
+                    phd.onError(e);
                 }
-            } else if (msg.has("result")) {
-                int id = msg.getInt("id");
-                PHD2Command[] values = values();
-                if ((id < values.length) && (values[id].responseAction != null)) {
-                    values[id].responseAction.run(phd, msg);
-                    if (values[id].updatedParams.length != 0)
-                        phd.notifyParamUpdate(values[id].updatedParams);
+            } else if ((call != null) && msg.has("result")) {
+                PHD2Command command = call.command;
+                if ((command != null) && (command.responseAction != null)) {
+                    try {
+                        command.responseAction.run(phd, msg);
+                    } catch (JSONException e) {
+                        call.fail(e);
+                        throw e;
+                    }
+                    if (command.updatedParams.length != 0)
+                        phd.notifyParamUpdate(command.updatedParams);
                 }
+                call.complete();
             }
         }
 
-        public void run(PHD2Client phd, Object... params) {
-            try {
-                if (paramsFormat == null) {
-                    phd.println("{\"method\": \"" + name() + "\", \"id\": " + ordinal() + "}");
-                } else {
-                    phd.println("{\"method\": \"" + name() + "\", \"params\": " + String.format(paramsFormat, params) + ", \"id\": " + ordinal() + "}");
-                }
-            } catch (IllegalStateException e) {
-                phd.onError(e);
-            }
+        /**
+         * Sends the request to PHD2. Many requests can be in flight at the same time.
+         *
+         * @return the call, completed when the response has been handled.
+         */
+        public PHD2Call run(PHD2Client phd, Object... params) {
+            return phd.call(this, params);
         }
     }
 
@@ -329,15 +540,14 @@ public class PHD2Client extends SimpleClient {
             phd.appState = PHD2Client.AppState.Calibrating;
         }, PHD2Param.STATE),
         AppState((phd, msg) -> {
-            phd.appState = PHD2Client.AppState.fromString(msg.getString("State"));
+            phd.appState = PHD2Client.AppState.get(msg, "State");
         }, PHD2Param.STATE),
         CalibrationFailed,
         CalibrationDataFlipped,
         LockPositionShiftLimitReached,
         LoopingExposures((phd, msg) -> {
             phd.appState = PHD2Client.AppState.Looping;
-            if (phd.receiveImages && (!phd.listeners.isEmpty()))
-                PHD2Command.get_star_image.run(phd, 500);
+            phd.requestStarImage();
         }, PHD2Param.STATE),
         LoopingExposuresStopped((phd, msg) -> {
             phd.appState = PHD2Client.AppState.Stopped;
@@ -352,30 +562,26 @@ public class PHD2Client extends SimpleClient {
         Resumed,
         GuideStep((phd, msg) -> {
             phd.appState = PHD2Client.AppState.Guiding;
-            final int maxDataPoints = 200;
-            int graphIndex = phd.graphIndex.incrementAndGet();
-            DataPoint raVal = new DataPoint(graphIndex, msg.getDouble("RADistanceRaw")),
-                    decVal = new DataPoint(graphIndex, msg.getDouble("DECDistanceRaw"));
-            phd.uiHandler.post(() -> {
-                phd.guidingDataRA.appendData(raVal, true, maxDataPoints);
-                phd.guidingDataDec.appendData(decVal, true, maxDataPoints);
-            });
             if (msg.has("RADuration")) {
                 phd.raCorrection = msg.getInt("RADuration");
-                phd.raCorrectionSign = msg.getString("RADirection").equals("East");
+                phd.raCorrectionSign = msg.stringEquals("RADirection", "East");
             } else {
                 phd.raCorrection = 0;
             }
             if (msg.has("DECDuration")) {
                 phd.decCorrection = msg.getInt("DECDuration");
-                phd.decCorrectionSign = msg.getString("DECDirection").equals("North");
+                phd.decCorrectionSign = msg.stringEquals("DECDirection", "North");
             } else {
                 phd.decCorrection = 0;
             }
             phd.hdf = msg.getDouble("HFD");
             phd.snr = msg.getDouble("SNR");
-            if (phd.receiveImages && (!phd.listeners.isEmpty()))
-                PHD2Command.get_star_image.run(phd, 500);
+            double timestamp = getTimestamp(msg), ra = msg.getDouble("RADistanceRaw"), dec = msg.getDouble("DECDistanceRaw"),
+                    raCorrection = phd.raCorrectionSign ? phd.raCorrection : -phd.raCorrection,
+                    decCorrection = phd.decCorrectionSign ? phd.decCorrection : -phd.decCorrection;
+            phd.guideData.add(timestamp, ra, dec, raCorrection, decCorrection, phd.snr);
+            phd.record(GuideLog.TYPE_STEP, 0, timestamp, ra, dec, raCorrection, decCorrection, phd.snr, phd.hdf);
+            phd.requestStarImage();
         }, PHD2Param.STATE, PHD2Param.GUIDE_VALUES),
         GuidingDithered,
         LockPositionLost,
@@ -383,6 +589,7 @@ public class PHD2Client extends SimpleClient {
         GuideParamChange,
         ConfigurationChange;
 
+        private static final Event[] VALUES = values();
         private final PHD2Action action;
         private final PHD2Param[] updatedParams;
 
@@ -396,15 +603,34 @@ public class PHD2Client extends SimpleClient {
             this.updatedParams = updatedParams;
         }
 
-        public static Event get(String event) {
-            for (Event s : values()) {
-                if (s.name().equals(event)) return s;
+        /**
+         * @param field the index of the "Event" field in the message.
+         */
+        static Event get(PHD2Message msg, int field) {
+            for (Event s : VALUES) {
+                if (msg.stringEquals(field, s.name())) return s;
             }
             return null;
         }
 
-        void parse(PHD2Client phd, JSONObject msg) throws JSONException {
+        private static double getTimestamp(PHD2Message msg) throws JSONException {
+            return msg.has("Timestamp") ? msg.getDouble("Timestamp") : (System.currentTimeMillis() / 1000.0);
+        }
+
+        void parse(PHD2Client phd, PHD2Message msg) throws JSONException {
+            AppState lastState = phd.appState;
             if (action != null) action.run(phd, msg);
+            if (phd.guideLog != null) {
+                AppState state = phd.appState;
+                if ((state != lastState) && (state != null))
+                    phd.record(GuideLog.TYPE_STATE, state.ordinal(), getTimestamp(msg), 0, 0, 0, 0, 0, 0);
+                if (this == SettleDone) {
+                    phd.record(GuideLog.TYPE_SETTLE_DONE, msg.has("Status") ? msg.getInt("Status") : 0,
+                            getTimestamp(msg), 0, 0, 0, 0, 0, 0);
+                } else if (this == StarLost) {
+                    phd.record(GuideLog.TYPE_STAR_LOST, 0, getTimestamp(msg), 0, 0, 0, 0, 0, 0);
+                }
+            }
             if (updatedParams.length != 0) phd.notifyParamUpdate(updatedParams);
         }
     }
@@ -422,15 +648,16 @@ public class PHD2Client extends SimpleClient {
         Paused(R.string.phd2_paused),
         Looping(R.string.phd2_looping);
 
+        private static final AppState[] VALUES = values();
         private final int descriptionRes;
 
         AppState(int descriptionRes) {
             this.descriptionRes = descriptionRes;
         }
 
-        public static AppState fromString(String appState) {
-            for (AppState s : values()) {
-                if (s.name().equals(appState)) return s;
+        static AppState get(PHD2Message msg, String key) {
+            for (AppState s : VALUES) {
+                if (msg.stringEquals(key, s.name())) return s;
             }
             return null;
         }
@@ -453,78 +680,6 @@ public class PHD2Client extends SimpleClient {
     }
 
     private interface PHD2Action {
-        void run(PHD2Client phd, JSONObject msg) throws JSONException;
-    }
-
-    class ImageLoadingThread extends Thread {
-
-        private final int width;
-        private final int height;
-        private final String pixels;
-        private final double starX;
-        private final double starY;
-
-        private ImageLoadingThread(int width, int height, String pixels, double starX, double starY) {
-            super("PHD2 image loading thread");
-            this.width = width;
-            this.height = height;
-            this.pixels = pixels;
-            this.starX = starX;
-            this.starY = starY;
-        }
-
-        @Override
-        public void run() {
-            try {
-                byte[] blobData = Base64.decode(pixels, Base64.DEFAULT);
-                try (InputStream stream = new ByteArrayInputStream(blobData)) {
-                    Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
-                    if (stretchImages) {
-                        int[][] img = new int[width][height];
-                        int min = Integer.MAX_VALUE, max = Integer.MIN_VALUE;
-                        for (int w = 0; w < width; w++) {
-                            for (int h = 0; h < height; h++) {
-                                int val = stream.read() | (stream.read() << 8);
-                                img[w][h] = val;
-                                if (val > max) max = val;
-                                if (min > val) min = val;
-                            }
-                        }
-                        double logMin = Math.log10(min), multiplier = 255.0 / (Math.log10(max) - logMin);
-                        for (int w = 0; w < width; w++) {
-                            for (int h = 0; h < height; h++) {
-                                int interpolation = (int) ((Math.log10(img[w][h]) - logMin) * multiplier);
-                                bitmap.setPixel(w, h, Color.rgb(interpolation, interpolation, interpolation));
-                            }
-                        }
-                    } else {
-                        for (int w = 0; w < width; w++) {
-                            for (int h = 0; h < height; h++) {
-                                int val = stream.read() | (stream.read() << 8);
-                                val /= 257;
-                                bitmap.setPixel(w, h, Color.rgb(val, val, val));
-                            }
-                        }
-                    }
-                    Canvas canvas = new Canvas(bitmap);
-                    Paint paint = new Paint();
-                    paint.setStyle(Paint.Style.STROKE);
-                    paint.setColor(Color.GREEN);
-                    canvas.drawRect((int) starX - 20, (int) starY + 20, (int) starX + 20, (int) starY - 20, paint);
-                    uiHandler.post(() -> {
-                        Bitmap lastBitmap = PHD2Client.this.bitmap;
-                        PHD2Client.this.bitmap = bitmap;
-                        synchronized (listeners) {
-                            for (PHD2Listener l : listeners) {
-                                l.onPHD2ParamUpdate(PHD2Param.IMAGE);
-                            }
-                        }
-                        if (lastBitmap != null) lastBitmap.recycle();
-                    });
-                }
-            } catch (Exception t) {
-                onError(t);
-            }
-        }
+        void run(PHD2Client phd, PHD2Message msg) throws JSONException;
     }
-}
\ No newline at end of file
+}
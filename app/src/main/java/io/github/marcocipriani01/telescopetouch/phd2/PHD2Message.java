@@ -0,0 +1,297 @@
+/*
+ * Copyright 2021 Marco Cipriani (@marcocipriani01)
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package io.github.marcocipriani01.telescopetouch.phd2;
+
+import androidx.annotation.NonNull;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Arrays;
+
+/**
+ * Reusable, low-allocation view of a message received from PHD2. {@link #parse(String)} only records where the
+ * top-level keys and values are in the message, values are converted when a handler asks for them:
+ * numbers, booleans and string comparisons don't allocate, nested objects and arrays are parsed with
+ * {@link JSONObject} only when requested.
+ * Not thread-safe: a message is valid until the next call to {@link #parse(String)}.
+ *
+ * @author marcocipriani01
+ */
+public class PHD2Message {
+
+    private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+    private String msg = "";
+    private int fieldCount = 0;
+    private int[] keyStarts = new int[32];
+    private int[] keyEnds = new int[32];
+    private int[] valueStarts = new int[32];
+    private int[] valueEnds = new int[32];
+
+    /**
+     * Parses the given message in place of the previous one.
+     *
+     * @throws JSONException if the message isn't a JSON object.
+     */
+    public void parse(@NonNull String msg) throws JSONException {
+        this.msg = msg;
+        fieldCount = 0;
+        int length = msg.length(), i = skipWhitespace(0);
+        if ((i >= length) || (msg.charAt(i) != '{')) throw new JSONException("Not a JSON object: " + msg);
+        i = skipWhitespace(i + 1);
+        if ((i < length) && (msg.charAt(i) == '}')) return;
+        while (true) {
+            if ((i >= length) || (msg.charAt(i) != '"')) throw new JSONException("Expected a key at " + i);
+            int keyEnd = skipString(i);
+            int valueStart = skipWhitespace(keyEnd);
+            if ((valueStart >= length) || (msg.charAt(valueStart) != ':'))
+                throw new JSONException("Expected ':' at " + valueStart);
+            valueStart = skipWhitespace(valueStart + 1);
+            int valueEnd = skipValue(valueStart);
+            if (fieldCount == keyStarts.length) {
+                int capacity = 2 * fieldCount;
+                keyStarts = Arrays.copyOf(keyStarts, capacity);
+                keyEnds = Arrays.copyOf(keyEnds, capacity);
+                valueStarts = Arrays.copyOf(valueStarts, capacity);
+                valueEnds = Arrays.copyOf(valueEnds, capacity);
+            }
+            keyStarts[fieldCount] = i + 1;
+            keyEnds[fieldCount] = keyEnd - 1;
+            valueStarts[fieldCount] = valueStart;
+            valueEnds[fieldCount] = valueEnd;
+            fieldCount++;
+            i = skipWhitespace(valueEnd);
+            if (i >= length) throw new JSONException("Unterminated object");
+            char c = msg.charAt(i);
+            if (c == '}') return;
+            if (c != ',') throw new JSONException("Expected ',' or '}' at " + i);
+            i = skipWhitespace(i + 1);
+        }
+    }
+
+    /**
+     * @return the message being parsed.
+     */
+    @NonNull
+    public String getMessage() {
+        return msg;
+    }
+
+    public boolean has(@NonNull String key) {
+        return find(key) >= 0;
+    }
+
+    /**
+     * @return {@code true} if the value of the given key is a string equal to the given one.
+     */
+    public boolean stringEquals(@NonNull String key, @NonNull String value) {
+        int field = find(key);
+        return (field >= 0) && stringEquals(field, value);
+    }
+
+    @NonNull
+    public String getString(@NonNull String key) throws JSONException {
+        int field = require(key), start = valueStarts[field], end = valueEnds[field];
+        if (msg.charAt(start) != '"') throw new JSONException("Value of " + key + " is not a string");
+        int escape = msg.indexOf('\\', start + 1);
+        if ((escape < 0) || (escape >= end)) return msg.substring(start + 1, end - 1);
+        return new JSONArray("[" + msg.substring(start, end) + "]").getString(0);
+    }
+
+    public boolean getBoolean(@NonNull String key) throws JSONException {
+        int field = require(key), start = valueStarts[field], length = valueEnds[field] - start;
+        if ((length == 4) && msg.startsWith("true", start)) return true;
+        if ((length == 5) && msg.startsWith("false", start)) return false;
+        throw new JSONException("Value of " + key + " is not a boolean");
+    }
+
+    public int getInt(@NonNull String key) throws JSONException {
+        return (int) getDouble(key);
+    }
+
+    public long getLong(@NonNull String key) throws JSONException {
+        return (long) getDouble(key);
+    }
+
+    /**
+     * Parses a number without allocating. Values with more than 18 significant digits may lose some precision.
+     */
+    public double getDouble(@NonNull String key) throws JSONException {
+        int field = require(key), i = valueStarts[field], end = valueEnds[field];
+        boolean negative = false;
+        if (msg.charAt(i) == '-') {
+            negative = true;
+            i++;
+        }
+        long mantissa = 0;
+        int digits = 0, exponent = 0, start = i;
+        char c = 0;
+        for (; i < end; i++) {
+            c = msg.charAt(i);
+            if ((c < '0') || (c > '9')) break;
+            if (digits < 18) {
+                mantissa = mantissa * 10 + (c - '0');
+                if (mantissa != 0) digits++;
+            } else {
+                exponent++;
+            }
+        }
+        if ((i < end) && (c == '.')) {
+            for (i++; i < end; i++) {
+                c = msg.charAt(i);
+                if ((c < '0') || (c > '9')) break;
+                if (digits < 18) {
+                    mantissa = mantissa * 10 + (c - '0');
+                    if (mantissa != 0) digits++;
+                    exponent--;
+                }
+            }
+        }
+        if ((i < end) && ((c == 'e') || (c == 'E'))) {
+            i++;
+            boolean negativeExponent = false;
+            if (i < end) {
+                c = msg.charAt(i);
+                if ((c == '-') || (c == '+')) {
+                    negativeExponent = (c == '-');
+                    i++;
+                }
+            }
+            int value = 0;
+            for (; i < end; i++) {
+                c = msg.charAt(i);
+                if ((c < '0') || (c > '9')) break;
+                value = Math.min(value * 10 + (c - '0'), 1000);
+            }
+            exponent += negativeExponent ? -value : value;
+        }
+        if ((i != end) || (i == start)) throw new JSONException("Value of " + key + " is not a number");
+        double result;
+        if (exponent >= 0) {
+            result = mantissa * ((exponent < POWERS_OF_TEN.length) ? POWERS_OF_TEN[exponent] : Math.pow(10, exponent));
+        } else {
+            result = mantissa / ((-exponent < POWERS_OF_TEN.length) ? POWERS_OF_TEN[-exponent] : Math.pow(10, -exponent));
+        }
+        return negative ? -result : result;
+    }
+
+    @NonNull
+    public JSONObject getJSONObject(@NonNull String key) throws JSONException {
+        int field = require(key);
+        return new JSONObject(msg.substring(valueStarts[field], valueEnds[field]));
+    }
+
+    @NonNull
+    public JSONArray getJSONArray(@NonNull String key) throws JSONException {
+        int field = require(key);
+        return new JSONArray(msg.substring(valueStarts[field], valueEnds[field]));
+    }
+
+    /**
+     * @return the index of the field with the given key, or {@code -1}.
+     */
+    int find(String key) {
+        int length = key.length();
+        for (int i = 0; i < fieldCount; i++) {
+            if (((keyEnds[i] - keyStarts[i]) == length) && msg.startsWith(key, keyStarts[i])) return i;
+        }
+        return -1;
+    }
+
+    /**
+     * @return {@code true} if the value of the given field is a string equal to the given one.
+     */
+    boolean stringEquals(int field, String value) {
+        int start = valueStarts[field];
+        return ((valueEnds[field] - start) == (value.length() + 2)) &&
+                (msg.charAt(start) == '"') && msg.startsWith(value, start + 1);
+    }
+
+    private int require(String key) throws JSONException {
+        int field = find(key);
+        if (field < 0) throw new JSONException("No value for " + key);
+        return field;
+    }
+
+    private int skipWhitespace(int i) {
+        int length = msg.length();
+        while (i < length) {
+            char c = msg.charAt(i);
+            if ((c != ' ') && (c != '\t') && (c != '\n') && (c != '\r')) break;
+            i++;
+        }
+        return i;
+    }
+
+    /**
+     * @param i the index of the opening quote.
+     * @return the index after the closing quote.
+     */
+    private int skipString(int i) throws JSONException {
+        int length = msg.length();
+        for (i++; i < length; i++) {
+            char c = msg.charAt(i);
+            if (c == '\\') {
+                i++;
+            } else if (c == '"') {
+                return i + 1;
+            }
+        }
+        throw new JSONException("Unterminated string");
+    }
+
+    /**
+     * @return the index after the value that starts at the given index.
+     */
+    private int skipValue(int i) throws JSONException {
+        int length = msg.length();
+        if (i >= length) throw new JSONException("Missing value");
+        char c = msg.charAt(i);
+        if (c == '"') return skipString(i);
+        if ((c == '{') || (c == '[')) {
+            int depth = 0;
+            while (i < length) {
+                c = msg.charAt(i);
+                if (c == '"') {
+                    i = skipString(i);
+                    continue;
+                }
+                if ((c == '{') || (c == '[')) {
+                    depth++;
+                } else if (((c == '}') || (c == ']')) && (--depth == 0)) {
+                    return i + 1;
+                }
+                i++;
+            }
+            throw new JSONException("Unterminated value");
+        }
+        int start = i;
+        while (i < length) {
+            c = msg.charAt(i);
+            if ((c == ',') || (c == '}') || (c == ']') || (c == ' ') || (c == '\t') || (c == '\n') || (c == '\r'))
+                break;
+            i++;
+        }
+        if (i == start) throw new JSONException("Missing value at " + i);
+        return i;
+    }
+}
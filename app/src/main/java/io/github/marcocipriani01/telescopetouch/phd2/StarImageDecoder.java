@@ -0,0 +1,172 @@
+/*
+ * Copyright 2021 Marco Cipriani (@marcocipriani01)
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package io.github.marcocipriani01.telescopetouch.phd2;
+
+import androidx.annotation.NonNull;
+
+import java.util.Arrays;
+
+import io.github.marcocipriani01.telescopetouch.indi.FitsDecoder;
+import io.github.marcocipriani01.telescopetouch.indi.ImagingService;
+
+/**
+ * Reads the responses to {@code get_star_image} directly from the message received from PHD2:
+ * the Base64 pixels are decoded character by character into a reusable 16-bit buffer,
+ * without building a {@link org.json.JSONObject}, a decoded byte array or any copy of the payload.
+ * Not thread-safe: the buffer is overwritten by every image.
+ *
+ * @author marcocipriani01
+ */
+class StarImageDecoder {
+
+    private static final String PIXELS_KEY = "\"pixels\"";
+    private static final byte[] BASE64 = new byte[128];
+
+    static {
+        Arrays.fill(BASE64, (byte) -1);
+        String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+        for (int i = 0; i < alphabet.length(); i++) {
+            BASE64[alphabet.charAt(i)] = (byte) i;
+        }
+    }
+
+    private short[] levels = new short[0];
+    private double starX;
+    private double starY;
+
+    /**
+     * @return {@code true} if the given message contains a star image.
+     */
+    static boolean isStarImage(@NonNull String msg) {
+        return msg.contains(PIXELS_KEY);
+    }
+
+    /**
+     * Reads the id of the JSON-RPC response, which PHD2 writes after the pixels.
+     *
+     * @return the id, or {@code -1} if missing.
+     */
+    static long readId(@NonNull String msg) {
+        int keyIndex = msg.lastIndexOf("\"id\"");
+        if (keyIndex < 0) return -1;
+        try {
+            return (long) parseNumber(msg, msg.indexOf(':', keyIndex) + 1);
+        } catch (IllegalArgumentException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Decodes a star image. The returned decoder is backed by the buffer of this object,
+     * so it's only valid until the next call.
+     *
+     * @throws IllegalArgumentException if the message isn't a valid star image.
+     */
+    FitsDecoder decode(@NonNull String msg) {
+        int width = (int) readNumber(msg, "\"width\"", 0),
+                height = (int) readNumber(msg, "\"height\"", 0);
+        int starPos = msg.indexOf("\"star_pos\"");
+        if (starPos < 0) throw new IllegalArgumentException("Missing star position!");
+        int arrayStart = msg.indexOf('[', starPos);
+        starX = parseNumber(msg, arrayStart + 1);
+        starY = parseNumber(msg, msg.indexOf(',', arrayStart) + 1);
+        if ((width <= 0) || (height <= 0)) throw new IllegalArgumentException("Invalid star image size!");
+        int pixelCount = width * height;
+        if (levels.length < pixelCount) levels = new short[pixelCount];
+        int start = msg.indexOf('"', msg.indexOf(':', msg.indexOf(PIXELS_KEY) + PIXELS_KEY.length())) + 1,
+                end = msg.indexOf('"', start);
+        if ((start <= 0) || (end < 0)) throw new IllegalArgumentException("Invalid star image!");
+        if (decodeBase64(msg, start, end, pixelCount) < pixelCount)
+            throw new IllegalArgumentException("Truncated star image!");
+        return ImagingService.wrapUnsigned16(levels, width, height);
+    }
+
+    /**
+     * @return the X coordinate of the guide star in the last image.
+     */
+    double getStarX() {
+        return starX;
+    }
+
+    /**
+     * @return the Y coordinate of the guide star in the last image.
+     */
+    double getStarY() {
+        return starY;
+    }
+
+    /**
+     * Decodes 16-bit little-endian pixels from Base64 characters, skipping JSON escapes.
+     *
+     * @return how many pixels have been decoded.
+     */
+    private int decodeBase64(String msg, int start, int end, int pixelCount) {
+        int bits = 0, bitCount = 0, lowByte = -1, index = 0;
+        for (int i = start; (i < end) && (index < pixelCount); i++) {
+            char c = msg.charAt(i);
+            int value;
+            if (c == '\\') {
+                // JSON encoders may escape '/', any other escape is a line break
+                if ((++i < end) && (msg.charAt(i) == '/')) {
+                    value = 63;
+                } else {
+                    continue;
+                }
+            } else if ((c >= 128) || ((value = BASE64[c]) < 0)) {
+                if (c == '=') break;
+                continue;
+            }
+            bits = (bits << 6) | value;
+            bitCount += 6;
+            if (bitCount >= 8) {
+                bitCount -= 8;
+                int b = (bits >> bitCount) & 0xff;
+                if (lowByte < 0) {
+                    lowByte = b;
+                } else {
+                    // Flipping the sign bit is the same as subtracting BZERO = 32768
+                    levels[index++] = (short) ((lowByte | (b << 8)) ^ 0x8000);
+                    lowByte = -1;
+                }
+            }
+        }
+        return index;
+    }
+
+    private static double readNumber(String msg, String key, double defaultValue) {
+        int keyIndex = msg.indexOf(key);
+        if (keyIndex < 0) return defaultValue;
+        return parseNumber(msg, msg.indexOf(':', keyIndex + key.length()) + 1);
+    }
+
+    private static double parseNumber(String msg, int start) {
+        if (start <= 0) throw new IllegalArgumentException("Invalid number!");
+        int length = msg.length();
+        while ((start < length) && Character.isWhitespace(msg.charAt(start))) {
+            start++;
+        }
+        int end = start;
+        while (end < length) {
+            char c = msg.charAt(end);
+            if (((c < '0') || (c > '9')) && (c != '-') && (c != '+') && (c != '.') && (c != 'e') && (c != 'E'))
+                break;
+            end++;
+        }
+        return Double.parseDouble(msg.substring(start, end));
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright 2021 Marco Cipriani (@marcocipriani01)
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package io.github.marcocipriani01.telescopetouch.phd2;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Decides when to ask PHD2 for a new star image. At most one image is requested or decoded at a time, and the
+ * interval between two requests grows with the measured round-trip and decoding times, so that a slow network
+ * or a throttled phone spend at most half of their time on star images.
+ *
+ * @author marcocipriani01
+ */
+class StarImagePoller {
+
+    /**
+     * Fraction of the time that can be spent transferring and decoding star images.
+     */
+    private static final double MAX_BUSY_FRACTION = 0.5;
+    private static final long MIN_INTERVAL_MS = 200;
+    private static final long MAX_INTERVAL_MS = 10000;
+    /**
+     * Weight of the last measure in the moving averages.
+     */
+    private static final double SMOOTHING = 0.25;
+    private boolean requestPending = false;
+    private boolean decoding = false;
+    private long lastRequestTime = Long.MIN_VALUE / 2;
+    private double roundTripMs = 0;
+    private double decodeMs = 0;
+
+    /**
+     * @param now the current time, in milliseconds.
+     * @return {@code true} if a new image can be requested.
+     */
+    synchronized boolean canRequest(long now) {
+        return (!requestPending) && (!decoding) && (now - lastRequestTime >= getIntervalMs());
+    }
+
+    /**
+     * Records a request. The poller waits for its completion and for the image to be decoded.
+     */
+    synchronized void requestSent(@NonNull PHD2Call call, long now) {
+        requestPending = true;
+        lastRequestTime = now;
+        call.addCallback(this::requestCompleted);
+    }
+
+    private synchronized void requestCompleted(PHD2Call call) {
+        requestPending = false;
+        if (call.getState() == PHD2Call.State.COMPLETED) {
+            roundTripMs = average(roundTripMs, call.getRoundTripNanos() / 1e6);
+            decoding = true;
+        }
+    }
+
+    /**
+     * Called when the image has been decoded or has failed to decode.
+     *
+     * @param nanos the time spent decoding the image.
+     */
+    synchronized void imageDecoded(long nanos) {
+        decoding = false;
+        decodeMs = average(decodeMs, nanos / 1e6);
+    }
+
+    synchronized void reset() {
+        requestPending = decoding = false;
+        lastRequestTime = Long.MIN_VALUE / 2;
+    }
+
+    /**
+     * @return the minimum time between two requests, in milliseconds.
+     */
+    synchronized long getIntervalMs() {
+        long interval = (long) ((roundTripMs + decodeMs) / MAX_BUSY_FRACTION);
+        return Math.max(MIN_INTERVAL_MS, Math.min(interval, MAX_INTERVAL_MS));
+    }
+
+    /**
+     * @return the average round-trip time, the average decoding time and the current interval, in milliseconds.
+     */
+    synchronized double[] getTimings() {
+        return new double[]{roundTripMs, decodeMs, getIntervalMs()};
+    }
+
+    private static double average(double average, double value) {
+        return (average == 0) ? value : (average + SMOOTHING * (value - average));
+    }
+}